@@ -0,0 +1,99 @@
+/* forktest.c
+ *    Test program for fork().
+ *
+ *    The parent and the child each write their own value into a page they
+ *    share copy-on-write after the fork, and check that they never see the
+ *    other's value. Returns 0 if everything checks out.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define PAGESIZE	1024
+#define WORDS		(PAGESIZE/4)
+
+#define BEFORE		1
+#define PARENT		2
+#define CHILD		3
+
+int shared[WORDS];
+
+/* check that every word of the page is value */
+int check(int value)
+{
+  int i;
+
+  for (i=0; i<WORDS; i++) {
+    if (shared[i] != value)
+      return 0;
+  }
+
+  return 1;
+}
+
+void fill(int value)
+{
+  int i;
+
+  for (i=0; i<WORDS; i++)
+    shared[i] = value;
+}
+
+/* spin for a while, so the other process gets a chance to run */
+void spin()
+{
+  volatile int i;
+
+  for (i=0; i<100000; i++)
+    ;
+}
+
+int main(int argc, char** argv)
+{
+  int pid, status;
+
+  fill(BEFORE);
+
+  pid = fork();
+  if (pid==-1) {
+    printf("forktest: fork failed\n");
+    return 1;
+  }
+
+  if (pid==0) {
+    /* the child starts with the page as it was at the fork */
+    if (!check(BEFORE))
+      exit(2);
+
+    fill(CHILD);
+    spin();
+
+    /* the parent's writes must not show up here */
+    if (!check(CHILD))
+      exit(3);
+
+    exit(0);
+  }
+
+  fill(PARENT);
+  spin();
+
+  if (join(pid, &status)!=1) {
+    printf("forktest: child did not exit normally\n");
+    return 1;
+  }
+  if (status!=0) {
+    printf("forktest: child saw the wrong value (%d)\n", status);
+    return 1;
+  }
+
+  /* nor the child's here */
+  if (!check(PARENT)) {
+    printf("forktest: parent saw the child's value\n");
+    return 1;
+  }
+
+  printf("forktest: ok\n");
+  return 0;
+}
@@ -0,0 +1,94 @@
+/* heaptest.c
+ *    Test program for sbrk() and stack growth.
+ *
+ *    Grows the heap, checks that new heap memory reads as zeros and keeps
+ *    what is written to it, shrinks it and grows it again, and then recurses
+ *    deep enough to grow the stack well past its first few pages. Returns
+ *    the number of checks that failed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define PAGESIZE	1024
+#define HEAPPAGES	3
+#define DEPTH		64	/* one page of stack per level */
+
+#define FAILED		((char *) -1)
+
+int failures = 0;
+
+void check(int ok, char *what)
+{
+  if (!ok) {
+    printf("heaptest: %s failed\n", what);
+    failures++;
+  }
+}
+
+/* test whether count bytes at p are all value */
+int all(char *p, int count, char value)
+{
+  int i;
+
+  for (i=0; i<count; i++) {
+    if (p[i] != value)
+      return 0;
+  }
+
+  return 1;
+}
+
+/* use a page of stack at every level, and add up what each one holds */
+int deep(int depth)
+{
+  char frame[PAGESIZE];
+  int i, sum;
+
+  for (i=0; i<PAGESIZE; i++)
+    frame[i] = depth;
+
+  sum = (depth>0) ? deep(depth-1) : 0;
+
+  for (i=0; i<PAGESIZE; i++)
+    sum += frame[i];
+
+  return sum;
+}
+
+int main(int argc, char** argv)
+{
+  char *start, *heap;
+  int i;
+
+  start = sbrk(0);
+  check(start!=FAILED, "sbrk(0)");
+
+  heap = sbrk(HEAPPAGES*PAGESIZE);
+  check(heap==start, "growing the heap");
+  check(sbrk(0)==start+HEAPPAGES*PAGESIZE, "new break");
+  check(all(heap, HEAPPAGES*PAGESIZE, 0), "new heap is zeroed");
+
+  for (i=0; i<HEAPPAGES*PAGESIZE; i++)
+    heap[i] = 'h';
+  check(all(heap, HEAPPAGES*PAGESIZE, 'h'), "heap contents");
+
+  /* give back all but the first page, then take it again */
+  check(sbrk(-(HEAPPAGES-1)*PAGESIZE)==start+HEAPPAGES*PAGESIZE,
+	"shrinking the heap");
+  check(sbrk((HEAPPAGES-1)*PAGESIZE)==start+PAGESIZE, "regrowing the heap");
+  check(all(heap, PAGESIZE, 'h'), "kept heap page");
+  check(all(heap+PAGESIZE, (HEAPPAGES-1)*PAGESIZE, 0),
+	"regrown heap is zeroed");
+
+  check(sbrk(-(HEAPPAGES+1)*PAGESIZE)==FAILED, "shrinking below the start");
+  check(sbrk(0)==start+HEAPPAGES*PAGESIZE, "break after a failed sbrk");
+
+  check(deep(DEPTH)==PAGESIZE*(DEPTH*(DEPTH+1)/2), "stack growth");
+
+  if (failures==0)
+    printf("heaptest: ok\n");
+
+  return failures;
+}
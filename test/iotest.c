@@ -0,0 +1,124 @@
+/* iotest.c
+ *    Test program for readv(), writev(), pread() and pwrite().
+ *
+ *    Writes a file in pieces with writev(), reads it back with readv() into
+ *    buffers that cross page boundaries and run past the end of the file,
+ *    and checks that pread() and pwrite() do not move the file position.
+ *    Returns the number of checks that failed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define PAGESIZE	1024
+#define FILESIZE	2500	/* not a whole number of pages */
+
+char *name = "iotest.dat";
+
+char data[FILESIZE];
+char buf[3*PAGESIZE];
+
+int failures = 0;
+
+void check(int ok, char *what)
+{
+  if (!ok) {
+    printf("iotest: %s failed\n", what);
+    failures++;
+  }
+}
+
+/* test whether count bytes at p match the file at offset */
+int matches(char *p, int offset, int count)
+{
+  int i;
+
+  for (i=0; i<count; i++) {
+    if (p[i] != data[offset+i])
+      return 0;
+  }
+
+  return 1;
+}
+
+int main(int argc, char** argv)
+{
+  int fd, i;
+  struct iovec iov[3];
+
+  for (i=0; i<FILESIZE; i++)
+    data[i] = 'a' + i%26;
+
+  fd = creat(name);
+  if (fd==-1) {
+    printf("Unable to create %s\n", name);
+    return 1;
+  }
+
+  /* the middle piece is longer than a page, so it crosses a boundary */
+  iov[0].iov_base = data;
+  iov[0].iov_len = 100;
+  iov[1].iov_base = data+100;
+  iov[1].iov_len = PAGESIZE+200;
+  iov[2].iov_base = data+PAGESIZE+300;
+  iov[2].iov_len = FILESIZE-(PAGESIZE+300);
+  check(writev(fd, iov, 3)==FILESIZE, "writev");
+  close(fd);
+
+  fd = open(name);
+  if (fd==-1) {
+    printf("Unable to open %s\n", name);
+    return 1;
+  }
+
+  /* the buffers hold more than the file, so the read comes up short */
+  iov[0].iov_base = buf;
+  iov[0].iov_len = 10;
+  iov[1].iov_base = buf+10;
+  iov[1].iov_len = 2*PAGESIZE;
+  iov[2].iov_base = buf+10+2*PAGESIZE;
+  iov[2].iov_len = PAGESIZE-10;
+  check(readv(fd, iov, 3)==FILESIZE, "short readv");
+  check(matches(buf, 0, FILESIZE), "readv contents");
+  check(read(fd, buf, 10)==0, "read at end of file");
+  check(readv(fd, iov, -1)==-1, "readv with a negative count");
+  close(fd);
+
+  fd = open(name);
+  if (fd==-1) {
+    printf("Unable to open %s\n", name);
+    return 1;
+  }
+
+  check(read(fd, buf, 10)==10 && matches(buf, 0, 10), "read");
+
+  /* a positional read crossing a page of buf, away from the position */
+  check(pread(fd, buf+PAGESIZE-50, 100, 2000)==100 &&
+	matches(buf+PAGESIZE-50, 2000, 100), "pread");
+  check(read(fd, buf, 10)==10 && matches(buf, 10, 10),
+	"read after pread");
+
+  data[500] = 'X';
+  data[501] = 'Y';
+  data[502] = 'Z';
+  check(pwrite(fd, data+500, 3, 500)==3, "pwrite");
+  check(read(fd, buf, 10)==10 && matches(buf, 20, 10),
+	"read after pwrite");
+  check(pread(fd, buf, 3, 500)==3 && matches(buf, 500, 3),
+	"pread after pwrite");
+
+  /* short and empty positional reads */
+  check(pread(fd, buf, 100, FILESIZE-40)==40 &&
+	matches(buf, FILESIZE-40, 40), "short pread");
+  check(pread(fd, buf, 100, FILESIZE)==0, "pread at end of file");
+  check(pread(fd, buf, 10, -1)==-1, "pread at a negative offset");
+
+  close(fd);
+  unlink(name);
+
+  if (failures==0)
+    printf("iotest: ok\n");
+
+  return failures;
+}
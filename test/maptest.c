@@ -0,0 +1,124 @@
+/* maptest.c
+ *    Test program for mmap().
+ *
+ *    Maps a file and checks that the map and read() and write() on the same
+ *    file descriptor see each other's changes, that closing the descriptor
+ *    unmaps the file and writes the map back, and that a process exiting
+ *    with a file still mapped writes it back too. Returns the number of
+ *    checks that failed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define PAGESIZE	1024
+#define FILESIZE	(2*PAGESIZE+100)	/* ends partway into a page */
+
+/* well past the program and its heap */
+#define MAPADDRESS	((char *) 0x800000)
+
+char *name = "maptest.dat";
+
+char data[FILESIZE];
+char buf[FILESIZE];
+
+int failures = 0;
+
+void check(int ok, char *what)
+{
+  if (!ok) {
+    printf("maptest: %s failed\n", what);
+    failures++;
+  }
+}
+
+int same(char *p, char *q, int count)
+{
+  int i;
+
+  for (i=0; i<count; i++) {
+    if (p[i] != q[i])
+      return 0;
+  }
+
+  return 1;
+}
+
+/* read the whole file through a new descriptor */
+int readfile()
+{
+  int fd, amount;
+
+  fd = open(name);
+  if (fd==-1)
+    return 0;
+
+  amount = read(fd, buf, FILESIZE);
+  close(fd);
+
+  return (amount==FILESIZE);
+}
+
+int main(int argc, char** argv)
+{
+  int fd, pid, status, i;
+  char *map = MAPADDRESS;
+
+  for (i=0; i<FILESIZE; i++)
+    data[i] = 'a' + i%26;
+
+  fd = creat(name);
+  if (fd==-1) {
+    printf("Unable to create %s\n", name);
+    return 1;
+  }
+  check(write(fd, data, FILESIZE)==FILESIZE, "write");
+  close(fd);
+
+  fd = open(name);
+  check(mmap(fd, map)==FILESIZE, "mmap");
+  check(mmap(fd, map+4*PAGESIZE)==-1, "mapping a file twice");
+  check(same(map, data, FILESIZE), "mapped contents");
+
+  /* the map and the descriptor share the file's pages */
+  map[10] = data[10] = 'X';
+  check(read(fd, buf, 20)==20 && same(buf, data, 20), "read of the map");
+  data[PAGESIZE] = 'Y';
+  check(pwrite(fd, data+PAGESIZE, 1, PAGESIZE)==1 && map[PAGESIZE]=='Y',
+	"map after pwrite");
+
+  /* closing unmaps the file and writes it back */
+  map[FILESIZE-1] = data[FILESIZE-1] = 'Z';
+  close(fd);
+  check(readfile() && same(buf, data, FILESIZE), "writeback at close");
+
+  pid = fork();
+  if (pid==0) {
+    /* should be killed */
+    map[0] = 'W';
+    exit(0);
+  }
+  check(pid!=-1 && join(pid, &status)==0, "access after unmapping");
+
+  /* a process that exits with the file mapped writes it back as well */
+  pid = fork();
+  if (pid==0) {
+    fd = open(name);
+    if (mmap(fd, map)!=FILESIZE)
+      exit(1);
+
+    map[20] = 'V';
+    exit(0);
+  }
+  data[20] = 'V';
+  check(pid!=-1 && join(pid, &status)==1 && status==0, "child mapping");
+  check(readfile() && same(buf, data, FILESIZE), "writeback at exit");
+
+  unlink(name);
+
+  if (failures==0)
+    printf("maptest: ok\n");
+
+  return failures;
+}
@@ -0,0 +1,132 @@
+/* ringtest.c
+ *    Test program for io_setup() and io_enter().
+ *
+ *    Submits a batch of writes at explicit offsets, then a batch of reads of
+ *    the same blocks in another order, along with a read past the end of the
+ *    file and one of a bad file descriptor, and checks every completion.
+ *    Returns the number of checks that failed.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define ENTRIES		8
+#define BLOCKS		4
+#define BLOCKSIZE	300
+
+char *name = "ringtest.dat";
+
+struct io_sqe sqes[ENTRIES];
+struct io_cqe cqes[ENTRIES];
+struct io_ring ring;
+
+char out[BLOCKS][BLOCKSIZE];
+char in[BLOCKS][BLOCKSIZE];
+char extra[BLOCKSIZE];
+
+/* the result of each operation, by user_data, or -2 if it has not completed */
+int results[ENTRIES];
+
+int failures = 0;
+
+void check(int ok, char *what)
+{
+  if (!ok) {
+    printf("ringtest: %s failed\n", what);
+    failures++;
+  }
+}
+
+void submit(int opcode, int fd, char *buffer, int count, int offset,
+	    int user_data)
+{
+  struct io_sqe *sqe = &sqes[ring.sq_tail % ENTRIES];
+
+  sqe->opcode = opcode;
+  sqe->fileDescriptor = fd;
+  sqe->buffer = buffer;
+  sqe->count = count;
+  sqe->offset = offset;
+  sqe->user_data = user_data;
+  ring.sq_tail++;
+
+  results[user_data] = -2;
+}
+
+/* submit everything queued, wait for all of it, and collect the results */
+void enter(int count)
+{
+  struct io_cqe *cqe;
+
+  check(io_enter(count, count)==count, "io_enter");
+
+  while (ring.cq_head != ring.cq_tail) {
+    cqe = &cqes[ring.cq_head % ENTRIES];
+    if (cqe->user_data < 0 || cqe->user_data >= ENTRIES ||
+	results[cqe->user_data] != -2)
+      check(0, "completion user_data");
+    else
+      results[cqe->user_data] = cqe->result;
+    ring.cq_head++;
+  }
+}
+
+int main(int argc, char** argv)
+{
+  int fd, i, j;
+
+  for (i=0; i<BLOCKS; i++) {
+    for (j=0; j<BLOCKSIZE; j++)
+      out[i][j] = 'a' + i;
+  }
+
+  fd = creat(name);
+  if (fd==-1) {
+    printf("Unable to create %s\n", name);
+    return 1;
+  }
+
+  ring.entries = ENTRIES;
+  ring.sqes = sqes;
+  ring.cqes = cqes;
+  if (io_setup(&ring)==-1) {
+    printf("ringtest: io_setup failed\n");
+    return 1;
+  }
+
+  /* write the blocks out of order, each at its own offset */
+  for (i=BLOCKS-1; i>=0; i--)
+    submit(ioWrite, fd, out[i], BLOCKSIZE, i*BLOCKSIZE, i);
+  enter(BLOCKS);
+
+  for (i=0; i<BLOCKS; i++)
+    check(results[i]==BLOCKSIZE, "write completion");
+
+  /* read them back in another order, plus two that fail or come up empty */
+  for (i=0; i<BLOCKS; i++)
+    submit(ioRead, fd, in[i], BLOCKSIZE, i*BLOCKSIZE, i);
+  submit(ioRead, fd, extra, BLOCKSIZE, BLOCKS*BLOCKSIZE, BLOCKS);
+  submit(ioRead, -1, extra, BLOCKSIZE, 0, BLOCKS+1);
+  enter(BLOCKS+2);
+
+  for (i=0; i<BLOCKS; i++) {
+    check(results[i]==BLOCKSIZE, "read completion");
+    for (j=0; j<BLOCKSIZE; j++) {
+      if (in[i][j] != out[i][j]) {
+	check(0, "read contents");
+	break;
+      }
+    }
+  }
+  check(results[BLOCKS]==0, "read at end of file");
+  check(results[BLOCKS+1]==-1, "read of a bad file descriptor");
+
+  close(fd);
+  unlink(name);
+
+  if (failures==0)
+    printf("ringtest: ok\n");
+
+  return failures;
+}
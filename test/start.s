@@ -67,3 +67,11 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(pread, syscallPread)
+	SYSCALLSTUB(pwrite, syscallPwrite)
+	SYSCALLSTUB(io_setup, syscallIoSetup)
+	SYSCALLSTUB(io_enter, syscallIoEnter)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(sbrk, syscallSbrk)
@@ -25,6 +25,14 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallReadv		13
+#define syscallWritev		14
+#define syscallPread		15
+#define syscallPwrite		16
+#define syscallIoSetup		17
+#define syscallIoEnter		18
+#define syscallFork		19
+#define syscallSbrk		20
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -109,6 +117,20 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a new process that is a copy of the current one. The child has the
+ * same memory contents, shares the same open file descriptors (including
+ * their file positions), and continues running from the same point.
+ *
+ * Memory is copied lazily: the two processes share each page until one of
+ * them writes to it.
+ *
+ * Returns the child's process ID to the parent, and 0 to the child. The child
+ * can be joined like one created by exec(). Returns -1 if the child could not
+ * be created.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -181,6 +203,127 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/**
+ * One buffer of a vectored read or write: iov_len bytes starting at iov_base.
+ */
+struct iovec {
+    void *iov_base;
+    int iov_len;
+};
+
+/**
+ * Like read(), but scatter the data into the iovcnt buffers described by iov,
+ * filling each buffer completely before moving on to the next. The whole
+ * batch is done with a single trap into the kernel.
+ *
+ * Returns the total number of bytes read, which is smaller than the total
+ * length of the buffers under the same conditions as for read(). On error,
+ * -1 is returned. This can happen if fileDescriptor is invalid, if iovcnt is
+ * negative or larger than 64, or if the iov array is invalid.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but gather the data from the iovcnt buffers described by iov,
+ * in order, with a single trap into the kernel.
+ *
+ * Returns the total number of bytes written, or -1 under the same conditions
+ * as for readv().
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like read(), but read from the specified byte offset in the file, and leave
+ * the file position unchanged. Only files on disk can be read this way;
+ * pread() on a stream returns -1.
+ *
+ * Returns the number of bytes read, or -1 if an error occurred (including if
+ * offset is negative).
+ */
+int pread(int fileDescriptor, void *buffer, int count, int offset);
+
+/**
+ * Like write(), but write at the specified byte offset in the file, and leave
+ * the file position unchanged. Only files on disk can be written this way;
+ * pwrite() on a stream returns -1.
+ *
+ * Returns the number of bytes written, or -1 if an error occurred (including
+ * if offset is negative).
+ */
+int pwrite(int fileDescriptor, void *buffer, int count, int offset);
+
+/* ASYNCHRONOUS I/O SYSCALLS: io_setup(), io_enter() */
+
+#define ioRead			0
+#define ioWrite			1
+
+/**
+ * A submission entry: read or write count bytes between buffer and the file
+ * referred to by fileDescriptor, at the specified byte offset, or at the file
+ * position if offset is -1. user_data is copied into the completion entry.
+ */
+struct io_sqe {
+    int opcode;
+    int fileDescriptor;
+    void *buffer;
+    int count;
+    int offset;
+    int user_data;
+};
+
+/**
+ * A completion entry: result is what read() or write() would have returned.
+ */
+struct io_cqe {
+    int user_data;
+    int result;
+};
+
+/**
+ * A pair of rings shared between a process and the kernel. Each ring has
+ * entries slots, which must be a power of two no larger than 256. Entry i of
+ * a ring lives in slot (i % entries). The ring holds the entries from its
+ * head (inclusive) up to its tail (exclusive); the indices only ever
+ * increase.
+ *
+ * The program adds submissions by filling in sqes[sq_tail % entries] and then
+ * incrementing sq_tail, and consumes completions from cqes[cq_head % entries]
+ * by incrementing cq_head. The kernel advances sq_head and cq_tail.
+ */
+struct io_ring {
+    int sq_head;
+    int sq_tail;
+    int cq_head;
+    int cq_tail;
+    int entries;
+    struct io_sqe *sqes;
+    struct io_cqe *cqes;
+};
+
+/**
+ * Register ring for asynchronous I/O, with both of its rings empty. The
+ * entries, sqes and cqes fields must already be filled in. A process can only
+ * call io_setup() once.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int io_setup(struct io_ring *ring);
+
+/**
+ * Submit up to toSubmit entries from the submission ring, and then wait until
+ * at least minComplete completions are waiting in the completion ring (or
+ * until nothing is left in flight). Fewer entries are submitted if the
+ * completion ring does not have room for their completions. Entries that are
+ * invalid complete immediately with a result of -1.
+ *
+ * Operations are done by kernel threads, so one process can have many slow
+ * operations in flight at once. Operations that use the file position may
+ * complete in any order.
+ *
+ * Returns the number of entries submitted, or -1 if an error occurred.
+ */
+int io_enter(int toSubmit, int minComplete);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or stream
  * and may be reused.
@@ -218,8 +361,8 @@ int unlink(char *name);
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
  * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * The map and further calls to read() and write() on this file descriptor
+ * share the same cached pages, so each sees what the other writes.
  *
  * When the file descriptor is closed, all remaining dirty pages of the map
  * will be flushed to disk and the map will be removed.
@@ -228,6 +371,19 @@ int unlink(char *name);
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Move the program break, the end of the heap, by increment bytes, which may
+ * be negative to give memory back. The heap starts just past the program's
+ * arguments, and new heap memory reads as zeros. Memory is only allocated
+ * as it is touched.
+ *
+ * The heap cannot grow into a mapped file.
+ *
+ * Returns the old program break on success, or (char *) -1 if an error
+ * occurred.
+ */
+char *sbrk(int increment);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
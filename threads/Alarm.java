@@ -2,17 +2,22 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.Comparator;
-import java.util.PriorityQueue;
-
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending timeouts are kept in a <i>hierarchical timing wheel</i>. Time is
+ * divided into units of <tt>unitTicks</tt> clock ticks. Level 0 of the wheel
+ * has one slot per unit for the next <tt>wheelSize</tt> units; each slot of
+ * level <i>n</i> covers a whole turn of level <i>n-1</i>. Scheduling a
+ * timeout links it into a single slot, cancelling it unlinks it, and each
+ * timer interrupt only looks at the slots that time has moved past, moving
+ * the timeouts of a higher level slot down a level whenever the level below
+ * it completes a turn. All three operations are therefore O(1) amortized, no
+ * matter how many timeouts are pending.
  */
 public class Alarm {
-
-    PriorityQueue<WaitingThread> waitingQueue = new PriorityQueue<WaitingThread>(10, new WaitingComparator());
-
     /**
      * Allocate a new Alarm. Set the machine's timer interrupt handler to this
      * alarm's callback.
@@ -21,6 +26,9 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
+	for (int level=0; level<numLevels; level++)
+	    wheel[level] = new Timeout[wheelSize];
+
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
@@ -28,25 +36,19 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Fires every
+     * timeout that has expired, then causes the current thread to yield,
+     * forcing a context switch if there is another thread that should be
+     * run.
      */
-    public void timerInterrupt() 
-    {
-    	// Disable machine interrupts to allow for atomicity
-    	Machine.interrupt().disable();
-
-    	while (!waitingQueue.isEmpty() &&
-			    Machine.timer().getTime() >= waitingQueue.peek().wakeUpTime)
-	    {
-	    	waitingQueue.poll().thread.ready();
-	    }
+    public void timerInterrupt() {
+	boolean intStatus = Machine.interrupt().disable();
 
-	    KThread.currentThread().yield();
+	advance(Machine.timer().getTime());
 
-    	// Re-enable machine interrupts
-       Machine.interrupt().enable();
+	KThread.yield();
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -63,56 +65,288 @@ public class Alarm {
      *
      * @see	nachos.machine.Timer#getTime()
      */
-    public void waitUntil(long offset)
-    {
-	    // Disable machine interrupts to allow for atomicity
-	    Machine.interrupt().disable();
+    public void waitUntil(long x) {
+	boolean intStatus = Machine.interrupt().disable();
 
-	    // The minimum amount the machine time should be at before this thread is woken
-	    long wakeTime = Machine.timer().getTime() + offset;
+	// sleeping threads can't cancel, so their timeouts are recycled
+	Timeout timeout = freeTimeouts;
+	if (timeout != null)
+	    freeTimeouts = timeout.next;
+	else
+	    timeout = new Timeout();
 
-	    // Create a new thread with this value in mind
-	    // TODO: Replace this with a map instead of creating a new class
-        WaitingThread wt = new WaitingThread( wakeTime, KThread.currentThread() );
+	timeout.thread = KThread.currentThread();
+	timeout.recycle = true;
+	schedule(timeout, x);
 
-        waitingQueue.add(wt);
+	KThread.sleep();
 
-        KThread.currentThread().sleep();
+	Machine.interrupt().restore(intStatus);
+    }
 
-	    // Re-enable machine interrupts
-	    Machine.interrupt().enable();
+    /**
+     * Run <i>handler</i> during the first timer interrupt at least <i>x</i>
+     * ticks from now, unless the returned timeout is cancelled first. The
+     * handler is called from the timer interrupt handler, with interrupts
+     * disabled, so it must not block.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @param	handler	the callback to run when the timeout expires.
+     * @return	a handle that can be used to cancel the timeout.
+     */
+    public Timeout schedule(long x, Runnable handler) {
+	Lib.assertTrue(handler != null);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Timeout timeout = new Timeout();
+	timeout.handler = handler;
+	schedule(timeout, x);
+
+	Machine.interrupt().restore(intStatus);
+
+	return timeout;
     }
 
-    public class WaitingThread
-    {
-        long wakeUpTime;
-        KThread thread;
+    /**
+     * A pending timeout, returned by <tt>schedule()</tt>.
+     */
+    public class Timeout {
+	private Timeout() {
+	}
 
-        WaitingThread( long wakeUpTime, KThread thread )
-        {
-            this.wakeUpTime = wakeUpTime;
-            this.thread = thread;
-        }
+	/**
+	 * Cancel this timeout, if it has not expired yet.
+	 *
+	 * @return	<tt>true</tt> if the timeout was pending, and will now
+	 *		never expire.
+	 */
+	public boolean cancel() {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    boolean wasPending = pending;
+	    if (pending) {
+		unlink(this);
+		pending = false;
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+
+	    return wasPending;
+	}
+
+	/**
+	 * Test whether this timeout has expired. A timeout that was cancelled
+	 * before it expired never expires.
+	 *
+	 * @return	<tt>true</tt> if this timeout has expired.
+	 */
+	public boolean hasExpired() {
+	    return expired;
+	}
+
+	private long wakeTime;
+	private Runnable handler = null;
+	private KThread thread = null;
+	private boolean recycle = false;
+
+	private boolean pending = false, expired = false;
+	private int level, slot;
+	private Timeout prev, next;
+	/** The next timeout due in the slot being expired. */
+	private Timeout nextDue = null;
+    }
+
+    private void schedule(Timeout timeout, long x) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long now = Machine.timer().getTime();
+
+	// nothing is pending, so the wheel can jump straight to the present
+	if (numPending == 0)
+	    currentUnit = now / unitTicks;
+
+	timeout.wakeTime = now + Math.max(x, 0);
+	timeout.pending = true;
+	timeout.expired = false;
+	link(timeout);
     }
 
-    public class WaitingComparator implements Comparator<WaitingThread>
-    {
-        @Override
-        public int compare(WaitingThread o1, WaitingThread o2)
-        {
-            if (o1.wakeUpTime == o2.wakeUpTime)
-            {
-                return 0;
-
-            }
-            else if (o1.wakeUpTime < o2.wakeUpTime)
-            {
-                return -1;
-            }
-            else
-            {
-                return 1;
-            }
-        }
+    /**
+     * Link a pending timeout into the slot for its wake time, relative to
+     * <tt>currentUnit</tt>.
+     */
+    private void link(Timeout timeout) {
+	long unit = Math.max(timeout.wakeTime / unitTicks, currentUnit);
+
+	// use the lowest level whose current turn includes the wake time
+	int level = 0;
+	while (level < numLevels &&
+	       (unit >> (levelBits*(level+1))) !=
+	       (currentUnit >> (levelBits*(level+1))))
+	    level++;
+
+	if (level == numLevels) {
+	    // beyond the top level; look again when the top level turns over
+	    level = numLevels-1;
+	    timeout.slot = (int) ((currentUnit >> (levelBits*level)) - 1)
+		& (wheelSize-1);
+	}
+	else {
+	    timeout.slot = (int) (unit >> (levelBits*level)) & (wheelSize-1);
+	}
+	timeout.level = level;
+
+	Timeout head = wheel[level][timeout.slot];
+	timeout.prev = null;
+	timeout.next = head;
+	if (head != null)
+	    head.prev = timeout;
+	wheel[level][timeout.slot] = timeout;
+
+	numPending++;
     }
+
+    private void unlink(Timeout timeout) {
+	if (timeout.prev != null)
+	    timeout.prev.next = timeout.next;
+	else
+	    wheel[timeout.level][timeout.slot] = timeout.next;
+
+	if (timeout.next != null)
+	    timeout.next.prev = timeout.prev;
+
+	timeout.prev = timeout.next = null;
+	numPending--;
+    }
+
+    /**
+     * Fire every timeout whose wake time is at or before <i>now</i>.
+     */
+    private void advance(long now) {
+	long targetUnit = now / unitTicks;
+
+	while (numPending > 0 && currentUnit < targetUnit) {
+	    // everything in this unit is due
+	    expireSlot(0, (int) currentUnit & (wheelSize-1), Long.MAX_VALUE);
+
+	    currentUnit++;
+
+	    // when a level completes a turn, spread the next slot of the
+	    // level above it over the levels below
+	    int top = 0;
+	    while (top+1 < numLevels &&
+		   (currentUnit & ((1L << (levelBits*(top+1))) - 1)) == 0)
+		top++;
+
+	    for (int level=top; level>0; level--)
+		cascade(level, (int) (currentUnit >> (levelBits*level))
+			& (wheelSize-1));
+	}
+
+	if (numPending == 0) {
+	    currentUnit = targetUnit;
+	    return;
+	}
+
+	// only part of the current unit has passed
+	expireSlot(0, (int) currentUnit & (wheelSize-1), now);
+    }
+
+    private void expireSlot(int level, int slot, long now) {
+	// a handler may cancel or schedule other timeouts in this slot, so
+	// collect the due ones before firing any
+	Timeout due = null;
+	for (Timeout timeout=wheel[level][slot]; timeout!=null;
+	     timeout=timeout.next) {
+	    if (timeout.wakeTime <= now) {
+		timeout.nextDue = due;
+		due = timeout;
+	    }
+	}
+
+	while (due != null) {
+	    Timeout timeout = due;
+	    due = timeout.nextDue;
+	    timeout.nextDue = null;
+
+	    // skip any that an earlier handler cancelled
+	    if (!timeout.pending)
+		continue;
+
+	    unlink(timeout);
+	    timeout.pending = false;
+	    timeout.expired = true;
+	    fire(timeout);
+	}
+    }
+
+    private void cascade(int level, int slot) {
+	Timeout timeout = wheel[level][slot];
+
+	while (timeout != null) {
+	    Timeout next = timeout.next;
+
+	    unlink(timeout);
+	    link(timeout);
+
+	    timeout = next;
+	}
+    }
+
+    private void fire(Timeout timeout) {
+	if (timeout.thread != null) {
+	    timeout.thread.ready();
+	    timeout.thread = null;
+	}
+	else {
+	    timeout.handler.run();
+	}
+
+	if (timeout.recycle) {
+	    timeout.next = freeTimeouts;
+	    freeTimeouts = timeout;
+	}
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	Alarm alarm = ThreadedKernel.alarm;
+	final Timeout[] timeouts = new Timeout[3];
+	final int[] fired = new int[] { 0 };
+
+	// every handler cancels the other timeouts, which share its slot
+	boolean intStatus = Machine.interrupt().disable();
+	for (int i=0; i<timeouts.length; i++) {
+	    timeouts[i] = alarm.schedule(1000, new Runnable() {
+		    public void run() {
+			fired[0]++;
+			for (int j=0; j<timeouts.length; j++)
+			    timeouts[j].cancel();
+		    }
+		});
+	}
+	Machine.interrupt().restore(intStatus);
+
+	alarm.waitUntil(2000);
+
+	Lib.assertTrue(fired[0] == 1);
+	for (int i=0; i<timeouts.length; i++)
+	    Lib.assertTrue(!timeouts[i].cancel());
+    }
+
+    /** The number of clock ticks covered by one slot of level 0. */
+    private static final long unitTicks = 512;
+    private static final int levelBits = 6;
+    private static final int wheelSize = 1 << levelBits;
+    private static final int numLevels = 4;
+
+    private Timeout[][] wheel = new Timeout[numLevels][];
+    private long currentUnit = 0;
+    private int numPending = 0;
+
+    /** Expired <tt>waitUntil()</tt> timeouts, ready to be reused. */
+    private Timeout freeTimeouts = null;
 }
@@ -0,0 +1,325 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> carries a stream of 32-bit words from any number of sending
+ * threads to any number of receiving threads, in batches.
+ *
+ * <p>
+ * A channel with a positive <i>capacity</i> is a bounded buffer:
+ * <tt>send()</tt> only blocks while the buffer is full, and
+ * <tt>receive()</tt> only blocks while it is empty. Each call moves as many
+ * words as it can under one acquisition of the channel lock, so a pipeline
+ * pays for synchronization once per batch rather than once per word.
+ *
+ * <p>
+ * A channel with capacity zero is synchronous, like <tt>Communicator</tt>:
+ * a sender offers its words to the receivers, who copy them straight out of
+ * the sender's array, and <tt>send()</tt> does not return until every word
+ * it offered has been received. Only one sender makes an offer at a time.
+ *
+ * <p>
+ * Words from a single <tt>send()</tt> are received in order, but when there
+ * are several senders or receivers, one batch may be split between
+ * receivers, and batches from different senders may be interleaved.
+ */
+public class Channel {
+    /**
+     * Allocate a new channel.
+     *
+     * @param	capacity	the number of words the channel can buffer, or
+     *				0 for a synchronous channel.
+     */
+    public Channel(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	this.capacity = capacity;
+	buffer = new int[capacity];
+
+	lock = new Lock();
+	notEmpty = new Condition2(lock);
+	notFull = new Condition2(lock);
+	offerTaken = new Condition2(lock);
+    }
+
+    /**
+     * Send a single word through this channel.
+     *
+     * @param	word	the word to send.
+     */
+    public void send(int word) {
+	lock.acquire();
+
+	if (capacity > 0) {
+	    while (count == capacity)
+		notFull.sleep();
+
+	    buffer[(head + count) % capacity] = word;
+	    count++;
+	    notEmpty.wake();
+	}
+	else {
+	    waitToOffer();
+	    singleWord[0] = word;
+	    offer(singleWord, 0, 1);
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Send all of the specified words through this channel, blocking only
+     * while the channel is full. Same as
+     * <tt>send(words, 0, words.length)</tt>.
+     *
+     * @param	words	the words to send.
+     */
+    public void send(int[] words) {
+	send(words, 0, words.length);
+    }
+
+    /**
+     * Send words from the specified array through this channel, blocking only
+     * while the channel is full. For a synchronous channel, does not return
+     * until all of the words have been received.
+     *
+     * @param	words	the array containing the words to send.
+     * @param	offset	the first word to send from the array.
+     * @param	length	the number of words to send.
+     */
+    public void send(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= words.length);
+
+	if (length == 0)
+	    return;
+
+	lock.acquire();
+
+	if (capacity > 0) {
+	    while (length > 0) {
+		while (count == capacity)
+		    notFull.sleep();
+
+		int amount = Math.min(length, capacity - count);
+		copyIn(words, offset, amount);
+		offset += amount;
+		length -= amount;
+
+		notEmpty.wake();
+	    }
+
+	    // pass the turn on to another sender if there is still room
+	    if (count < capacity)
+		notFull.wake();
+	}
+	else {
+	    waitToOffer();
+	    offer(words, offset, length);
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Receive a single word from this channel, blocking until one is
+     * available.
+     *
+     * @return	the word received.
+     */
+    public int receive() {
+	lock.acquire();
+
+	waitForWords();
+
+	int word;
+	if (count > 0) {
+	    word = buffer[head];
+	    head = (head + 1) % capacity;
+	    count--;
+	    tookFromBuffer();
+	}
+	else {
+	    word = offerWords[offerPos++];
+	    tookFromOffer();
+	}
+
+	lock.release();
+
+	return word;
+    }
+
+    /**
+     * Receive up to <tt>buf.length</tt> words from this channel. Same as
+     * <tt>receive(buf, 0, buf.length)</tt>.
+     *
+     * @param	buf	the array where the words will be stored.
+     * @return	the number of words received.
+     */
+    public int receive(int[] buf) {
+	return receive(buf, 0, buf.length);
+    }
+
+    /**
+     * Receive up to <i>length</i> words from this channel, blocking only
+     * until at least one word is available.
+     *
+     * @param	buf	the array where the words will be stored.
+     * @param	offset	the first word to write in the array.
+     * @param	length	the maximum number of words to receive.
+     * @return	the number of words received, which is at least one unless
+     *		<i>length</i> is 0.
+     */
+    public int receive(int[] buf, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= buf.length);
+
+	if (length == 0)
+	    return 0;
+
+	lock.acquire();
+
+	waitForWords();
+
+	int amount;
+	if (count > 0) {
+	    amount = Math.min(length, count);
+	    copyOut(buf, offset, amount);
+	    tookFromBuffer();
+	}
+	else {
+	    amount = Math.min(length, offerEnd - offerPos);
+	    System.arraycopy(offerWords, offerPos, buf, offset, amount);
+	    offerPos += amount;
+	    tookFromOffer();
+	}
+
+	lock.release();
+
+	return amount;
+    }
+
+    private void waitForWords() {
+	while (count == 0 && offerPos == offerEnd)
+	    notEmpty.sleep();
+    }
+
+    private void tookFromBuffer() {
+	notFull.wake();
+
+	// let another receiver take what we left behind
+	if (count > 0)
+	    notEmpty.wake();
+    }
+
+    private void tookFromOffer() {
+	if (offerPos == offerEnd)
+	    offerTaken.wake();
+	else
+	    notEmpty.wake();
+    }
+
+    private void waitToOffer() {
+	while (offerWords != null)
+	    notFull.sleep();
+    }
+
+    /**
+     * Offer words directly to receivers, and wait until they have all been
+     * taken. Only used by synchronous channels.
+     */
+    private void offer(int[] words, int offset, int length) {
+	offerWords = words;
+	offerPos = offset;
+	offerEnd = offset + length;
+
+	notEmpty.wake();
+
+	while (offerPos < offerEnd)
+	    offerTaken.sleep();
+
+	offerWords = null;
+	offerPos = offerEnd = 0;
+
+	// let the next sender make its offer
+	notFull.wake();
+    }
+
+    private void copyIn(int[] words, int offset, int amount) {
+	int tail = (head + count) % capacity;
+	int first = Math.min(amount, capacity - tail);
+
+	System.arraycopy(words, offset, buffer, tail, first);
+	System.arraycopy(words, offset+first, buffer, 0, amount-first);
+	count += amount;
+    }
+
+    private void copyOut(int[] buf, int offset, int amount) {
+	int first = Math.min(amount, capacity - head);
+
+	System.arraycopy(buffer, head, buf, offset, first);
+	System.arraycopy(buffer, 0, buf, offset+first, amount-first);
+	head = (head + amount) % capacity;
+	count -= amount;
+    }
+
+    private static class PingTest implements Runnable {
+	PingTest(Channel channel, int total) {
+	    this.channel = channel;
+	    this.total = total;
+	}
+
+	public void run() {
+	    int[] words = new int[7];
+	    int next = 0;
+
+	    for (int i=0; i<total; i+=words.length) {
+		int amount = Math.min(words.length, total-i);
+		for (int j=0; j<amount; j++)
+		    words[j] = next++;
+		channel.send(words, 0, amount);
+	    }
+	}
+
+	private Channel channel;
+	private int total;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	for (int capacity=0; capacity<=8; capacity+=8) {
+	    Channel channel = new Channel(capacity);
+	    int total = 50;
+
+	    new KThread(new PingTest(channel, total)).setName("ping").fork();
+
+	    int[] buf = new int[5];
+	    int expected = 0;
+	    while (expected < total) {
+		int amount = channel.receive(buf);
+		Lib.assertTrue(amount > 0);
+		for (int j=0; j<amount; j++)
+		    Lib.assertTrue(buf[j] == expected++);
+	    }
+	}
+    }
+
+    private int capacity;
+
+    /** The buffered words, in a circular array of <tt>capacity</tt> words. */
+    private int[] buffer;
+    private int head = 0, count = 0;
+
+    /** The words currently being offered by a synchronous sender. */
+    private int[] offerWords = null;
+    private int offerPos = 0, offerEnd = 0;
+    private int[] singleWord = new int[1];
+
+    private Lock lock;
+    private Condition2 notEmpty;
+    private Condition2 notFull;
+    private Condition2 offerTaken;
+}
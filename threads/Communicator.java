@@ -8,25 +8,19 @@ import nachos.machine.*;
  * and multiple threads can be waiting to <i>listen</i>. But there should never
  * be a time when both a speaker and a listener are waiting, because the two
  * threads can be paired off at this point.
+ *
+ * <p>
+ * A communicator is a synchronous <tt>Channel</tt> (one with capacity zero)
+ * that transfers one word at a time.
+ *
+ * @see	nachos.threads.Channel
  */
 public class Communicator {
     /**
      * Allocate a new communicator.
      */
-    Lock lock;
-    Condition speaker;
-    Condition spoke;
-    Condition listener;
-    Integer buffer;
-    int listeners;
-
     public Communicator() {
-        lock = new Lock();
-        speaker = new Condition(lock);
-        spoke = new Condition(lock);
-        listener = new Condition(lock);
-        buffer = null;
-        listeners = 0;
+	channel = new Channel(0);
     }
 
     /**
@@ -40,18 +34,7 @@ public class Communicator {
      * @param	word	the integer to transfer.
      */
     public void speak(int word) {
-        lock.acquire();
-
-        while(listeners <= 0 || buffer != null) {
-            speaker.sleep();
-        }
-
-        buffer = (Integer)word;
-        listener.wake();
-        spoke.sleep();
-
-        lock.release();
-        return;
+	channel.send(word);
     }
 
     /**
@@ -61,22 +44,8 @@ public class Communicator {
      * @return	the integer transferred.
      */    
     public int listen() {
-        lock.acquire();
-        listeners++;
-
-        while(buffer == null) {
-            speaker.wake();
-            listener.sleep();
-        }
-
-        int word = (int)buffer;
-        buffer = null;
-
-        spoke.wake();
-        speaker.wake();
-
-        listeners--;
-        lock.release();
-        return word;
+	return channel.receive();
     }
+
+    private Channel channel;
 }
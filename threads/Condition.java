@@ -64,6 +64,21 @@ public class Condition {
 	waitQueue = new LinkedList<Semaphore>();
     }
 
+    /**
+     * Allocate a new named condition variable. A named condition variable is
+     * recorded by the <tt>LockProfiler</tt>, if enabled; its wait time is the
+     * time from <tt>sleep()</tt> until the lock is reacquired.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	name		the name of this condition variable.
+     */
+    public Condition(Lock conditionLock, String name) {
+	this(conditionLock);
+
+	profile = LockProfiler.newRecord("Condition", name);
+    }
+
     /**
      * Atomically release the associated lock and go to sleep on this condition
      * variable until another thread wakes it using <tt>wake()</tt>. The
@@ -81,10 +96,17 @@ public class Condition {
 
 	Semaphore waiter = new Semaphore(0);
 	waitQueue.add(waiter);
+	long waitStart = (profile != null) ? profile.startWait() : 0;
 
 	conditionLock.release();
 	waiter.P();
 	conditionLock.acquire();	
+
+	if (profile != null) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    profile.acquired(waitStart, true);
+	    Machine.interrupt().restore(intStatus);
+	}
     }
 
     /**
@@ -111,4 +133,5 @@ public class Condition {
 
     private Lock conditionLock;
     private LinkedList<Semaphore> waitQueue;
+    private LockProfiler.Record profile = null;
 }
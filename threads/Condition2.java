@@ -2,14 +2,18 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-
 /**
  * An implementation of condition variables that disables interrupt()s for
  * synchronization.
  *
  * <p>
- * You must implement this.
+ * Unlike <tt>Condition</tt>, a woken thread is not placed on the ready queue.
+ * Instead, <tt>wake()</tt> moves it directly from this condition variable's
+ * wait queue onto the wait queue of the associated lock (<i>wait
+ * morphing</i>). Since the waker must hold the lock, the woken thread could
+ * not make progress anyway; it will be readied by <tt>Lock.release()</tt>
+ * once it actually owns the lock, so it is only scheduled once and never
+ * contends for the lock after waking up.
  *
  * @see	nachos.threads.Condition
  */
@@ -23,8 +27,22 @@ public class Condition2 {
      *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition2(Lock conditionLock) {
-		this.conditionLock = conditionLock;
-		this.waitQueue = new LinkedList<KThread>();
+	this.conditionLock = conditionLock;
+    }
+
+    /**
+     * Allocate a new named condition variable. A named condition variable is
+     * recorded by the <tt>LockProfiler</tt>, if enabled; its wait time is the
+     * time from <tt>sleep()</tt> until the lock is handed back.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	name		the name of this condition variable.
+     */
+    public Condition2(Lock conditionLock, String name) {
+	this(conditionLock);
+
+	profile = LockProfiler.newRecord("Condition2", name);
     }
 
     /**
@@ -34,25 +52,63 @@ public class Condition2 {
      * automatically reacquire the lock before <tt>sleep()</tt> returns.
      */
     public void sleep() {
-		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	long waitStart = (profile != null) ? profile.startWait() : 0;
+
+	waitQueue.waitForAccess(KThread.currentThread());
+	conditionLock.release();
+	KThread.sleep();
+
+	// the waker handed us the lock through its wait queue
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	if (profile != null)
+	    profile.acquired(waitStart, true);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Like <tt>sleep()</tt>, but give up waiting after at least
+     * <i>timeout</i> ticks. The timeout is measured by
+     * <tt>ThreadedKernel.alarm</tt>. Either way, the thread will reacquire the
+     * lock before this method returns.
+     *
+     * @param	timeout	the minimum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, or <tt>false</tt> if the timeout expired.
+     */
+    public boolean sleep(long timeout) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	long waitStart = (profile != null) ? profile.startWait() : 0;
+	KThread thread = KThread.currentThread();
 
-	    // Release the condition lock we have on this condition
-	    conditionLock.release();
+	if (timedWaiters == null) {
+	    // a thread that times out must still wait for the lock
+	    timedWaiters = new TimedWaiters() {
+		    void expired(KThread thread) {
+			conditionLock.handOff(thread);
+		    }
+		};
+	}
 
-		// This function needs atomicity so we lock the machine
-		Machine.interrupt().disable();
+	Alarm.Timeout handle = timedWaiters.add(thread, timeout);
+	waitQueue.waitForAccess(thread);
+	conditionLock.release();
+	KThread.sleep();
 
-		// Add the current thread to the linked list
-		waitQueue.add(KThread.currentThread());
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		// Put the thread to sleep while we wait
-		KThread.currentThread().sleep();
+	if (profile != null)
+	    profile.acquired(waitStart, true);
 
-	    // Re-enable machine interrupts
-	    Machine.interrupt().enable();
+	Machine.interrupt().restore(intStatus);
 
-		// Acquire conditions for the above thread
-	    conditionLock.acquire();
+	return !handle.hasExpired();
     }
 
     /**
@@ -60,20 +116,15 @@ public class Condition2 {
      * current thread must hold the associated lock.
      */
     public void wake() {
-		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		// If the wait queue is not empty
-		if (!waitQueue.isEmpty())
-		{
-			// Disable machine interrupts
-			Machine.interrupt().disable();
+	boolean intStatus = Machine.interrupt().disable();
 
-			// Wake the first thread within that thread queue
-			waitQueue.pollFirst().ready();
+	KThread thread = nextWaiter();
+	if (thread != null)
+	    conditionLock.morphWaiter(thread);
 
-			// Re-enable machine interrupts
-			Machine.interrupt().enable();
-		}
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -81,16 +132,84 @@ public class Condition2 {
      * thread must hold the associated lock.
      */
     public void wakeAll() {
-		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-
-		// While the wait queue is not empty
-		while (!waitQueue.isEmpty())
-		{
-			// Wake every single first thread until no threads remain
-			wake();
-		}
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread;
+	while ((thread = nextWaiter()) != null)
+	    conditionLock.morphWaiter(thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Dequeue the next sleeping thread, skipping threads whose timeout has
+     * already expired.
+     */
+    private KThread nextWaiter() {
+	KThread thread = waitQueue.nextThread();
+
+	while (thread != null && timedWaiters != null &&
+	       !timedWaiters.claim(thread))
+	    thread = waitQueue.nextThread();
+
+	return thread;
+    }
+
+    private static class PingTest implements Runnable {
+	PingTest(Lock lock, Condition2 ping, Condition2 pong, int[] turn) {
+	    this.lock = lock;
+	    this.ping = ping;
+	    this.pong = pong;
+	    this.turn = turn;
+	}
+
+	public void run() {
+	    lock.acquire();
+	    for (int i=0; i<10; i++) {
+		while (turn[0] != 1)
+		    ping.sleep();
+		turn[0] = 0;
+		pong.wakeAll();
+	    }
+	    lock.release();
+	}
+
+	private Lock lock;
+	private Condition2 ping;
+	private Condition2 pong;
+	private int[] turn;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	Lock lock = new Lock();
+	Condition2 ping = new Condition2(lock);
+	Condition2 pong = new Condition2(lock);
+	int[] turn = new int[] { 0 };
+
+	new KThread(new PingTest(lock, ping, pong, turn)).setName("ping").fork();
+
+	lock.acquire();
+	for (int i=0; i<10; i++) {
+	    turn[0] = 1;
+	    ping.wake();
+	    while (turn[0] != 0)
+		pong.sleep();
+	}
+
+	// a timed sleep gives up, but still returns holding the lock
+	Lib.assertTrue(!pong.sleep(1000));
+	Lib.assertTrue(lock.isHeldByCurrentThread());
+	lock.release();
     }
 
     private Lock conditionLock;
-    private LinkedList<KThread> waitQueue;
+    private LockProfiler.Record profile = null;
+    private TimedWaiters timedWaiters = null;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
 }
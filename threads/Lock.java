@@ -26,6 +26,16 @@ public class Lock {
     public Lock() {
     }
 
+    /**
+     * Allocate a new named lock. The lock will initially be <i>free</i>. A
+     * named lock is recorded by the <tt>LockProfiler</tt>, if enabled.
+     *
+     * @param	name	the name of this lock.
+     */
+    public Lock(String name) {
+	profile = LockProfiler.newRecord("Lock", name);
+    }
+
     /**
      * Atomically acquire this lock. The current thread must not already hold
      * this lock.
@@ -35,8 +45,10 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
+	long waitStart = (profile != null) ? profile.startWait() : 0;
+	boolean contended = (lockHolder != null);
 
-	if (lockHolder != null) {
+	if (contended) {
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
 	}
@@ -47,6 +59,9 @@ public class Lock {
 
 	Lib.assertTrue(lockHolder == thread);
 
+	if (profile != null)
+	    profile.acquired(waitStart, contended);
+
 	Machine.interrupt().restore(intStatus);
     }
 
@@ -58,12 +73,52 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	if (profile != null)
+	    profile.released();
+
 	if ((lockHolder = waitQueue.nextThread()) != null)
 	    lockHolder.ready();
 	
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Queue the specified thread to receive this lock when it is next
+     * released, without readying it. <tt>Lock.release()</tt> will ready the
+     * thread once it has been handed ownership. The current thread must hold
+     * this lock, and <i>thread</i> must be blocked.
+     *
+     * @param	thread	the blocked thread to queue on this lock.
+     *
+     * @see	nachos.threads.Condition2#wake
+     */
+    void morphWaiter(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	waitQueue.waitForAccess(thread);
+    }
+
+    /**
+     * Acquire this lock on behalf of the specified blocked thread, readying it
+     * once it owns the lock. Unlike <tt>morphWaiter()</tt>, this may be called
+     * from any context, such as a timer interrupt handler.
+     *
+     * @param	thread	the blocked thread to give this lock to.
+     */
+    void handOff(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (lockHolder == null) {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	    thread.ready();
+	}
+	else {
+	    waitQueue.waitForAccess(thread);
+	}
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -74,6 +129,7 @@ public class Lock {
     }
 
     private KThread lockHolder = null;
+    private LockProfiler.Record profile = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
 }
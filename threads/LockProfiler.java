@@ -0,0 +1,182 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects contention statistics for named synchronization primitives.
+ * Profiling is opt-in: it is only enabled if the <tt>nachos.conf</tt> key
+ * <tt>ThreadedKernel.profileLocks</tt> is <tt>true</tt>, and only primitives
+ * given a name when they are constructed (e.g. <tt>new Lock("fs")</tt>) are
+ * recorded.
+ *
+ * <p>
+ * For each instance, the profiler records the number of acquisitions, how
+ * many of them had to wait, the total and maximum time spent waiting, the
+ * threads that spent the longest waiting for it, and, for locks, the total
+ * time the lock was held. Semaphores and condition variables have no holder,
+ * so no hold time is reported for them. All times are in simulated clock
+ * ticks. The statistics are printed by <tt>print()</tt>, which
+ * <tt>ThreadedKernel.terminate()</tt> calls just before the machine halts.
+ */
+public class LockProfiler {
+    /**
+     * Return a new record for the specified primitive, or <tt>null</tt> if it
+     * should not be profiled.
+     *
+     * @param	kind	the kind of primitive (e.g. <tt>"Lock"</tt>).
+     * @param	name	the name given to the primitive, or <tt>null</tt>.
+     * @return	the record to update, or <tt>null</tt>.
+     */
+    public static Record newRecord(String kind, String name) {
+	if (name == null || !enabled())
+	    return null;
+
+	Record record = new Record(kind, name);
+
+	boolean intStatus = Machine.interrupt().disable();
+	records.add(record);
+	Machine.interrupt().restore(intStatus);
+
+	return record;
+    }
+
+    /**
+     * Test whether lock profiling is enabled.
+     *
+     * @return	<tt>true</tt> if primitives should be profiled.
+     */
+    public static boolean enabled() {
+	if (enabled == null)
+	    enabled = Config.getBoolean("ThreadedKernel.profileLocks", false);
+
+	return enabled;
+    }
+
+    /**
+     * Print the statistics of every profiled primitive, most contended
+     * first.
+     */
+    public static void print() {
+	if (records.isEmpty())
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Record[] sorted = records.toArray(new Record[records.size()]);
+	Arrays.sort(sorted, new Comparator<Record>() {
+		public int compare(Record a, Record b) {
+		    return Long.compare(b.totalWait, a.totalWait);
+		}
+	    });
+
+	System.out.println("Lock contention (ticks):");
+	for (Record record : sorted)
+	    record.print();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The statistics for one profiled primitive. All methods must be called
+     * with interrupts disabled.
+     */
+    public static class Record {
+	private Record(String kind, String name) {
+	    this.kind = kind;
+	    this.name = name;
+	}
+
+	/**
+	 * Note that the current thread is about to try to acquire the
+	 * primitive.
+	 *
+	 * @return	the current time, to pass to <tt>acquired()</tt>.
+	 */
+	public long startWait() {
+	    return Machine.timer().getTime();
+	}
+
+	/**
+	 * Note that the current thread has acquired the primitive.
+	 *
+	 * @param	startTime	the time returned by <tt>startWait()</tt>.
+	 * @param	contended	<tt>true</tt> if the thread had to wait.
+	 */
+	public void acquired(long startTime, boolean contended) {
+	    long now = Machine.timer().getTime();
+	    long wait = now - startTime;
+
+	    acquisitions++;
+	    if (contended) {
+		contendedAcquisitions++;
+		totalWait += wait;
+		maxWait = Math.max(maxWait, wait);
+
+		KThread thread = KThread.currentThread();
+		Long threadWait = waiters.get(thread);
+		waiters.put(thread, (threadWait == null ? 0 : threadWait) + wait);
+	    }
+
+	    holdStart = now;
+	}
+
+	/**
+	 * Note that the primitive has been released by the thread holding it.
+	 * If it is handed directly to another thread, that thread's hold time
+	 * starts now.
+	 */
+	public void released() {
+	    long now = Machine.timer().getTime();
+
+	    releases++;
+	    totalHold += now - holdStart;
+	    holdStart = now;
+	}
+
+	private void print() {
+	    System.out.println("  " + kind + " \"" + name + "\": acquired "
+			       + acquisitions + ", contended "
+			       + contendedAcquisitions + ", wait total "
+			       + totalWait + " max " + maxWait
+			       + ((releases > 0) ? ", held " + totalHold : ""));
+
+	    ArrayList<Map.Entry<KThread, Long>> top =
+		new ArrayList<Map.Entry<KThread, Long>>(waiters.entrySet());
+	    Collections.sort(top, new Comparator<Map.Entry<KThread, Long>>() {
+		    public int compare(Map.Entry<KThread, Long> a,
+				       Map.Entry<KThread, Long> b) {
+			return Long.compare(b.getValue(), a.getValue());
+		    }
+		});
+
+	    for (int i=0; i<top.size() && i<maxTopWaiters; i++) {
+		System.out.println("    waiter " + top.get(i).getKey() + ": "
+				   + top.get(i).getValue());
+	    }
+	}
+
+	private String kind, name;
+
+	private int acquisitions = 0, contendedAcquisitions = 0;
+	private long totalWait = 0, maxWait = 0, totalHold = 0;
+	private long holdStart = 0;
+	/** The number of times a holder released the primitive; only locks
+	 *  have a holder, so only they report hold time. */
+	private int releases = 0;
+
+	private HashMap<KThread, Long> waiters = new HashMap<KThread, Long>();
+    }
+
+    private static Boolean enabled = null;
+    private static ArrayList<Record> records = new ArrayList<Record>();
+
+    /** The number of waiting threads to print for each primitive. */
+    private static final int maxTopWaiters = 3;
+}
@@ -299,18 +299,15 @@ public class LotteryScheduler extends Scheduler
 				// Add ourselves into the waitingResources of the lotteryQueue
 				lotteryQueue.waitingResources.add(this);
 
+				// Our tickets now count towards the lottery held by lotteryQueue
+				lotteryQueue.updateEffectiveTickets();
+
 				// If the resourceHolder of lotteryQueue is not null
 				if (lotteryQueue.transferTickets && lotteryQueue.resourceHolder != null)
 				{
 					// Update the effectiveTickets on all the lotteryQueues we own and are waiting on
 					lotteryQueue.resourceHolder.updateAllEffectiveTickets();
 				}
-				// Otherwise, we just update the effectiveTickets belonging to the lotteryQueue
-				// This is only done when the lotteryQueue is new
-				else
-				{
-					lotteryQueue.updateEffectiveTickets();
-				}
 			}
 		}
 
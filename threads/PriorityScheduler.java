@@ -134,18 +134,25 @@ public class PriorityScheduler extends Scheduler {
 		// The resource that is the owner of this PriorityQueue
 		protected ThreadState resourceHolder;
 
+		// The threads sharing ownership of this PriorityQueue through acquireShared()
+		protected LinkedList<ThreadState> sharedHolders;
+
 		// Determines whether or not we should update our effectivePriority
 		protected boolean updateNeeded;
 
 		// The "cached" effective priority
 		protected int effectivePriority;
 
+		// Set while invalidate() is passing a change along to our owners
+		private boolean invalidating = false;
+
 		// Set all the values declared above to their initial states
 		PriorityQueue(boolean transferPriority)
 		{
 			this.transferPriority = transferPriority;
 			waitingResources = new LinkedList<ThreadState>();
 			resourceHolder = null;
+			sharedHolders = new LinkedList<ThreadState>();
 			updateNeeded = false;
 			effectivePriority = priorityMinimum;
 		}
@@ -162,6 +169,9 @@ public class PriorityScheduler extends Scheduler {
 
 			// Add our priorityQueue to the parameter thread's waitResourceList
 			threadState.waitForAccess(this);
+
+			// The owners of this queue may now be receiving a larger donation
+			invalidate();
 		}
 
 		public void acquire(KThread thread)
@@ -170,8 +180,8 @@ public class PriorityScheduler extends Scheduler {
 
 			ThreadState oldOwner = resourceHolder;
 
-			// If the old owner is not null
-			if (oldOwner != null)
+			// If the old owner is not null, and isn't still sharing ownership
+			if (oldOwner != null && !sharedHolders.contains(oldOwner))
 			{
 				// Remove ourselves from the old owner's resourceList
 				oldOwner.resourceList.remove(this);
@@ -190,6 +200,60 @@ public class PriorityScheduler extends Scheduler {
 			newOwner.acquire(this);
 		}
 
+		public void acquireShared(KThread thread)
+		{
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState newOwner = getThreadState(thread);
+
+			// Unlike acquire(), the existing owners keep their ownership
+			if (!sharedHolders.contains(newOwner))
+				sharedHolders.add(newOwner);
+
+			newOwner.acquire(this);
+			newOwner.setPriorityFlag();
+		}
+
+		public void release(KThread thread)
+		{
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState oldOwner = getThreadState(thread);
+
+			sharedHolders.remove(oldOwner);
+			if (resourceHolder == oldOwner)
+				resourceHolder = null;
+
+			// Waiting threads no longer donate to the old owner
+			oldOwner.resourceList.remove(this);
+			oldOwner.setPriorityFlag();
+		}
+
+		// Forces the effectivePriority of this queue, and of every thread that
+		// owns it, to be recalculated the next time it is asked for
+		protected void invalidate()
+		{
+			updateNeeded = true;
+
+			// Stop if we aren't donating, or if we're already being invalidated
+			// further up a cycle of waiting threads
+			if (!transferPriority || invalidating)
+				return;
+
+			invalidating = true;
+
+			if (resourceHolder != null)
+				resourceHolder.setPriorityFlag();
+
+			for (ThreadState currentHolder: sharedHolders)
+			{
+				if (currentHolder != resourceHolder)
+					currentHolder.setPriorityFlag();
+			}
+
+			invalidating = false;
+		}
+
 		public KThread nextThread()
 		{
 			Lib.assertTrue(Machine.interrupt().disabled());
@@ -225,21 +289,19 @@ public class PriorityScheduler extends Scheduler {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
 			ThreadState largestPriority = null;
+			int largestEffectivePriority = priorityMinimum - 1;
 
-			// Prevents the NullPointerException in the next line
-			if (!waitingResources.isEmpty())
+			// Iterate through all elements in waitingResources, oldest first, so
+			// that ties go to the thread that has been waiting longest
+			for (ThreadState currentState: waitingResources)
 			{
-				// Set our largest thread to the first element
-				largestPriority = waitingResources.getFirst();
+				int currentEffectivePriority = currentState.getEffectivePriority();
 
-				// Iterate through all elements in waitingResources
-				for (ThreadState currentState: waitingResources)
+				// Get the one with the largest effective priority
+				if (currentEffectivePriority > largestEffectivePriority)
 				{
-					// Get the one with the largest effective priority
-					if (currentState.getEffectivePriority() > largestPriority.priority)
-					{
-						largestPriority = currentState;
-					}
+					largestPriority = currentState;
+					largestEffectivePriority = currentEffectivePriority;
 				}
 			}
 
@@ -249,16 +311,22 @@ public class PriorityScheduler extends Scheduler {
 
 		public int getEffectivePriority()
 		{
-			// Set the effectivePriority to the lowest value possible
-			effectivePriority = priorityMinimum;
+			// A queue that doesn't transfer priority never donates anything
+			if (!transferPriority)
+			{
+				return priorityMinimum;
+			}
 
 			// If an update was needed, we'll do it because our effectivePriority has
 			// likely changed since the last time this function was called
-			if (transferPriority && updateNeeded)
+			if (updateNeeded)
 			{
 				// Since we're updating it immediately after, set this to false
 				updateNeeded = false;
 
+				// Set the effectivePriority to the lowest value possible
+				effectivePriority = priorityMinimum;
+
 				// Get the new highest effectivePriority of this PriorityQueue class
 				for (ThreadState currentThread: waitingResources)
 				{
@@ -375,16 +443,15 @@ public class PriorityScheduler extends Scheduler {
 		// Updates the updateNeeded flag belonging to a PriorityQueue inside the resources we're waiting on
 		// Essentially, this makes it so the next time we call PriorityQueue.getEffectivePriority() we'll force
 		// a effectivePriority update if its set to true, otherwise we use the "cached" value
+		// The change is passed along to the owners of those queues, so donations
+		// stay correct through chains of waiting threads
 		public void setPriorityFlag()
 		{
-			if (!updateNeeded)
-			{
-				updateNeeded = true;
+			updateNeeded = true;
 
-				for (PriorityQueue currentQueue : waitResourceList)
-				{
-					currentQueue.updateNeeded = true;
-				}
+			for (PriorityQueue currentQueue : waitResourceList)
+			{
+				currentQueue.invalidate();
 			}
 		}
 
@@ -402,11 +469,8 @@ public class PriorityScheduler extends Scheduler {
 			// Set our priority
 			this.priority = priority;
 
-			// Update the effective priorities for each of the resources we're waiting on
-			for (PriorityQueue currentQueue: waitResourceList)
-			{
-				currentQueue.updateNeeded = true;
-			}
+			// Update our effective priority, and those of the resources we're waiting on
+			setPriorityFlag();
 
 			// (Santosh Notes)
 			// Check the priority if it needs to carry out priority donation at this point
@@ -463,14 +527,17 @@ public class PriorityScheduler extends Scheduler {
 		{
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			// Add the waitQueue into the resourceList
-			resourceList.add(waitQueue);
+			// Add the waitQueue into the resourceList, unless we already share it
+			if (!resourceList.contains(waitQueue))
+				resourceList.add(waitQueue);
 
 			// Remove it from our waiting list of resources we want to own
 			waitResourceList.remove(waitQueue);
 
-			// Update the effective priority of the waitQueue
+			// Update the effective priority of the waitQueue, and our own since
+			// the threads waiting on it now donate to us
 			waitQueue.updateNeeded = true;
+			setPriorityFlag();
 
 			// (Santosh notes)
 			// atomicity
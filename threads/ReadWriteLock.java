@@ -0,0 +1,256 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a synchronization primitive that can be held
+ * either by any number of <i>readers</i>, or by a single <i>writer</i>:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: atomically wait until no writer holds the lock
+ * (and, with writer preference, none is waiting for it), then become one of
+ * its readers.
+ * <li><tt>acquireWrite()</tt>: atomically wait until the lock has no readers
+ * and no writer, then become its writer.
+ * <li><tt>releaseRead()</tt>, <tt>releaseWrite()</tt>: give up the lock,
+ * handing it to the next reader(s) or writer if possible.
+ * </ul>
+ *
+ * <p>
+ * As with <tt>Lock</tt>, the lock is handed directly to the threads it wakes
+ * up, so a woken thread never has to contend for it again. With <i>writer
+ * preference</i>, new readers queue behind waiting writers so that a steady
+ * stream of readers cannot starve them. To keep writers from starving readers
+ * in turn, a writer releasing the lock admits waiting readers in a
+ * <i>batch</i> of at most <tt>readerBatch</tt> threads before the next writer
+ * runs.
+ *
+ * <p>
+ * Blocked readers and writers wait on thread queues that transfer priority,
+ * and every thread holding the lock (including every current reader) is a
+ * shared owner of both queues. A blocked writer therefore donates its
+ * priority to all of the readers it is waiting for.
+ *
+ * @see	nachos.threads.ThreadQueue#acquireShared
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock with writer preference and unlimited
+     * reader batches. The lock will initially be free.
+     */
+    public ReadWriteLock() {
+	this(true, 0);
+    }
+
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     *
+     * @param	writerPreference	<tt>true</tt> if new readers should wait
+     *					while a writer is waiting.
+     * @param	readerBatch	the maximum number of waiting readers admitted
+     *				when a writer releases the lock, or 0 to admit
+     *				all of them.
+     */
+    public ReadWriteLock(boolean writerPreference, int readerBatch) {
+	Lib.assertTrue(readerBatch >= 0);
+
+	this.writerPreference = writerPreference;
+	this.readerBatch = readerBatch;
+    }
+
+    /**
+     * Atomically acquire this lock for reading. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || (writerPreference && waitingWriters > 0)) {
+	    waitingReaders++;
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    grant(thread);
+	    numReaders++;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock after reading. If this was the last
+     * reader, the lock is handed to a waiting writer.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(numReaders > 0);
+
+	revoke(KThread.currentThread());
+	numReaders--;
+
+	if (numReaders == 0 && waitingWriters > 0)
+	    admitWriter();
+	else if (numReaders == 0)
+	    admitReaders(0);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || numReaders > 0) {
+	    waitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    grant(thread);
+	    writer = thread;
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock after writing, handing it to a batch of
+     * waiting readers or to the next waiting writer.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	revoke(writer);
+	writer = null;
+
+	// only limit the batch if it is holding up a writer
+	if (waitingReaders > 0)
+	    admitReaders(writerPreference && waitingWriters > 0 ? readerBatch : 0);
+	else if (waitingWriters > 0)
+	    admitWriter();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread is the writer.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Wake up to <i>limit</i> waiting readers (or all of them, if
+     * <i>limit</i> is 0) and hand them the lock.
+     */
+    private void admitReaders(int limit) {
+	for (int i=0; waitingReaders > 0 && (limit == 0 || i < limit); i++) {
+	    KThread thread = readQueue.nextThread();
+	    Lib.assertTrue(thread != null);
+
+	    waitingReaders--;
+	    grant(thread);
+	    numReaders++;
+	    thread.ready();
+	}
+    }
+
+    /**
+     * Wake up the next waiting writer and hand it the lock.
+     */
+    private void admitWriter() {
+	writer = writeQueue.nextThread();
+	Lib.assertTrue(writer != null);
+
+	waitingWriters--;
+	grant(writer);
+	writer.ready();
+    }
+
+    private void grant(KThread thread) {
+	readQueue.acquireShared(thread);
+	writeQueue.acquireShared(thread);
+    }
+
+    private void revoke(KThread thread) {
+	readQueue.release(thread);
+	writeQueue.release(thread);
+    }
+
+    private static class ReaderTest implements Runnable {
+	ReaderTest(ReadWriteLock lock, int[] shared, Semaphore done) {
+	    this.lock = lock;
+	    this.shared = shared;
+	    this.done = done;
+	}
+
+	public void run() {
+	    for (int i=0; i<5; i++) {
+		lock.acquireRead();
+		int value = shared[0];
+		KThread.yield();
+		Lib.assertTrue(shared[0] == value);
+		lock.releaseRead();
+	    }
+	    done.V();
+	}
+
+	private ReadWriteLock lock;
+	private int[] shared;
+	private Semaphore done;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	ReadWriteLock lock = new ReadWriteLock(true, 2);
+	int[] shared = new int[] { 0 };
+	Semaphore done = new Semaphore(0);
+
+	for (int i=0; i<3; i++) {
+	    new KThread(new ReaderTest(lock, shared, done))
+		.setName("reader " + i).fork();
+	}
+
+	for (int i=0; i<5; i++) {
+	    lock.acquireWrite();
+	    shared[0]++;
+	    KThread.yield();
+	    lock.releaseWrite();
+	    KThread.yield();
+	}
+
+	for (int i=0; i<3; i++)
+	    done.P();
+    }
+
+    private boolean writerPreference;
+    private int readerBatch;
+
+    private KThread writer = null;
+    private int numReaders = 0;
+    private int waitingReaders = 0, waitingWriters = 0;
+
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
@@ -31,13 +31,28 @@ public class Semaphore {
 	value = initialValue;
     }
 
+    /**
+     * Allocate a new named semaphore. A named semaphore is recorded by the
+     * <tt>LockProfiler</tt>, if enabled.
+     *
+     * @param	initialValue	the initial value of this semaphore.
+     * @param	name		the name of this semaphore.
+     */
+    public Semaphore(int initialValue, String name) {
+	this(initialValue);
+
+	profile = LockProfiler.newRecord("Semaphore", name);
+    }
+
     /**
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
     public void P() {
 	boolean intStatus = Machine.interrupt().disable();
+	long waitStart = (profile != null) ? profile.startWait() : 0;
+	boolean contended = (value == 0);
 
-	if (value == 0) {
+	if (contended) {
 	    waitQueue.waitForAccess(KThread.currentThread());
 	    KThread.sleep();
 	}
@@ -45,9 +60,60 @@ public class Semaphore {
 	    value--;
 	}
 
+	if (profile != null)
+	    profile.acquired(waitStart, contended);
+
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically wait for this semaphore to become non-zero and decrement it,
+     * giving up after at least <i>timeout</i> ticks. The timeout is measured
+     * by <tt>ThreadedKernel.alarm</tt>.
+     *
+     * @param	timeout	the minimum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the timeout expired first.
+     */
+    public boolean P(long timeout) {
+	boolean intStatus = Machine.interrupt().disable();
+	long waitStart = (profile != null) ? profile.startWait() : 0;
+	boolean contended = (value == 0);
+
+	if (contended && timeout <= 0) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	boolean acquired = true;
+
+	if (contended) {
+	    KThread thread = KThread.currentThread();
+
+	    if (timedWaiters == null) {
+		timedWaiters = new TimedWaiters() {
+			void expired(KThread thread) { thread.ready(); }
+		    };
+	    }
+
+	    Alarm.Timeout handle = timedWaiters.add(thread, timeout);
+	    waitQueue.waitForAccess(thread);
+	    KThread.sleep();
+
+	    acquired = !handle.hasExpired();
+	}
+	else {
+	    value--;
+	}
+
+	if (profile != null && acquired)
+	    profile.acquired(waitStart, contended);
+
+	Machine.interrupt().restore(intStatus);
+
+	return acquired;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
@@ -56,6 +122,12 @@ public class Semaphore {
 	boolean intStatus = Machine.interrupt().disable();
 
 	KThread thread = waitQueue.nextThread();
+
+	// skip over threads that have already given up
+	while (thread != null && timedWaiters != null &&
+	       !timedWaiters.claim(thread))
+	    thread = waitQueue.nextThread();
+
 	if (thread != null) {
 	    thread.ready();
 	}
@@ -96,9 +168,19 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	// a timed wait gives up when nobody signals in time
+	long start = Machine.timer().getTime();
+	Lib.assertTrue(!pong.P(1000));
+	Lib.assertTrue(Machine.timer().getTime() >= start + 1000);
+
+	pong.V();
+	Lib.assertTrue(pong.P(1000));
     }
 
     private int value;
+    private LockProfiler.Record profile = null;
+    private TimedWaiters timedWaiters = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
 }
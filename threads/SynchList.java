@@ -12,9 +12,19 @@ public class SynchList {
      * Allocate a new synchronized queue.
      */
     public SynchList() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new named synchronized queue. The lock and condition variable
+     * of a named queue are recorded by the <tt>LockProfiler</tt>, if enabled.
+     *
+     * @param	name	the name of this queue, or <tt>null</tt>.
+     */
+    public SynchList(String name) {
 	list = new LinkedList<Object>();
-	lock = new Lock();
-	listEmpty = new Condition(lock);
+	lock = new Lock(name);
+	listEmpty = new Condition2(lock, name);
     }
 
     /**
@@ -83,6 +93,6 @@ public class SynchList {
 
     private LinkedList<Object> list;
     private Lock lock;
-    private Condition listEmpty;
+    private Condition2 listEmpty;
 }
 
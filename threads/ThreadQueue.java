@@ -91,6 +91,39 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that a thread has received <i>shared</i> access
+     * to the resource. Unlike <tt>acquire()</tt>, this does not revoke access
+     * from any thread that already holds the resource, so several threads may
+     * hold it at once (e.g. the readers of a <tt>ReadWriteLock</tt>). If this
+     * queue transfers priority, waiting threads donate priority to every
+     * holder.
+     *
+     * <p>
+     * The default implementation does nothing, which is correct for
+     * schedulers that do not transfer priority.
+     *
+     * @param	thread	the thread that has received shared access.
+     *
+     * @see	nachos.threads.ReadWriteLock
+     */
+    public void acquireShared(KThread thread) {
+    }
+
+    /**
+     * Notify this thread queue that a thread no longer has access to the
+     * resource, whether it received access through <tt>acquire()</tt>,
+     * <tt>nextThread()</tt>, or <tt>acquireShared()</tt>. Waiting threads stop
+     * donating priority to it.
+     *
+     * <p>
+     * The default implementation does nothing.
+     *
+     * @param	thread	the thread giving up access.
+     */
+    public void release(KThread thread) {
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
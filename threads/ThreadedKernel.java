@@ -41,7 +41,8 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
+     * <tt>SynchList</tt>, <tt>Condition2</tt>, <tt>ReadWriteLock</tt>,
+     * <tt>Channel</tt>, <tt>Alarm</tt>, and <tt>ElevatorBank</tt> classes. Note that the
      * autograder never calls this method, so it is safe to put additional
      * tests here.
      */	
@@ -49,6 +50,10 @@ public class ThreadedKernel extends Kernel {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	Condition2.selfTest();
+	ReadWriteLock.selfTest();
+	Channel.selfTest();
+	Alarm.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -62,9 +67,11 @@ public class ThreadedKernel extends Kernel {
     }
 
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Prints the lock contention profile, if any, and
+     * halts the machine. Never returns.
      */
     public void terminate() {
+	LockProfiler.print();
 	Machine.halt();
     }
 
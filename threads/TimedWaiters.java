@@ -0,0 +1,87 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+
+/**
+ * Bookkeeping for threads that wait in a <tt>ThreadQueue</tt> with a timeout,
+ * used by <tt>Semaphore.P(long)</tt> and <tt>Condition2.sleep(long)</tt>.
+ *
+ * <p>
+ * A thread queue cannot remove a thread that is waiting in it, so when a
+ * timeout expires the thread is left in the queue as a <i>stale</i> entry.
+ * Whoever dequeues threads must call <tt>claim()</tt> on each one, which
+ * skips stale entries and cancels the timeout of a thread that is woken up
+ * in time. Entries for the same thread are interchangeable, so it does not
+ * matter which of them is found to be stale.
+ *
+ * <p>
+ * All methods must be called with interrupts disabled.
+ */
+abstract class TimedWaiters {
+    /**
+     * Start the timeout of a thread that is about to wait in the queue.
+     *
+     * @param	thread	the thread about to wait.
+     * @param	timeout	the minimum number of clock ticks to wait.
+     * @return	the timeout, which has expired if and only if the thread was
+     *		not claimed in time.
+     */
+    Alarm.Timeout add(final KThread thread, long timeout) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Alarm.Timeout handle = ThreadedKernel.alarm.schedule(timeout,
+	    new Runnable() {
+		public void run() {
+		    pending.remove(thread);
+
+		    Integer count = stale.get(thread);
+		    stale.put(thread, (count == null) ? 1 : count+1);
+
+		    expired(thread);
+		}
+	    });
+
+	pending.put(thread, handle);
+	return handle;
+    }
+
+    /**
+     * Called for a thread that has just been dequeued.
+     *
+     * @param	thread	the dequeued thread.
+     * @return	<tt>true</tt> if the thread should be woken up, or
+     *		<tt>false</tt> if it was a stale entry and should be skipped.
+     */
+    boolean claim(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Integer count = stale.get(thread);
+	if (count != null) {
+	    if (count == 1)
+		stale.remove(thread);
+	    else
+		stale.put(thread, count-1);
+	    return false;
+	}
+
+	Alarm.Timeout handle = pending.remove(thread);
+	if (handle != null)
+	    handle.cancel();
+
+	return true;
+    }
+
+    /**
+     * Called from the timer interrupt when the timeout of a waiting thread
+     * expires. Must arrange for the thread to be readied.
+     *
+     * @param	thread	the thread whose timeout expired.
+     */
+    abstract void expired(KThread thread);
+
+    private HashMap<KThread, Alarm.Timeout> pending =
+	new HashMap<KThread, Alarm.Timeout>();
+    private HashMap<KThread, Integer> stale = new HashMap<KThread, Integer>();
+}
@@ -0,0 +1,260 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Asynchronous file I/O for a user process, driven by a pair of rings in the
+ * process's own memory.
+ *
+ * <p>
+ * The process describes each operation with a <i>submission entry</i> in the
+ * submission ring, and <tt>io_enter()</tt> hands a batch of them to a pool of
+ * kernel worker threads, which transfer the data straight between the file
+ * and user memory. As each operation finishes, its worker posts a
+ * <i>completion entry</i> to the completion ring. A process can therefore
+ * keep many slow operations in flight at once, paying for one trap per batch
+ * instead of one blocking trap per operation.
+ *
+ * <p>
+ * The layout of the rings is given by <tt>struct io_ring</tt> in
+ * <tt>test/syscall.h</tt>. The kernel only ever advances <tt>sq_head</tt>
+ * and <tt>cq_tail</tt>, and the process only ever advances <tt>sq_tail</tt>
+ * and <tt>cq_head</tt>. The kernel never has more operations in flight than
+ * there are free completion slots, so the completion ring cannot overflow.
+ *
+ * <p>
+ * Operations that use the file position (<tt>offset</tt> of -1) may run
+ * concurrently and complete in any order, so a process that issues several
+ * of them on one file should give explicit offsets instead. Each operation
+ * keeps its file open until it completes, even if the process closes the
+ * descriptor first.
+ */
+public class AsyncIO {
+    private AsyncIO(UserProcess process, int ring, int entries, int sqes,
+		    int cqes) {
+	this.process = process;
+	this.ring = ring;
+	this.entries = entries;
+	this.sqes = sqes;
+	this.cqes = cqes;
+    }
+
+    /**
+     * Set up asynchronous I/O for a process, using the <tt>io_ring</tt> at
+     * the specified address. Both rings start out empty.
+     *
+     * @param	process	the process.
+     * @param	ring	the virtual address of the process's
+     *			<tt>io_ring</tt>.
+     * @return	the new context, or <tt>null</tt> if the ring is invalid.
+     */
+    public static AsyncIO setup(UserProcess process, int ring) {
+	MemoryCursor cursor = new MemoryCursor(process, ring + ringEntries);
+	int entries = cursor.readInt();
+	int sqes = cursor.readInt();
+	int cqes = cursor.readInt();
+
+	if (cursor.faulted() || entries <= 0 || entries > maxEntries ||
+	    (entries & (entries-1)) != 0)
+	    return null;
+
+	cursor.seek(ring);
+	for (int i=0; i<4; i++) {
+	    if (!cursor.writeInt(0))
+		return null;
+	}
+
+	startWorkers();
+
+	return new AsyncIO(process, ring, entries, sqes, cqes);
+    }
+
+    /**
+     * Submit up to <i>toSubmit</i> operations from the submission ring, then
+     * wait until at least <i>minComplete</i> completions are waiting in the
+     * completion ring (or until every operation in flight has completed, if
+     * that is fewer).
+     *
+     * @param	toSubmit	the most operations to submit.
+     * @param	minComplete	the number of completions to wait for.
+     * @return	the number of operations submitted, or -1 if the rings have
+     *		been corrupted.
+     */
+    public int enter(int toSubmit, int minComplete) {
+	lock.acquire();
+
+	MemoryCursor cursor = new MemoryCursor(process, ring + ringSqTail);
+	int available = cursor.readInt() - sqHead;
+	int pending = pendingCompletions();
+
+	if (cursor.faulted() || available < 0 || available > entries ||
+	    pending < 0) {
+	    lock.release();
+	    return -1;
+	}
+
+	int submitted = 0;
+	while (submitted < Math.min(toSubmit, available) &&
+	       inFlight + pending < entries) {
+	    cursor.seek(sqes + (sqHead & (entries-1))*sqeSize);
+	    submit(cursor.readInt(), cursor.readInt(), cursor.readInt(),
+		   cursor.readInt(), cursor.readInt(), cursor.readInt(),
+		   cursor.faulted());
+
+	    sqHead++;
+	    submitted++;
+	    pending = pendingCompletions();
+	}
+
+	cursor.seek(ring + ringSqHead).writeInt(sqHead);
+
+	while (pending < minComplete && inFlight > 0) {
+	    completed.sleep();
+	    pending = pendingCompletions();
+	}
+
+	lock.release();
+
+	return submitted;
+    }
+
+    /**
+     * Wait until every operation in flight has completed. Called when the
+     * process exits, before its memory is released.
+     */
+    public void drain() {
+	lock.acquire();
+
+	while (inFlight > 0)
+	    completed.sleep();
+
+	lock.release();
+    }
+
+    /**
+     * Start one operation read from the submission ring. Operations that
+     * cannot be started complete immediately with a result of -1.
+     */
+    private void submit(int opcode, int fd, int buffer, int count, int offset,
+			int userData, boolean faulted) {
+	OpenFile file = faulted ? null : process.getOpenFile(fd);
+
+	if (file == null || (opcode != opRead && opcode != opWrite) ||
+	    count < 0 || offset < -1) {
+	    post(userData, -1);
+	    return;
+	}
+
+	// keep the file open even if the process closes it meanwhile
+	FileTable.hold(file);
+
+	inFlight++;
+	workQueue.add(new Request(opcode == opRead, file, buffer, count,
+				  offset, userData));
+    }
+
+    /**
+     * Post a completion entry. The context lock must be held.
+     */
+    private void post(int userData, int result) {
+	MemoryCursor cursor =
+	    new MemoryCursor(process, cqes + (cqTail & (entries-1))*cqeSize);
+	cursor.writeInt(userData);
+	cursor.writeInt(result);
+
+	cqTail++;
+	cursor.seek(ring + ringCqTail).writeInt(cqTail);
+
+	completed.wakeAll();
+    }
+
+    /**
+     * Return the number of completions the process has not consumed yet, or
+     * -1 if its <tt>cq_head</tt> makes no sense.
+     */
+    private int pendingCompletions() {
+	MemoryCursor cursor = new MemoryCursor(process, ring + ringCqHead);
+	int pending = cqTail - cursor.readInt();
+
+	if (cursor.faulted() || pending < 0 || pending > entries)
+	    return -1;
+
+	return pending;
+    }
+
+    private class Request implements Runnable {
+	Request(boolean read, OpenFile file, int buffer, int count,
+		int offset, int userData) {
+	    this.read = read;
+	    this.file = file;
+	    this.buffer = buffer;
+	    this.count = count;
+	    this.offset = offset;
+	    this.userData = userData;
+	}
+
+	public void run() {
+	    int result = process.transferFile(file, offset, buffer, count, read);
+	    FileTable.release(file);
+
+	    lock.acquire();
+	    inFlight--;
+	    post(userData, result);
+	    lock.release();
+	}
+
+	private boolean read;
+	private OpenFile file;
+	private int buffer, count, offset, userData;
+    }
+
+    /**
+     * Start the worker threads, if they have not been started yet. The
+     * number of workers is given by the <tt>nachos.conf</tt> key
+     * <tt>UserKernel.ioWorkers</tt>.
+     */
+    private static void startWorkers() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (workQueue == null) {
+	    workQueue = new SynchList();
+
+	    int numWorkers = Config.getInteger("UserKernel.ioWorkers", 4);
+	    for (int i=0; i<numWorkers; i++) {
+		new KThread(new Runnable() {
+			public void run() {
+			    while (true)
+				((Runnable) workQueue.removeFirst()).run();
+			}
+		    }).setName("io worker " + i).fork();
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private UserProcess process;
+    private int ring, entries, sqes, cqes;
+
+    /** The kernel's copies of the indices only it advances. */
+    private int sqHead = 0, cqTail = 0;
+    private int inFlight = 0;
+
+    private Lock lock = new Lock();
+    private Condition2 completed = new Condition2(lock);
+
+    private static SynchList workQueue = null;
+
+    /** Offsets of the fields of <tt>struct io_ring</tt>. */
+    private static final int ringSqHead = 0, ringSqTail = 4,
+	ringCqHead = 8, ringCqTail = 12, ringEntries = 16;
+
+    /** The sizes of <tt>struct io_sqe</tt> and <tt>struct io_cqe</tt>. */
+    private static final int sqeSize = 24, cqeSize = 8;
+
+    private static final int opRead = 0, opWrite = 1;
+
+    /** The most entries a ring may have. */
+    private static final int maxEntries = 256;
+}
@@ -0,0 +1,313 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.io.EOFException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A kernel-wide cache of parsed executables.
+ *
+ * <p>
+ * Loading a COFF executable opens the file and reads and checks its headers,
+ * and every page loaded from one of its sections is another read; each of
+ * these waits for the file system. The first process to run an executable
+ * parses it as usual, and the cache keeps the result, along with the file,
+ * which the cache then owns. Every later process running the same executable
+ * gets a <tt>CachedCoff</tt> sharing the parsed headers, without opening the
+ * file at all. The contents of each initialized page are kept as well, the
+ * first time any process loads it, so that later loads are a copy.
+ *
+ * <p>
+ * Executables are identified by file name. A cached executable is used again
+ * only if its file still has the length it had when it was parsed; the stub
+ * file system keeps no modification times, so instead, creating, removing or
+ * writing a file drops its cached executable. Processes that are still
+ * running it keep using the old one, which is closed when the last of them
+ * is done with it.
+ *
+ * <p>
+ * At most <tt>UserKernel.coffCacheSize</tt> executables are cached, least
+ * recently run first out, since each one holds its file open.
+ */
+public class CoffCache {
+    /**
+     * Allocate a new, empty executable cache.
+     *
+     * @param	capacity	the most executables to keep.
+     */
+    public CoffCache(int capacity) {
+	this.capacity = capacity;
+    }
+
+    /**
+     * Return a loader for the named executable, parsing it only if it is not
+     * cached. The loader must be closed when the process is done with it.
+     *
+     * @param	name	the file name of the executable.
+     * @return	the loader, or <tt>null</tt> if the file cannot be opened or is
+     *		not a valid executable.
+     */
+    public Coff open(String name) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Executable executable = executables.get(name);
+	if (executable != null &&
+	    executable.file.length() != executable.length) {
+	    remove(executable);
+	    executable = null;
+	}
+
+	if (executable != null) {
+	    executable.numUsers++;
+	    hits++;
+	    Machine.interrupt().restore(intStatus);
+	    return new CachedCoff(executable);
+	}
+
+	misses++;
+	Machine.interrupt().restore(intStatus);
+
+	OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+	if (file == null) {
+	    Lib.debug(dbgCache, "\topen failed");
+	    return null;
+	}
+
+	Coff coff;
+	try {
+	    coff = new Coff(file);
+	}
+	catch (EOFException e) {
+	    file.close();
+	    Lib.debug(dbgCache, "\tcoff load failed");
+	    return null;
+	}
+
+	executable = new Executable(name, file, coff);
+	executable.numUsers++;
+
+	intStatus = Machine.interrupt().disable();
+
+	// another process may have parsed the same file in the meantime
+	Executable old = executables.put(name, executable);
+	if (old != null)
+	    remove(old);
+	executable.cached = true;
+
+	Iterator<Executable> lru = executables.values().iterator();
+	while (executables.size() > capacity) {
+	    Executable victim = lru.next();
+	    lru.remove();
+	    victim.cached = false;
+	    closeIfUnused(victim);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return new CachedCoff(executable);
+    }
+
+    /**
+     * Return another loader for the same executable as <i>coff</i>, even if
+     * it is no longer cached, for a forked process that keeps running it.
+     *
+     * @param	coff	a loader returned by <tt>open()</tt>.
+     * @return	the new loader.
+     */
+    public Coff share(Coff coff) {
+	Executable executable = ((CachedCoff) coff).executable;
+	Lib.assertTrue(executable != null);
+
+	boolean intStatus = Machine.interrupt().disable();
+	executable.numUsers++;
+	Machine.interrupt().restore(intStatus);
+
+	return new CachedCoff(executable);
+    }
+
+    /**
+     * Return whether a loader is for the cached copy of its executable, and
+     * so whether pages loaded through it match the file that now has its
+     * name.
+     *
+     * @param	coff	a loader returned by <tt>open()</tt> or
+     *			<tt>share()</tt>.
+     * @return	<tt>true</tt> if the executable has not been dropped from
+     *		the cache.
+     */
+    public boolean isCurrent(Coff coff) {
+	Executable executable = ((CachedCoff) coff).executable;
+	return (executable != null && executable.cached);
+    }
+
+    /**
+     * Drop the cached executable with the specified name, if any, because its
+     * file is about to change.
+     *
+     * @param	name	the file name.
+     */
+    public void invalidate(String name) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Executable executable = executables.get(name);
+	if (executable != null)
+	    remove(executable);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Print the hit rate of this cache, for debugging.
+     */
+    public void printStats() {
+	Lib.debug(dbgCache, "coff cache: " + hits + " hits, " + misses
+		  + " misses, " + pageHits + " pages copied, " + pageMisses
+		  + " pages read");
+    }
+
+    /**
+     * Remove an executable from the cache. Interrupts must be disabled.
+     */
+    private void remove(Executable executable) {
+	if (executables.get(executable.name) == executable)
+	    executables.remove(executable.name);
+
+	executable.cached = false;
+	closeIfUnused(executable);
+    }
+
+    /**
+     * Close an executable's file once it has left the cache and no process
+     * is running it. Interrupts must be disabled.
+     */
+    private void closeIfUnused(Executable executable) {
+	if (executable.cached || executable.numUsers > 0)
+	    return;
+
+	executable.coff.close();
+    }
+
+    /**
+     * An executable parsed by the cache, and the contents of the pages loaded
+     * from it so far.
+     */
+    private static class Executable {
+	Executable(String name, OpenFile file, Coff coff) {
+	    this.name = name;
+	    this.file = file;
+	    this.coff = coff;
+	    this.length = file.length();
+
+	    images = new byte[coff.getNumSections()][][];
+	    for (int s=0; s<images.length; s++)
+		images[s] = new byte[coff.getSection(s).getLength()][];
+	}
+
+	String name;
+	/** The file, owned by <tt>coff</tt>. */
+	OpenFile file;
+	Coff coff;
+	/** The length of the file when it was parsed. */
+	int length;
+	/** The contents of each page of each section, or <tt>null</tt> if it
+	 *  has not been loaded yet. */
+	byte[][][] images;
+	/** The number of open <tt>CachedCoff</tt>s. */
+	int numUsers = 0;
+	/** Whether this is still the cached copy of the executable. */
+	boolean cached = false;
+    }
+
+    /**
+     * A loader for a cached executable. It has no file of its own.
+     */
+    private class CachedCoff extends Coff {
+	CachedCoff(Executable executable) {
+	    this.executable = executable;
+
+	    Coff coff = executable.coff;
+	    entryPoint = coff.getEntryPoint();
+	    sections = new CoffSection[coff.getNumSections()];
+	    for (int s=0; s<sections.length; s++)
+		sections[s] = new CachedSection(this, coff.getSection(s),
+						executable.images[s]);
+	}
+
+	public int getEntryPoint() {
+	    Lib.assertTrue(executable != null);
+
+	    return entryPoint;
+	}
+
+	public void close() {
+	    if (executable == null)
+		return;
+
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    executable.numUsers--;
+	    closeIfUnused(executable);
+	    executable = null;
+	    sections = null;
+
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	private Executable executable;
+    }
+
+    /**
+     * A section of a cached executable. Pages are loaded from the parsed
+     * section the first time, and copied from the cache after that.
+     */
+    private class CachedSection extends CoffSection {
+	CachedSection(Coff coff, CoffSection section, byte[][] images) {
+	    super(coff, section.getName(), false, section.isReadOnly(),
+		  section.getLength(), section.getFirstVPN());
+
+	    this.section = section;
+	    this.images = images;
+	    initialized = section.isInitialzed();
+	}
+
+	public void loadPage(int spn, int ppn) {
+	    Lib.assertTrue(spn>=0 && spn<numPages);
+	    Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
+
+	    byte[] memory = Machine.processor().getMemory();
+	    int paddr = ppn*pageSize;
+
+	    byte[] image = images[spn];
+	    if (image != null) {
+		System.arraycopy(image, 0, memory, paddr, pageSize);
+		pageHits++;
+		return;
+	    }
+
+	    section.loadPage(spn, ppn);
+	    if (!initialized)
+		return;
+
+	    image = new byte[pageSize];
+	    System.arraycopy(memory, paddr, image, 0, pageSize);
+	    images[spn] = image;
+	    pageMisses++;
+	}
+
+	private CoffSection section;
+	private byte[][] images;
+    }
+
+    private int capacity;
+    /** The cached executables, by name, least recently opened first. */
+    private LinkedHashMap<String, Executable> executables =
+	new LinkedHashMap<String, Executable>(16, 0.75f, true);
+
+    private int hits = 0, misses = 0, pageHits = 0, pageMisses = 0;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgCache = 'a';
+}
@@ -0,0 +1,268 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.IdentityHashMap;
+
+/**
+ * The file descriptor table of a user process.
+ *
+ * <p>
+ * Descriptors in use are tracked in a bitmap, so the lowest free descriptor
+ * is found a word of 64 descriptors at a time, starting from the lowest word
+ * that can have a free descriptor in it. The table of open files starts out
+ * small and doubles whenever a descriptor past its end is allocated.
+ *
+ * <p>
+ * Each process can have at most <tt>UserProcess.maxFileDescriptors</tt>
+ * descriptors open, and the whole machine at most
+ * <tt>UserKernel.maxOpenFiles</tt>, both set in <tt>nachos.conf</tt>. Disk
+ * files are also subject to the limit of the underlying file system.
+ *
+ * <p>
+ * A forked process gets a <tt>duplicate()</tt> of its parent's table, whose
+ * descriptors refer to the very same open files, including their file
+ * positions. An open file is only closed when the last descriptor referring
+ * to it, in any table, is closed. The kernel can also <tt>hold()</tt> an
+ * open file while it uses it, so that closing its descriptors meanwhile does
+ * not close it.
+ */
+public class FileTable {
+    /**
+     * Allocate a new, empty file descriptor table.
+     */
+    public FileTable() {
+	limit = Config.getInteger("UserProcess.maxFileDescriptors",
+				  defaultLimit);
+	Lib.assertTrue(limit > 0);
+
+	files = new OpenFile[Math.min(initialSize, limit)];
+	inUse = new long[(limit + wordBits-1) / wordBits];
+
+	// descriptors past the limit are never free
+	for (int fd=limit; fd<inUse.length*wordBits; fd++)
+	    inUse[fd/wordBits] |= 1L << (fd%wordBits);
+    }
+
+    /**
+     * Give an open file the lowest free descriptor.
+     *
+     * @param	file	the open file.
+     * @return	the new descriptor, or -1 if this process or the machine has
+     *		too many files open.
+     */
+    public int add(OpenFile file) {
+	Lib.assertTrue(file != null);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int fd = -1;
+	if (reserveSystemWide(1)) {
+	    while (firstFreeWord < inUse.length &&
+		   inUse[firstFreeWord] == -1L)
+		firstFreeWord++;
+
+	    if (firstFreeWord < inUse.length) {
+		fd = firstFreeWord*wordBits +
+		    Long.numberOfTrailingZeros(~inUse[firstFreeWord]);
+		inUse[fd/wordBits] |= 1L << (fd%wordBits);
+
+		if (fd >= files.length)
+		    grow(fd);
+		files[fd] = file;
+	    }
+	    else {
+		numOpenSystemWide--;
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return fd;
+    }
+
+    /**
+     * Return the file open on a descriptor.
+     *
+     * @param	fd	the descriptor.
+     * @return	the open file, or <tt>null</tt> if the descriptor is not in
+     *		use.
+     */
+    public OpenFile get(int fd) {
+	if (fd < 0 || fd >= files.length)
+	    return null;
+
+	return files[fd];
+    }
+
+    /**
+     * Close a descriptor. Its file is closed too, unless another descriptor
+     * still refers to it.
+     *
+     * @param	fd	the descriptor.
+     * @return	<tt>true</tt> if the descriptor was in use.
+     */
+    public boolean close(int fd) {
+	OpenFile file = remove(fd);
+	if (file == null)
+	    return false;
+
+	release(file);
+	return true;
+    }
+
+    /**
+     * Take a reference to an open file, keeping it open until
+     * <tt>release()</tt> is called, even if every descriptor referring to
+     * it is closed first.
+     *
+     * @param	file	an open file that a descriptor refers to.
+     */
+    public static void hold(OpenFile file) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Integer count = sharedFiles.get(file);
+	sharedFiles.put(file, (count == null) ? 1 : count+1);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Drop a reference to an open file, taken by <tt>hold()</tt> or held by
+     * a descriptor that has been removed, closing the file if it was the
+     * last one.
+     *
+     * @param	file	the open file.
+     */
+    public static void release(OpenFile file) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Integer count = sharedFiles.get(file);
+	if (count == null)
+	    file.close();
+	else if (count == 1)
+	    sharedFiles.remove(file);
+	else
+	    sharedFiles.put(file, count-1);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Close every descriptor in this table.
+     */
+    public void closeAll() {
+	for (int fd=0; fd<files.length; fd++)
+	    close(fd);
+    }
+
+    /**
+     * Return a copy of this table, with every descriptor referring to the
+     * same file as it does here.
+     *
+     * @return	the copy, or <tt>null</tt> if the machine has too many files
+     *		open.
+     */
+    public FileTable duplicate() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int numOpen = 0;
+	for (int fd=0; fd<files.length; fd++) {
+	    if (files[fd] != null)
+		numOpen++;
+	}
+
+	if (!reserveSystemWide(numOpen)) {
+	    Machine.interrupt().restore(intStatus);
+	    return null;
+	}
+
+	FileTable copy = new FileTable(limit, files.clone(), inUse.clone(),
+				       firstFreeWord);
+
+	for (int fd=0; fd<files.length; fd++) {
+	    if (files[fd] != null) {
+		Integer count = sharedFiles.get(files[fd]);
+		sharedFiles.put(files[fd], (count == null) ? 1 : count+1);
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return copy;
+    }
+
+    private FileTable(int limit, OpenFile[] files, long[] inUse,
+		      int firstFreeWord) {
+	this.limit = limit;
+	this.files = files;
+	this.inUse = inUse;
+	this.firstFreeWord = firstFreeWord;
+    }
+
+    /**
+     * Free a descriptor, without closing its file.
+     */
+    private OpenFile remove(int fd) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	OpenFile file = get(fd);
+	if (file != null) {
+	    files[fd] = null;
+	    inUse[fd/wordBits] &= ~(1L << (fd%wordBits));
+	    firstFreeWord = Math.min(firstFreeWord, fd/wordBits);
+	    numOpenSystemWide--;
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return file;
+    }
+
+    private void grow(int fd) {
+	int size = files.length;
+	while (size <= fd)
+	    size *= 2;
+
+	OpenFile[] newFiles = new OpenFile[Math.min(size, limit)];
+	System.arraycopy(files, 0, newFiles, 0, files.length);
+	files = newFiles;
+    }
+
+    /**
+     * Count <i>count</i> more descriptors against the machine-wide limit, if
+     * there is room for them.
+     */
+    private static boolean reserveSystemWide(int count) {
+	if (maxOpenSystemWide == -1)
+	    maxOpenSystemWide = Config.getInteger("UserKernel.maxOpenFiles",
+						  defaultSystemWideLimit);
+
+	if (numOpenSystemWide + count > maxOpenSystemWide)
+	    return false;
+
+	numOpenSystemWide += count;
+	return true;
+    }
+
+    private int limit;
+    private OpenFile[] files;
+
+    /** One bit per descriptor, set if the descriptor is in use. */
+    private long[] inUse;
+    /** No word of <tt>inUse</tt> before this one has a free descriptor. */
+    private int firstFreeWord = 0;
+
+    /** The number of extra descriptors and holds referring to each shared
+     *  file. */
+    private static IdentityHashMap<OpenFile, Integer> sharedFiles =
+	new IdentityHashMap<OpenFile, Integer>();
+
+    private static int numOpenSystemWide = 0;
+    private static int maxOpenSystemWide = -1;
+
+    private static final int initialSize = 16;
+    private static final int wordBits = 64;
+    private static final int defaultLimit = 256;
+    private static final int defaultSystemWideLimit = 4096;
+}
@@ -0,0 +1,271 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * Hands out the frames of physical memory to user processes.
+ *
+ * <p>
+ * Free frames are tracked in a bitmap, one bit per frame, packed 64 frames to
+ * a <tt>long</tt>. A single frame is found by skipping whole words that have
+ * no free frames, starting from the word the last allocation came from, so
+ * allocation takes constant time unless memory is nearly full. Runs of
+ * contiguous frames are found the same way, a word at a time wherever a word
+ * is entirely free or entirely allocated.
+ *
+ * <p>
+ * Each allocated frame has a reference count, so that a frame can be mapped
+ * by more than one process (for example, after a copy-on-write fork). A
+ * frame only returns to the free pool when its last reference is freed.
+ *
+ * <p>
+ * All methods may be called with interrupts enabled.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator, with every frame initially free.
+     *
+     * @param	numFrames	the number of frames of physical memory.
+     */
+    public FrameAllocator(int numFrames) {
+	Lib.assertTrue(numFrames >= 0);
+
+	this.numFrames = numFrames;
+	freeMap = new long[(numFrames + wordBits-1) / wordBits];
+	refCount = new int[numFrames];
+
+	for (int frame=0; frame<numFrames; frame++)
+	    freeMap[frame/wordBits] |= 1L << (frame%wordBits);
+
+	numFree = numFrames;
+    }
+
+    /**
+     * Allocate a single frame.
+     *
+     * @return	the frame allocated, or -1 if physical memory is full.
+     */
+    public int allocate() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int frame = -1;
+	if (numFree > 0) {
+	    while (freeMap[hint] == 0)
+		hint = (hint+1) % freeMap.length;
+
+	    frame = hint*wordBits + Long.numberOfTrailingZeros(freeMap[hint]);
+	    take(frame, 1);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return frame;
+    }
+
+    /**
+     * Allocate <i>count</i> frames that are next to each other in physical
+     * memory.
+     *
+     * @param	count	the number of frames to allocate.
+     * @return	the first frame of the run, or -1 if there is no free run
+     *		that long.
+     */
+    public int allocateContiguous(int count) {
+	Lib.assertTrue(count > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int first = -1;
+	if (count <= numFree) {
+	    first = findRun(count);
+	    if (first != -1)
+		take(first, count);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return first;
+    }
+
+    /**
+     * Allocate <i>count</i> frames, all or nothing, storing them in
+     * <i>frames</i>. A contiguous run is used if one is free, so that the
+     * frames can later be zeroed or copied in bulk.
+     *
+     * @param	frames	the array where the frames will be stored.
+     * @param	offset	the first element of the array to store.
+     * @param	count	the number of frames to allocate.
+     * @return	<tt>true</tt> if the frames were allocated, or <tt>false</tt>
+     *		if there are not enough free frames.
+     */
+    public boolean allocate(int[] frames, int offset, int count) {
+	Lib.assertTrue(offset >= 0 && count >= 0 &&
+		       offset+count <= frames.length);
+
+	if (count == 0)
+	    return true;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (count > numFree) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	int first = findRun(count);
+	if (first != -1) {
+	    take(first, count);
+	    for (int i=0; i<count; i++)
+		frames[offset+i] = first+i;
+	}
+	else {
+	    for (int i=0; i<count; i++)
+		frames[offset+i] = allocate();
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return true;
+    }
+
+    /**
+     * Add a reference to an allocated frame, so that it stays allocated
+     * until <tt>free()</tt> has been called once more.
+     *
+     * @param	frame	the frame to share.
+     */
+    public void share(int frame) {
+	Lib.assertTrue(frame >= 0 && frame < numFrames);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(refCount[frame] > 0);
+	refCount[frame]++;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of references to a frame.
+     *
+     * @param	frame	the frame.
+     * @return	the number of references, or 0 if the frame is free.
+     */
+    public int getRefCount(int frame) {
+	return refCount[frame];
+    }
+
+    /**
+     * Drop a reference to a frame, returning it to the free pool if that was
+     * the last one.
+     *
+     * @param	frame	the frame to free.
+     */
+    public void free(int frame) {
+	Lib.assertTrue(frame >= 0 && frame < numFrames);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	long bit = 1L << (frame%wordBits);
+	Lib.assertTrue((freeMap[frame/wordBits] & bit) == 0);
+	Lib.assertTrue(refCount[frame] > 0);
+
+	if (--refCount[frame] == 0) {
+	    freeMap[frame/wordBits] |= bit;
+	    numFree++;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of frames that are currently free.
+     *
+     * @return	the number of free frames.
+     */
+    public int getNumFree() {
+	return numFree;
+    }
+
+    /**
+     * Fill the specified frames with zeros, clearing each run of contiguous
+     * frames with a single fill.
+     *
+     * @param	frames	the array containing the frames to zero.
+     * @param	offset	the first element of the array to zero.
+     * @param	count	the number of frames to zero.
+     */
+    public static void zero(int[] frames, int offset, int count) {
+	byte[] memory = Machine.processor().getMemory();
+
+	int i = offset, end = offset+count;
+	while (i < end) {
+	    int start = i++;
+	    while (i < end && frames[i] == frames[i-1]+1)
+		i++;
+
+	    Arrays.fill(memory, frames[start]*pageSize,
+			(frames[i-1]+1)*pageSize, (byte) 0);
+	}
+    }
+
+    /**
+     * Find the first run of <i>count</i> free frames, without allocating it.
+     */
+    private int findRun(int count) {
+	int run = 0;
+
+	for (int frame=0; frame<numFrames; frame++) {
+	    long word = freeMap[frame/wordBits];
+
+	    if (frame%wordBits == 0 && word == 0) {
+		// nothing free in this word
+		run = 0;
+		frame += wordBits-1;
+	    }
+	    else if (frame%wordBits == 0 && word == -1L &&
+		     run+wordBits < count) {
+		// the whole word is free, but the run still isn't long enough
+		run += wordBits;
+		frame += wordBits-1;
+	    }
+	    else if ((word & (1L << (frame%wordBits))) != 0) {
+		if (++run == count)
+		    return frame-count+1;
+	    }
+	    else {
+		run = 0;
+	    }
+	}
+
+	return -1;
+    }
+
+    private void take(int first, int count) {
+	for (int frame=first; frame<first+count; frame++) {
+	    long bit = 1L << (frame%wordBits);
+	    Lib.assertTrue((freeMap[frame/wordBits] & bit) != 0);
+
+	    freeMap[frame/wordBits] &= ~bit;
+	    refCount[frame] = 1;
+	}
+
+	numFree -= count;
+    }
+
+    private int numFrames;
+
+    /** One bit per frame, set if the frame is free. */
+    private long[] freeMap;
+    /** The number of references to each allocated frame. */
+    private int[] refCount;
+    private int numFree;
+
+    /** The word of <tt>freeMap</tt> to search first. */
+    private int hint = 0;
+
+    private static final int wordBits = 64;
+    private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,323 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * A position in the virtual memory of a user process, used to read and write
+ * syscall arguments in place.
+ *
+ * <p>
+ * A cursor translates one page at a time through
+ * <tt>UserProcess.pinPage()</tt>, and keeps the current page pinned until it
+ * moves off it or the access is done, so scanning a string or an array costs
+ * one translation per page rather than one per byte, and the page cannot be
+ * evicted while it is being copied. Data is read straight out of physical
+ * memory: scanning for a null terminator, for example, does not copy
+ * anything until the length of the string is known.
+ *
+ * <p>
+ * Once an access touches a page that cannot be translated, the cursor is
+ * <i>faulted</i>: that access and every later one fails, until the cursor is
+ * moved with <tt>seek()</tt>. This lets a caller marshal a whole structure
+ * and check for a bad address once at the end.
+ */
+public class MemoryCursor {
+    /**
+     * Allocate a new cursor at the specified address.
+     *
+     * @param	process	the process whose memory to access.
+     * @param	vaddr	the initial virtual address.
+     */
+    public MemoryCursor(UserProcess process, int vaddr) {
+	this.process = process;
+	seek(vaddr);
+    }
+
+    /**
+     * Move this cursor to the specified address, clearing any fault.
+     *
+     * @param	vaddr	the new virtual address.
+     * @return	this cursor.
+     */
+    public MemoryCursor seek(int vaddr) {
+	release();
+	this.vaddr = vaddr;
+	faulted = (vaddr < 0);
+	return this;
+    }
+
+    /**
+     * Return the virtual address this cursor is at.
+     *
+     * @return	the current virtual address.
+     */
+    public int getAddress() {
+	return vaddr;
+    }
+
+    /**
+     * Test whether an access through this cursor has failed since the last
+     * <tt>seek()</tt>.
+     *
+     * @return	<tt>true</tt> if the cursor reached an untranslatable page.
+     */
+    public boolean faulted() {
+	return faulted;
+    }
+
+    /**
+     * Read bytes into the specified array, stopping early at a page that
+     * cannot be translated.
+     *
+     * @param	dest	the array where the data will be stored.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to read.
+     * @return	the number of bytes read.
+     */
+    public int read(byte[] dest, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= dest.length);
+
+	byte[] memory = Machine.processor().getMemory();
+	int amount = 0;
+
+	while (amount < length) {
+	    int paddr = translate(false);
+	    if (paddr == -1)
+		break;
+
+	    int chunk = Math.min(length-amount, pageSize - pageOffset());
+	    System.arraycopy(memory, paddr, dest, offset+amount, chunk);
+
+	    amount += chunk;
+	    vaddr += chunk;
+	}
+
+	release();
+	return amount;
+    }
+
+    /**
+     * Write bytes from the specified array, stopping early at a page that
+     * cannot be translated or is read-only.
+     *
+     * @param	src	the array containing the data to write.
+     * @param	offset	the first byte to transfer from the array.
+     * @param	length	the number of bytes to write.
+     * @return	the number of bytes written.
+     */
+    public int write(byte[] src, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= src.length);
+
+	byte[] memory = Machine.processor().getMemory();
+	int amount = 0;
+
+	while (amount < length) {
+	    int paddr = translate(true);
+	    if (paddr == -1)
+		break;
+
+	    int chunk = Math.min(length-amount, pageSize - pageOffset());
+	    System.arraycopy(src, offset+amount, memory, paddr, chunk);
+
+	    amount += chunk;
+	    vaddr += chunk;
+	}
+
+	release();
+	return amount;
+    }
+
+    /**
+     * Read a 32-bit little-endian integer and advance past it.
+     *
+     * @return	the integer read, or 0 if the cursor faulted.
+     */
+    public int readInt() {
+	int value = 0;
+
+	for (int i=0; i<4; i++) {
+	    int paddr = translate(false);
+	    if (paddr == -1)
+		return 0;
+
+	    value |= (Machine.processor().getMemory()[paddr] & 0xFF) << (8*i);
+	    vaddr++;
+	}
+
+	release();
+	return value;
+    }
+
+    /**
+     * Read an array of 32-bit integers, such as a table of pointers.
+     *
+     * @param	dest	the array where the integers will be stored.
+     * @param	offset	the first element to write in the array.
+     * @param	count	the number of integers to read.
+     * @return	the number of integers read before the cursor faulted.
+     */
+    public int readInts(int[] dest, int offset, int count) {
+	Lib.assertTrue(offset >= 0 && count >= 0 &&
+		       offset+count <= dest.length);
+
+	for (int i=0; i<count; i++) {
+	    int value = readInt();
+	    if (faulted)
+		return i;
+
+	    dest[offset+i] = value;
+	}
+
+	return count;
+    }
+
+    /**
+     * Write a 32-bit little-endian integer and advance past it.
+     *
+     * @param	value	the integer to write.
+     * @return	<tt>true</tt> if all four bytes were written.
+     */
+    public boolean writeInt(int value) {
+	for (int i=0; i<4; i++) {
+	    int paddr = translate(true);
+	    if (paddr == -1)
+		return false;
+
+	    Machine.processor().getMemory()[paddr] = (byte) (value >> (8*i));
+	    vaddr++;
+	}
+
+	release();
+	return true;
+    }
+
+    /**
+     * Read a null-terminated string, and advance past its null terminator.
+     * The string is first measured in place, so only the bytes of the string
+     * itself are ever copied.
+     *
+     * @param	maxLength	the maximum number of characters in the string,
+     *				not including the null terminator.
+     * @return	the string read, or <tt>null</tt> if no null terminator was
+     *		found or the cursor faulted.
+     */
+    public String readString(int maxLength) {
+	Lib.assertTrue(maxLength >= 0);
+
+	int start = vaddr;
+	int length = scanForNull(maxLength);
+	if (length == -1) {
+	    release();
+	    return null;
+	}
+
+	vaddr = start;
+
+	String string;
+	if (Processor.pageFromAddress(start) ==
+	    Processor.pageFromAddress(start+length)) {
+	    // the string is all in one page, so make it straight from memory
+	    int paddr = translate(false);
+	    string = new String(Machine.processor().getMemory(), paddr, length);
+	}
+	else {
+	    byte[] bytes = new byte[length];
+	    read(bytes, 0, length);
+	    string = new String(bytes);
+	}
+
+	release();
+	vaddr = start + length + 1;
+	return faulted ? null : string;
+    }
+
+    /**
+     * Return the number of bytes before the next null byte, or -1 if there
+     * is none in the next <tt>maxLength+1</tt> bytes. Moves the cursor
+     * forward as it scans.
+     */
+    private int scanForNull(int maxLength) {
+	byte[] memory = Machine.processor().getMemory();
+	int length = 0;
+
+	while (length <= maxLength) {
+	    int paddr = translate(false);
+	    if (paddr == -1)
+		return -1;
+
+	    int end = paddr + Math.min(maxLength+1 - length,
+				       pageSize - pageOffset());
+	    for (int p=paddr; p<end; p++) {
+		if (memory[p] == 0)
+		    return length + (p-paddr);
+	    }
+
+	    length += end-paddr;
+	    vaddr += end-paddr;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the physical address of the current virtual address, translating
+     * and pinning its page if the cursor has moved onto a new one, or -1 if
+     * the page cannot be translated. The page stays pinned until
+     * <tt>release()</tt> is called.
+     */
+    private int translate(boolean write) {
+	if (faulted) {
+	    release();
+	    return -1;
+	}
+
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (entry == null || entryPage != vpn || (write && !writable)) {
+	    release();
+	    entry = process.pinPage(vpn, write);
+	    entryPage = vpn;
+	    writable = write;
+
+	    if (entry == null) {
+		faulted = true;
+		return -1;
+	    }
+	}
+
+	entry.used = true;
+	if (write)
+	    entry.dirty = true;
+
+	return Processor.makeAddress(entry.ppn, pageOffset());
+    }
+
+    /**
+     * Unpin the current page, if there is one. Every access calls this before
+     * returning, so a cursor never holds a page between accesses.
+     */
+    private void release() {
+	if (entry != null)
+	    process.unpinPage(entryPage);
+
+	entry = null;
+    }
+
+    private int pageOffset() {
+	return Processor.offsetFromAddress(vaddr);
+    }
+
+    private UserProcess process;
+    private int vaddr;
+    private boolean faulted;
+
+    /** The translation of the current page, which is pinned, or
+     *  <tt>null</tt>. */
+    private TranslationEntry entry;
+    private int entryPage;
+    /** Whether <tt>entry</tt> was translated for writing. */
+    private boolean writable;
+
+    private static final int pageSize = Processor.pageSize;
+}
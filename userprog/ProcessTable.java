@@ -0,0 +1,132 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Maps process IDs to user processes.
+ *
+ * <p>
+ * The table is an array indexed by PID, so lookup takes constant time. Free
+ * PIDs are kept in a FIFO list threaded through the table, so allocating and
+ * freeing a PID also take constant time, and a PID that has just been freed
+ * is the last one to be reused. When every PID is in use, the table doubles
+ * in size. A process holds its PID from when it is created until it has
+ * exited and been reaped (joined by its parent, or orphaned).
+ */
+public class ProcessTable {
+    /**
+     * Allocate a new, empty process table.
+     */
+    public ProcessTable() {
+	processes = new UserProcess[initialSize];
+	nextFree = new int[initialSize];
+
+	freeHead = freeTail = -1;
+	addFree(0, initialSize);
+    }
+
+    /**
+     * Add a process to this table.
+     *
+     * @param	process	the new process.
+     * @return	the PID allocated to the process.
+     */
+    public int add(UserProcess process) {
+	Lib.assertTrue(process != null);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (freeHead == -1)
+	    grow();
+
+	int pid = freeHead;
+	freeHead = nextFree[pid];
+	if (freeHead == -1)
+	    freeTail = -1;
+
+	processes[pid] = process;
+	numProcesses++;
+
+	Machine.interrupt().restore(intStatus);
+
+	return pid;
+    }
+
+    /**
+     * Return the process with the specified PID.
+     *
+     * @param	pid	the PID to look up.
+     * @return	the process, or <tt>null</tt> if no process has that PID.
+     */
+    public UserProcess get(int pid) {
+	if (pid < 0 || pid >= processes.length)
+	    return null;
+
+	return processes[pid];
+    }
+
+    /**
+     * Remove a process from this table, freeing its PID for reuse.
+     *
+     * @param	pid	the PID of the process to remove.
+     */
+    public void remove(int pid) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(get(pid) != null);
+
+	processes[pid] = null;
+	numProcesses--;
+	addFree(pid, 1);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of processes in this table.
+     *
+     * @return	the number of processes that have not been reaped.
+     */
+    public int size() {
+	return numProcesses;
+    }
+
+    private void grow() {
+	int oldSize = processes.length;
+
+	UserProcess[] newProcesses = new UserProcess[oldSize*2];
+	System.arraycopy(processes, 0, newProcesses, 0, oldSize);
+	processes = newProcesses;
+
+	int[] newNextFree = new int[oldSize*2];
+	System.arraycopy(nextFree, 0, newNextFree, 0, oldSize);
+	nextFree = newNextFree;
+
+	addFree(oldSize, oldSize);
+    }
+
+    /**
+     * Append <i>count</i> consecutive PIDs to the end of the free list.
+     */
+    private void addFree(int first, int count) {
+	for (int pid=first; pid<first+count; pid++) {
+	    nextFree[pid] = -1;
+
+	    if (freeTail == -1)
+		freeHead = pid;
+	    else
+		nextFree[freeTail] = pid;
+
+	    freeTail = pid;
+	}
+    }
+
+    /** The process with each PID, or <tt>null</tt> if the PID is free. */
+    private UserProcess[] processes;
+    /** The free PID after each free PID, or -1 at the end of the list. */
+    private int[] nextFree;
+    private int freeHead, freeTail;
+    private int numProcesses = 0;
+
+    private static final int initialSize = 16;
+}
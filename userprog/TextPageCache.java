@@ -0,0 +1,236 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * A kernel-wide cache of the read-only section pages of executables.
+ *
+ * <p>
+ * The first process to load a read-only page of an executable adds its frame
+ * to the cache, and every later process running the same executable maps the
+ * same frame instead of allocating and loading its own. The cache holds one
+ * reference to each frame (see <tt>FrameAllocator.share()</tt>), and each
+ * process mapping it holds another, so a cached page outlives the processes
+ * using it and is ready for the next exec.
+ *
+ * <p>
+ * Executables are identified by file name. Creating, removing or writing a
+ * file drops the cached pages of any executable with that name; processes that
+ * are still running keep their own references to the old frames. When
+ * memory runs short, <tt>trim()</tt> frees the cached frames that no
+ * process is using.
+ */
+public class TextPageCache {
+    /**
+     * Allocate a new, empty text page cache.
+     */
+    public TextPageCache() {
+    }
+
+    /**
+     * Look up a cached page, adding a reference to its frame for the caller.
+     *
+     * @param	name	the file name of the executable.
+     * @param	section	the section number.
+     * @param	page	the page number within the section.
+     * @return	the frame holding the page, or -1 if it is not cached.
+     */
+    public int lookup(String name, int section, int page) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int frame = -1;
+	int[][] sections = executables.get(name);
+	if (sections != null && section < sections.length &&
+	    sections[section] != null && page < sections[section].length)
+	    frame = sections[section][page];
+
+	if (frame != -1) {
+	    UserKernel.frameAllocator.share(frame);
+	    hits++;
+	}
+	else {
+	    misses++;
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return frame;
+    }
+
+    /**
+     * Add a freshly loaded page to the cache. The cache takes its own
+     * reference to the frame; the caller keeps its reference. If the page
+     * was cached in the meantime, or the sections cached under the same name
+     * are laid out differently, the cache is left alone.
+     *
+     * @param	name	the file name of the executable.
+     * @param	numSections	the number of sections in the executable.
+     * @param	section	the section number.
+     * @param	numPages	the number of pages in the section.
+     * @param	page	the page number within the section.
+     * @param	frame	the frame holding the page.
+     */
+    public void insert(String name, int numSections, int section,
+		       int numPages, int page, int frame) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int[][] sections = executables.get(name);
+	if (sections == null) {
+	    sections = new int[numSections][];
+	    executables.put(name, sections);
+	}
+
+	// a page of some other executable that had the same name
+	if (sections.length != numSections ||
+	    (sections[section] != null &&
+	     sections[section].length != numPages)) {
+	    Machine.interrupt().restore(intStatus);
+	    return;
+	}
+
+	if (sections[section] == null) {
+	    sections[section] = new int[numPages];
+	    for (int i=0; i<numPages; i++)
+		sections[section][i] = -1;
+	}
+
+	if (sections[section][page] == -1) {
+	    UserKernel.frameAllocator.share(frame);
+	    sections[section][page] = frame;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Drop every cached page of an executable, because its file is about to
+     * change.
+     *
+     * @param	name	the file name.
+     */
+    public void invalidate(String name) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int[][] sections = executables.remove(name);
+	if (sections != null)
+	    release(sections, false);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Drop the cache's reference to a frame, because the page it holds is
+     * being evicted. Every cached page is searched, but the cache holds only
+     * the read-only pages of a few executables.
+     *
+     * @param	frame	the frame.
+     */
+    public void drop(int frame) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int[][] sections : executables.values()) {
+	    for (int[] pages : sections) {
+		if (pages == null)
+		    continue;
+
+		for (int i=0; i<pages.length; i++) {
+		    if (pages[i] == frame) {
+			UserKernel.frameAllocator.free(frame);
+			pages[i] = -1;
+			Machine.interrupt().restore(intStatus);
+			return;
+		    }
+		}
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Free every cached frame that no process is using.
+     *
+     * @return	the number of frames freed.
+     */
+    public int trim() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int freed = 0;
+	for (Iterator<int[][]> i=executables.values().iterator(); i.hasNext(); ) {
+	    int[][] sections = i.next();
+
+	    freed += release(sections, true);
+	    if (isEmpty(sections))
+		i.remove();
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return freed;
+    }
+
+    /**
+     * Print the hit rate of this cache, for debugging.
+     */
+    public void printStats() {
+	Lib.debug(dbgCache, "text page cache: " + hits + " hits, " + misses
+		  + " misses");
+    }
+
+    /**
+     * Drop the cache's references to the pages of an executable. If
+     * <i>unusedOnly</i> is true, only pages no process is using are dropped.
+     * Returns the number of frames that were freed.
+     */
+    private int release(int[][] sections, boolean unusedOnly) {
+	int freed = 0;
+
+	for (int[] pages : sections) {
+	    if (pages == null)
+		continue;
+
+	    for (int i=0; i<pages.length; i++) {
+		int frame = pages[i];
+		if (frame == -1)
+		    continue;
+
+		boolean unused =
+		    (UserKernel.frameAllocator.getRefCount(frame) == 1);
+		if (unusedOnly && !unused)
+		    continue;
+
+		UserKernel.frameAllocator.free(frame);
+		pages[i] = -1;
+		if (unused)
+		    freed++;
+	    }
+	}
+
+	return freed;
+    }
+
+    private static boolean isEmpty(int[][] sections) {
+	for (int[] pages : sections) {
+	    if (pages == null)
+		continue;
+
+	    for (int frame : pages) {
+		if (frame != -1)
+		    return false;
+	    }
+	}
+
+	return true;
+    }
+
+    /** The cached frame of each page of each section, or -1. */
+    private HashMap<String, int[][]> executables =
+	new HashMap<String, int[][]>();
+
+    private int hits = 0, misses = 0;
+
+    private static final char dbgCache = 'a';
+}
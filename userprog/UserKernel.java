@@ -4,8 +4,6 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.util.LinkedList;
-
 /**
  * A kernel that can support multiple user processes.
  */
@@ -18,13 +16,22 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * Initialize this kernel. Creates a synchronized console, puts every
+     * frame of physical memory in the free pool, creates an empty process
+     * table, text page cache and executable cache, and sets the processor's
+     * exception handler.
      */
     public void initialize(String[] args) {
         super.initialize(args);
 
         console = new SynchConsole(Machine.console());
+
+        frameAllocator =
+            new FrameAllocator(Machine.processor().getNumPhysPages());
+        processTable = new ProcessTable();
+        textCache = new TextPageCache();
+        coffCache =
+            new CoffCache(Config.getInteger("UserKernel.coffCacheSize", 4));
         
         Machine.processor().setExceptionHandler(new Runnable() {
             public void run() { exceptionHandler(); }
@@ -84,23 +91,24 @@ public class UserKernel extends ThreadedKernel {
         process.handleException(cause);
     }
     
+    /**
+     * Allocate a single frame of physical memory.
+     *
+     * @return	the frame allocated, or -1 if physical memory is full.
+     */
     public static int getFreePage()
     {
-        int pgNum = -1;
-        boolean state = Machine.interrupt().disable();
-       
-        if(!freePages.isEmpty())
-	    	pgNum = (int)freePages.poll();
-
-        Machine.interrupt().restore(state);
-        return pgNum;
+        return frameAllocator.allocate();
     }
 
+    /**
+     * Return a frame of physical memory to the free pool.
+     *
+     * @param	page_number	the frame to free.
+     */
     public static void addFreePage(int page_number)
     {
-    	boolean state = Machine.interrupt().disable();
-    	freePages.add(page_number);
-    	Machine.interrupt().restore(state);
+        frameAllocator.free(page_number);
     }
 
     /**
@@ -125,15 +133,27 @@ public class UserKernel extends ThreadedKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+        textCache.printStats();
+        coffCache.printStats();
+
         super.terminate();
     }
 
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** The allocator for frames of physical memory. */
+    public static FrameAllocator frameAllocator;
+
+    /** The table of every process that has not been reaped. */
+    public static ProcessTable processTable;
+
+    /** The cache of read-only executable pages shared between processes. */
+    public static TextPageCache textCache;
+
+    /** The cache of parsed executables. */
+    public static CoffCache coffCache;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
-    
-    /* --------- Added Vars --------- */
-    private static LinkedList<Integer> freePages = new LinkedList<Integer>();
 }
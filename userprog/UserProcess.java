@@ -3,7 +3,6 @@ package nachos.userprog;
 import nachos.machine.*;
 import nachos.threads.*;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.io.EOFException;
 
@@ -26,17 +25,13 @@ public class UserProcess {
 
     public UserProcess() {
 		boolean intStatus = Machine.interrupt().disable();//disable he interupt
-		int numPhysPages = Machine.processor().getNumPhysPages();
-		pageTable = new TranslationEntry[numPhysPages];
-		for (int i=0; i<numPhysPages; i++)
-			pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
+		pageTable = new TranslationEntry[0];// filled in by loadSections()
 		joined = new Semaphore(0);// allocate memory for a semaphore we allocate when P when we join and V when we close
-		ProcessID=GenerateID++;//whenever we create a new process we allocate it a unique positive id the downside of this way is that we are limited to 2^32 processes
+		PID = UserKernel.processTable.add(this);// the PID is freed again once we have exited and been reaped
 		currentStatus=-1;// an invalid status
-		filedescriptors = new OpenFile[16];
-		filedescriptors[0] = UserKernel.console.openForReading();
-		filedescriptors[1] = UserKernel.console.openForWriting();
-		Processes.add(ProcessID,this);//this guarantees that the index will be the process ID even if a desynch happens if the machine interrup were to fail and another process gets added in before.
+		filedescriptors = new FileTable();
+		filedescriptors.add(UserKernel.console.openForReading());
+		filedescriptors.add(UserKernel.console.openForWriting());
 		Machine.interrupt().restore(intStatus);//restore the interupt
     }
 
@@ -86,8 +81,8 @@ public class UserProcess {
 
     private TranslationEntry getPageTableEntry(int virtualPageNumber)
     {
-    	// If the pageTable is null or if the virtualPageNumber is not within bounds
-    	if (pageTable.length == 0 || !withinBounds(virtualPageNumber))
+    	// If the virtualPageNumber is not within the pageTable
+    	if (virtualPageNumber < 0 || virtualPageNumber >= pageTable.length)
 	    {
 	    	// we return null
 	    	return null;
@@ -97,6 +92,153 @@ public class UserProcess {
 	    return pageTable[virtualPageNumber];
     }
 
+    /**
+     * Return the ID of this process.
+     *
+     * @return	the PID allocated from <tt>UserKernel.processTable</tt>.
+     */
+    public int getPID() {
+		return PID;
+    }
+
+    /**
+     * Return the translation of a virtual page that the kernel is about to
+     * access on behalf of this process. Used, through <tt>pinPage()</tt>, by
+     * <tt>MemoryCursor</tt> and the file I/O syscalls, so that the kernel
+     * walks the same translations whether or not the processor is using a
+     * TLB. A subclass that does not
+     * keep every page resident should override this to bring the page in.
+     *
+     * @param	vpn	the virtual page to access.
+     * @param	write	<tt>true</tt> if the page is about to be written.
+     * @return	the translation, or <tt>null</tt> if the page is not mapped,
+     *		or is read-only and <i>write</i> is <tt>true</tt>.
+     */
+    protected TranslationEntry translatePage(int vpn, boolean write)
+    {
+	    TranslationEntry tableEntry = getPageTableEntry(vpn);
+
+	    if (tableEntry == null || !tableEntry.valid)
+		    return null;
+
+	    // the kernel writing to a copy-on-write page must copy it first
+	    if (write && tableEntry.readOnly &&
+		(!copyOnWrite[vpn] || !breakCopyOnWrite(vpn)))
+		    return null;
+
+	    return tableEntry;
+    }
+
+    /**
+     * Give this process its own writable copy of a copy-on-write page. If no
+     * other process still shares the page's frame, the frame is simply made
+     * writable again.
+     *
+     * @param	vpn	the copy-on-write page.
+     * @return	<tt>true</tt> if the page is now writable, or <tt>false</tt>
+     *		if there was no free frame to copy it to.
+     */
+    protected boolean breakCopyOnWrite(int vpn)
+    {
+	    Lib.assertTrue(copyOnWrite[vpn]);
+
+	    TranslationEntry tableEntry = pageTable[vpn];
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    if (UserKernel.frameAllocator.getRefCount(tableEntry.ppn) > 1)
+	    {
+		    int frame = allocateFrame();
+		    if (frame == -1)
+		    {
+			    Machine.interrupt().restore(intStatus);
+			    return false;
+		    }
+
+		    byte[] memory = Machine.processor().getMemory();
+		    System.arraycopy(memory, tableEntry.ppn*pageSize, memory, frame*pageSize, pageSize);
+
+		    UserKernel.frameAllocator.free(tableEntry.ppn);
+		    tableEntry.ppn = frame;
+	    }
+
+	    tableEntry.readOnly = false;
+	    copyOnWrite[vpn] = false;
+
+	    Machine.interrupt().restore(intStatus);
+
+	    flushTLB(vpn);
+	    return true;
+    }
+
+    /**
+     * Allocate a frame for a page of this process. If memory is short,
+     * cached executable pages that no process is using are given back first.
+     *
+     * @return	the frame, or -1 if there is none.
+     */
+    protected int allocateFrame()
+    {
+	    int frame = UserKernel.frameAllocator.allocate();
+	    if (frame == -1 && UserKernel.textCache.trim() > 0)
+		    frame = UserKernel.frameAllocator.allocate();
+
+	    return frame;
+    }
+
+    /**
+     * Return the translation of a page the kernel is about to copy data into
+     * or out of, and keep the page where it is until <tt>unpinPage()</tt> is
+     * called, since the copy may block or be preempted. Pages
+     * never move here, so this is just <tt>translatePage()</tt>.
+     *
+     * @param	vpn	the virtual page to access.
+     * @param	write	<tt>true</tt> if the page is about to be written.
+     * @return	the translation, or <tt>null</tt> if the page is not mapped,
+     *		or is read-only and <i>write</i> is <tt>true</tt>.
+     */
+    protected TranslationEntry pinPage(int vpn, boolean write)
+    {
+	    return translatePage(vpn, write);
+    }
+
+    /**
+     * Release a page pinned by <tt>pinPage()</tt>.
+     *
+     * @param	vpn	the pinned page.
+     */
+    protected void unpinPage(int vpn)
+    {
+    }
+
+    /**
+     * Invalidate the processor's TLB entries for a page of this process,
+     * after its translation has changed. Does nothing if the processor has no
+     * TLB, since it then reads <tt>pageTable</tt> directly.
+     *
+     * @param	vpn	the page whose translation changed, or -1 for every
+     *			page.
+     */
+    protected void flushTLB(int vpn)
+    {
+	    Processor processor = Machine.processor();
+	    if (!processor.hasTLB())
+		    return;
+
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    for (int i = 0; i < processor.getTLBSize(); i++)
+	    {
+		    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+		    if (tlbEntry.valid && (vpn == -1 || tlbEntry.vpn == vpn))
+		    {
+			    tlbEntry.valid = false;
+			    processor.writeTLBEntry(i, tlbEntry);
+		    }
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * Read a null-terminated string from this process's virtual memory. Read
      * at most <tt>maxLength + 1</tt> bytes from the specified address, search
@@ -114,16 +256,7 @@ public class UserProcess {
     public String readVirtualMemoryString(int vaddr, int maxLength) {
 		Lib.assertTrue(maxLength >= 0);
 
-		byte[] bytes = new byte[maxLength+1];
-
-		int bytesRead = readVirtualMemory(vaddr, bytes);
-
-		for (int length=0; length<bytesRead; length++) {
-			if (bytes[length] == 0)
-			return new String(bytes, 0, length);
-        }
-
-        return null;
+		return new MemoryCursor(this, vaddr).readString(maxLength);
     }
 
     /**
@@ -155,65 +288,8 @@ public class UserProcess {
     public int readVirtualMemory(int vaddr, byte[] dest, int destPos,int length)
     {
 		Lib.assertTrue(destPos >= 0 && length >= 0 && destPos+length <= dest.length);
-		// 	    System.arraycopy(physicalMemory, srcPos, dest, destPos, memoryRead);
-
-	    // The amount of memory read in bytes
-	    int memoryRead = 0;
-
-	    byte[] physicalMemory = Machine.processor().getMemory();
-
-	    int firstVirtualPage = Processor.pageFromAddress(vaddr);
-	    int virtualOffset = Processor.offsetFromAddress(vaddr);
-	    int lastVirtualPage = Processor.pageFromAddress(vaddr + length);
-
-	    // The tableEntry in our pageTable
-	    // Has a few checks in the helper function to make our life easier
-	    TranslationEntry tableEntry = getPageTableEntry(firstVirtualPage);
-
-	    // If the entry is not within bounds or the pageTable is null OR we can't write to this
-	    if (tableEntry == null || !tableEntry.valid)
-	    {
-		    // we return the memory read (0 at this point)
-		    return memoryRead;
-	    }
-
-	    // The new length for system.arraycopy is the smallest, either length or pageSize - virtualOffset
-	    memoryRead = Math.min(length, pageSize - virtualOffset);
-
-	    // The starting position in the source array
-	    int srcPos = Processor.makeAddress(tableEntry.ppn, virtualOffset);
-
-	    // More information on System.arraycopy on TutorialsPoint
-	    // System.arraycopy(Obj srcArray, int startingPositionInSrc, Obj destArray, int destPositionStart, int length)
-	    System.arraycopy(physicalMemory, srcPos, dest, destPos, memoryRead);
 
-	    tableEntry.used = true;
-
-	    destPos += memoryRead;
-
-	    for (int i = firstVirtualPage + 1; i <= lastVirtualPage; i++)
-	    {
-		    tableEntry = getPageTableEntry(i);
-
-		    // If the entry is not within bounds or the pageTable is null OR we can't write to this
-		    if (tableEntry == null || !tableEntry.valid)
-		    {
-			    // we return the memory read
-			    return memoryRead;
-		    }
-
-		    int currentLength = Math.min(length - memoryRead, pageSize);
-		    int currentSrcPos = Processor.makeAddress(tableEntry.ppn, 0);
-
-		    System.arraycopy(physicalMemory, currentSrcPos, dest, destPos, currentLength);
-
-		    tableEntry.used = true;
-
-		    memoryRead += currentLength;
-		    destPos += currentLength;
-	    }
-
-	    return memoryRead;
+		return new MemoryCursor(this, vaddr).read(dest, destPos, length);
     }
 
     /**
@@ -244,68 +320,9 @@ public class UserProcess {
      * @return	the number of bytes successfully transferred.
      */
     public int writeVirtualMemory(int vaddr, byte[] dest, int destPos,int length) {
-	    Lib.assertTrue(destPos >= 0 && length >= 0 && destPos+length <= dest.length);
-
-	    // The amount of memory read in bytes
-	    int memoryRead = 0;
-
-	    byte[] physicalMemory = Machine.processor().getMemory();
-
-	    int firstVirtualPage = Processor.pageFromAddress(vaddr);
-	    int virtualOffset = Processor.offsetFromAddress(vaddr);
-	    int lastVirtualPage = Processor.pageFromAddress(vaddr + length);
-
-	    // The tableEntry in our pageTable
-	    // Has a few checks in the helper function to make our life easier
-	    TranslationEntry tableEntry = getPageTableEntry(firstVirtualPage);
-
-	    // If the entry is not within bounds or the pageTable is null OR we can't write to this
-	    if (tableEntry == null || !tableEntry.valid || tableEntry.readOnly)
-	    {
-		    // we return the memory read (0 at this point)
-		    return memoryRead;
-	    }
-
-	    // The new length for system.arraycopy is the smallest, either length or pageSize - virtualOffset
-	    memoryRead = Math.min(length, pageSize - virtualOffset);
-
-	    // The starting position in the source array
-	    int srcPos = Processor.makeAddress(tableEntry.ppn, virtualOffset);
-
-	    // More information on System.arraycopy on TutorialsPoint
-	    // System.arraycopy(Obj srcArray, int startingPositionInSrc, Obj destArray, int destPositionStart, int length)
-	    System.arraycopy(dest, destPos, physicalMemory, srcPos, memoryRead);
-
-	    tableEntry.used = true;
-	    tableEntry.dirty = true;
-
-	    destPos += memoryRead;
-
-	    for (int i = firstVirtualPage + 1; i <= lastVirtualPage; i++)
-	    {
-		    tableEntry = getPageTableEntry(i);
-
-		    // If the entry is not within bounds or the pageTable is null OR we can't write to this
-		    if (tableEntry == null || tableEntry.readOnly)
-		    {
-			    // we return the memory read
-			    return memoryRead;
-		    }
-
-		    int currentLength = Math.min(length - memoryRead, pageSize);
-		    int currentSrcPos = Processor.makeAddress(tableEntry.ppn, 0);
-
-		    System.arraycopy(dest, destPos, physicalMemory, currentSrcPos, currentLength);
-
-		    tableEntry.used = true;
-		    // Table entry has been changed, so we flip the dirty bit to true
-		    tableEntry.dirty = true;
-
-		    memoryRead += currentLength;
-		    destPos += currentLength;
-	    }
+		Lib.assertTrue(destPos >= 0 && length >= 0 && destPos+length <= dest.length);
 
-	    return memoryRead;
+		return new MemoryCursor(this, vaddr).write(dest, destPos, length);
     }
 
     /**
@@ -321,20 +338,13 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
-			return false;
-		}
-
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
+		// repeated execs of the same file share its parsed headers
+		coff = UserKernel.coffCache.open(name);
+		if (coff == null) {
 			Lib.debug(dbgProcess, "\tcoff load failed");
 			return false;
 		}
+		coffName = name;
 
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
@@ -344,13 +354,14 @@ public class UserProcess {
 			if (section.getFirstVPN() != numPages)
 			{
 				coff.close();
+				coff = null;
 				Lib.debug(dbgProcess, "\tfragmented executable");
 				return false;
 			}
 			numPages += section.getLength();
 		}
 
-		// make sure the argv array will fit in one page
+		// make sure the argv array will fit in the argument pages
 		byte[][] argv = new byte[args.length][];
 		int argsSize = 0;
 		for (int i=0; i<args.length; i++) {
@@ -358,11 +369,13 @@ public class UserProcess {
 			// 4 bytes for argv[] pointer; then string plus one for null byte
 			argsSize += 4 + argv[i].length + 1;
 		}
-		if (argsSize > pageSize) {
+		if (argsSize > maxArgPages*pageSize) {
 			coff.close();
+			coff = null;
 			Lib.debug(dbgProcess, "\targuments too long");
 			return false;
 		}
+		argPages = Math.max(1, (argsSize + pageSize-1) / pageSize);
 
 		// program counter initially points at the program entry point
 		initialPC = coff.getEntryPoint();
@@ -371,26 +384,14 @@ public class UserProcess {
 		numPages += stackPages;
 		initialSP = numPages*pageSize;
 
-		// and finally reserve 1 page for arguments
-		numPages++;
-
-		// Possible changes to be made
-
-		// for(int i = 0; i < numPages; i++)
-		// {
-		// 	int physPageNum = UserKernel.getFreePage();
-		//
-		// 	// TranslationEntry(int vpgnum, int physpgnum, bool valid,
-		// 	//								bool readOnly, bool used, bool dirty)
-		// 	pageTable[i] = new TranslationEntry(i, physPageNum, true,
-		// 										false, false, false);
-		// }
+		// and finally reserve the pages for arguments
+		numPages += argPages;
 
 		if (!loadSections())
 			return false;
 
-		// store arguments in last page
-		int entryOffset = (numPages-1)*pageSize;
+		// store arguments in the last pages
+		int entryOffset = (numPages-argPages)*pageSize;
 		int stringOffset = entryOffset + args.length*4;
 
 		this.argc = args.length;
@@ -419,12 +420,60 @@ public class UserProcess {
      */
     protected boolean loadSections()
     {
-		if (numPages > Machine.processor().getNumPhysPages()) {
+		// read-only pages that another process has already loaded can be
+		// shared; everything else needs a frame of its own
+		int[] frames = new int[numPages];
+		boolean[] cached = new boolean[numPages];
+		int numCached = 0;
+
+		for (int s=0; s<coff.getNumSections(); s++)
+		{
+			CoffSection section = coff.getSection(s);
+			if (!section.isReadOnly())
+				continue;
+
+			for (int i=0; i<section.getLength(); i++)
+			{
+				int vpn = section.getFirstVPN()+i;
+				frames[vpn] = UserKernel.textCache.lookup(coffName, s, i);
+				cached[vpn] = (frames[vpn] != -1);
+				if (cached[vpn])
+					numCached++;
+			}
+		}
+
+		int[] fresh = new int[numPages - numCached];
+		if (!UserKernel.frameAllocator.allocate(fresh, 0, fresh.length) &&
+			(UserKernel.textCache.trim() == 0 ||
+			 !UserKernel.frameAllocator.allocate(fresh, 0, fresh.length))) {
+			for (int vpn=0; vpn<numPages; vpn++)
+			{
+				if (cached[vpn])
+					UserKernel.frameAllocator.free(frames[vpn]);
+			}
 			coff.close();
+			coff = null;
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
 		}
 
+		for (int vpn=0, next=0; vpn<numPages; vpn++)
+		{
+			if (!cached[vpn])
+				frames[vpn] = fresh[next++];
+		}
+		numFrames = numPages;
+
+		pageTable = new TranslationEntry[numPages];
+		copyOnWrite = new boolean[numPages];
+		for (int vpn=0; vpn<numPages; vpn++)
+			pageTable[vpn] = new TranslationEntry(vpn, frames[vpn], true, false, false, false);
+
+		// the sections fill their own pages, but the stack and argument
+		// pages must not show the previous owner's data
+		int stackStart = numPages - (stackPages+argPages);
+		FrameAllocator.zero(frames, stackStart, stackPages+argPages);
+
 		// load sections
 		for (int s=0; s<coff.getNumSections(); s++)
 		{
@@ -439,14 +488,19 @@ public class UserProcess {
 				TranslationEntry translation = pageTable[vpn];
 				translation.readOnly = section.isReadOnly();
 
-				// check to see if the page is within the physical bounds
-				if(!withinBounds(translation.ppn))
-					return false;
+				if (cached[vpn])
+					continue;
 
 				section.loadPage(i, translation.ppn);
+
+				// the file may have changed while the page was read
+				if (section.isReadOnly() && UserKernel.coffCache.isCurrent(coff))
+				{
+					UserKernel.textCache.insert(coffName, coff.getNumSections(), s,
+						section.getLength(), i, translation.ppn);
+				}
 			}
 		}
-		// scp -r userprog s18-4l-g5@klwin00.ucmerced.edu:~/P2/nachos
 		return true;
     }
 
@@ -455,9 +509,17 @@ public class UserProcess {
      */
     protected void unloadSections()
     {
-    	// Label the page as free to write to
-    	for(int i = 0; i < numPages; i++)
-    		UserKernel.addFreePage(pageTable[i].ppn);
+    	Lib.debug(dbgProcess, "UserProcess.unloadSections: freeing " + numFrames + " frames");
+
+    	// Label the page as free to write to; pages that were never
+    	// brought in have no frame
+    	for(int i = 0; i < pageTable.length; i++)
+    		if (pageTable[i].valid)
+    			UserKernel.addFreePage(pageTable[i].ppn);
+
+    	pageTable = new TranslationEntry[0];
+    	copyOnWrite = new boolean[0];
+    	numFrames = 0;
     }
 
     /**
@@ -470,6 +532,18 @@ public class UserProcess {
     public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		// a forked child carries on from its parent's fork() call
+		if (forkRegisters != null)
+		{
+			for (int i=0; i<Processor.numUserRegisters; i++)
+				processor.writeRegister(i, forkRegisters[i]);
+
+			processor.writeRegister(Processor.regV0, 0);
+			processor.advancePC();
+			forkRegisters = null;
+			return;
+		}
+
 		// by default, everything's 0
 		for (int i=0; i<processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
@@ -495,7 +569,7 @@ public class UserProcess {
 	}
 	
 	private boolean isInvalidDescriptor(int fd) {
-        	return fd < 0 || fd > 15 || filedescriptors[fd] == null;
+        	return filedescriptors.get(fd) == null;
 	}
 
 
@@ -509,7 +583,16 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallMmap = 10,
+	syscallReadv = 13,
+	syscallWritev = 14,
+	syscallPread = 15,
+	syscallPwrite = 16,
+	syscallIoSetup = 17,
+	syscallIoEnter = 18,
+	syscallFork = 19,
+	syscallSbrk = 20;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -530,6 +613,20 @@ public class UserProcess {
 	 *								</tt></td></tr>
 	 * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
 	 * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+	 * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+	 * <tr><td>13</td><td><tt>int  readv(int fd, struct iovec *iov,
+	 *								int iovcnt);</tt></td></tr>
+	 * <tr><td>14</td><td><tt>int  writev(int fd, struct iovec *iov,
+	 *								int iovcnt);</tt></td></tr>
+	 * <tr><td>15</td><td><tt>int  pread(int fd, char *buffer, int size,
+	 *								int offset);</tt></td></tr>
+	 * <tr><td>16</td><td><tt>int  pwrite(int fd, char *buffer, int size,
+	 *								int offset);</tt></td></tr>
+	 * <tr><td>17</td><td><tt>int  io_setup(struct io_ring *ring);</tt></td></tr>
+	 * <tr><td>18</td><td><tt>int  io_enter(int toSubmit, int minComplete);
+	 *								</tt></td></tr>
+	 * <tr><td>19</td><td><tt>int  fork();</tt></td></tr>
+	 * <tr><td>20</td><td><tt>char *sbrk(int increment);</tt></td></tr>
 	 * </table>
 	 *
 	 * @param	syscall	the syscall number.
@@ -553,9 +650,9 @@ public class UserProcess {
 			case syscallJoin:
 				return handleJoin(a0, a1);
 			case syscallCreate:
-				return handleCreate(readVirtualMemoryString(a0,256));
+				return handleCreate(readVirtualMemoryString(a0,MAX_STRING_LENGTH));
 			case syscallOpen:
-				return handleOpen(readVirtualMemoryString(a0,256));
+				return handleOpen(readVirtualMemoryString(a0,MAX_STRING_LENGTH));
 			case syscallRead:
 				return handleRead(a0, a1, a2);
 			case syscallWrite:
@@ -563,7 +660,25 @@ public class UserProcess {
 			case syscallClose:
 				return handleClose(a0);
 			case syscallUnlink:
-				return handleUnlink(readVirtualMemoryString(a0,256));
+				return handleUnlink(readVirtualMemoryString(a0,MAX_STRING_LENGTH));
+			case syscallMmap:
+				return handleMmap(a0, a1);
+			case syscallReadv:
+				return handleVectored(a0, a1, a2, true);
+			case syscallWritev:
+				return handleVectored(a0, a1, a2, false);
+			case syscallPread:
+				return handlePositional(a0, a1, a2, a3, true);
+			case syscallPwrite:
+				return handlePositional(a0, a1, a2, a3, false);
+			case syscallIoSetup:
+				return handleIoSetup(a0);
+			case syscallIoEnter:
+				return handleIoEnter(a0, a1);
+			case syscallFork:
+				return handleFork();
+			case syscallSbrk:
+				return handleSbrk(a0);
 			default:
 				Lib.debug(dbgProcess, "Unknown syscall " + syscall);
 				Lib.assertNotReached("Unknown system call!");
@@ -582,7 +697,7 @@ public class UserProcess {
 			return 0;
 		}
 
-		Machine.halt();
+		Kernel.kernel.terminate();
 
 		Lib.assertNotReached("Machine.halt() did not halt machine!");
 		return 0;
@@ -604,10 +719,10 @@ public class UserProcess {
 	 * Executes a program stored in the specified file with the specified
 	 * arguments, in a new child process.
 	 */
-	private int handleExec(int fileNameAddress, int argumentsPointerArray, int numArguments)
+	private int handleExec(int fileNameAddress, int argvAddress, int argc)
 	{
 		// If either of the addresses given are not within bounds or argc is a negative
-		if (!withinBounds(fileNameAddress) || !withinBounds(argv) || argc < 0)
+		if (!withinBounds(fileNameAddress) || !withinBounds(argvAddress) || argc < 0)
 		{
 			// we exit
 			handleExit(-1);
@@ -624,39 +739,33 @@ public class UserProcess {
 			return -1;
 		}
 
-		// The arguments we'll be passing onto the new child process
-		// TODO: Check if we can just shift numArguments left by 2 (<< 2)
-		byte argumentsArray[] = new byte[argumentsPointerArray * 4];
-
-		// If the size of the two aren't the same, that means readVirtualMemory couldn't read the entire array
-		// Maybe the size is more than MAX_STRING_LENGTH, maybe its less
-		// Either way, if the sizes aren't the same
-		if (argumentsArray.length != readVirtualMemory(numArguments, argumentsArray))
-		{
-			// we return unsuccessfully
-			return -1;
-		}
-
 		// The String arguments going to the new child
-		String arguments[] = new String[argumentsPointerArray];
+		String arguments[] = new String[argc];
+
+		// One cursor walks the argv pointer array, the other reads each
+		// argument string where it lies
+		MemoryCursor pointers = new MemoryCursor(this, argvAddress);
+		MemoryCursor strings = new MemoryCursor(this, 0);
 
-		// Assign values to the arguments array
-		for (int i = 0; i < argumentsPointerArray; i++)
+		for (int i = 0; i < argc; i++)
 		{
-			// Set the memory address to the next argument
-			// Notice that the offset has to be multiplied by 4
-			// TODO: Check if we can just shift i left by 2 (<< 2)
-			int argumentAddress = Lib.bytesToInt(argumentsArray, i * 4);
+			int argumentAddress = pointers.readInt();
 
-			// If the address is not within bounds
-			if (!withinBounds(argumentAddress))
+			// If argv itself runs off the end of our memory
+			if (pointers.faulted())
 			{
 				// we return unsuccessfully
 				return -1;
 			}
 
-			// Otherwise, we read this virtual memory
-			arguments[i] = readVirtualMemoryString(argumentAddress, MAX_STRING_LENGTH);
+			arguments[i] = strings.seek(argumentAddress).readString(MAX_STRING_LENGTH);
+
+			// If the argument isn't a valid string
+			if (arguments[i] == null)
+			{
+				// we return unsuccessfully
+				return -1;
+			}
 		}
 
 		// The new child that will execute from the .coff file
@@ -665,33 +774,163 @@ public class UserProcess {
 		newChild.parent = this;
 
 		// Add this child to our HashMap of children
-		children.put(newChild.PID, new ChildProcess(newChild));
+		children.put(newChild.PID, newChild);
 
 		// Execute fileName with its arguments in the newChild
-		newChild.execute(fileName, arguments);
+		if (!newChild.execute(fileName, arguments))
+		{
+			// The child never ran, so nobody will ever join it
+			children.remove(newChild.PID);
+			newChild.releaseResources();
+			UserKernel.processTable.remove(newChild.PID);
+			return -1;
+		}
 
 		// Return the PID of the child who was just created
 		return newChild.PID;
 	}
 
-	public void handleExit(int status){
-		for(int i =0; i<16;i++){ // loop through all the files
-			if(filedescriptors[i] != null){ // check to see if there is something
-				filedescriptors[i].close(); // close the file
-				filedescriptors[i] = null; // kill it
+	/**
+	 * Handle the fork() system call. The child shares our open files, and
+	 * gets a copy-on-write copy of our address space: every writable page is
+	 * made read-only in both processes and shares its frame, and the first
+	 * process to write to it gets its own copy. The child starts running
+	 * from our fork() call, where it returns 0.
+	 *
+	 * @return	the PID of the child, or -1 if it could not be created.
+	 */
+	private int handleFork()
+	{
+		UserProcess child = newUserProcess();
+
+		FileTable files = filedescriptors.duplicate();
+		if (files == null)
+		{
+			child.releaseResources();
+			UserKernel.processTable.remove(child.PID);
+			return -1;
+		}
+		child.filedescriptors.closeAll();
+		child.filedescriptors = files;
+
+		copyAddressSpace(child);
+
+		// our own writable pages just became read-only
+		flushTLB(-1);
+
+		Processor processor = Machine.processor();
+		child.forkRegisters = new int[Processor.numUserRegisters];
+		for (int i = 0; i < Processor.numUserRegisters; i++)
+			child.forkRegisters[i] = processor.readRegister(i);
+
+		child.parent = this;
+		children.put(child.PID, child);
+
+		child.thread = (UThread) new UThread(child).setName(thread.getName());
+		child.thread.fork();
+
+		return child.PID;
+	}
+
+	/**
+	 * Give a forked child a copy-on-write copy of our address space. Every
+	 * resident writable page is made read-only in both processes, and its
+	 * frame is shared.
+	 *
+	 * @param	child	the new child process.
+	 */
+	protected void copyAddressSpace(UserProcess child)
+	{
+		boolean intStatus = Machine.interrupt().disable();
+
+		child.pageTable = new TranslationEntry[pageTable.length];
+		child.copyOnWrite = new boolean[pageTable.length];
+
+		for (int vpn = 0; vpn < pageTable.length; vpn++)
+		{
+			TranslationEntry tableEntry = pageTable[vpn];
+
+			if (tableEntry.valid)
+			{
+				if (!tableEntry.readOnly)
+				{
+					tableEntry.readOnly = true;
+					copyOnWrite[vpn] = true;
+				}
+
+				UserKernel.frameAllocator.share(tableEntry.ppn);
 			}
+
+			child.copyOnWrite[vpn] = copyOnWrite[vpn];
+			child.pageTable[vpn] = new TranslationEntry(tableEntry.vpn, tableEntry.ppn,
+				tableEntry.valid, tableEntry.readOnly, false, false);
 		}
+
+		child.numPages = numPages;
+		child.numFrames = numFrames;
+		child.coffName = coffName;
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	public void handleExit(int status){
+		releaseResources();
+
+		boolean intStatus = Machine.interrupt().disable();
+
 		currentStatus=status;// set the current status
 		NormExit=true;// say that we did a clean exit
+
+		// Children that have already exited were only waiting for us to
+		// reap them; the rest will reap themselves when they exit
+		for (UserProcess child : children.values())
+		{
+			if (child.exited)
+				UserKernel.processTable.remove(child.PID);
+			else
+				child.parent = null;
+		}
+		children.clear();
+
+		exited = true;
+
+		// Nobody can join an orphan, so it reaps itself
+		if (parent == null && PID != 0)
+			UserKernel.processTable.remove(PID);
+
 		joined.V();// decrement the semaphore
-		unloadSections();
 
-		if(ProcessID == 0 ) // Kernal is always the first process
+		Machine.interrupt().restore(intStatus);
+
+		if(PID == 0 ) // Kernal is always the first process
 			Kernel.kernel.terminate();// Terminate the kernel
 		else
 			KThread.currentThread().finish();// finish the thread
 	}
 
+	/**
+	 * Release everything this process holds except its PID: its open files,
+	 * its asynchronous I/O, its memory and page table, and its executable.
+	 * Only the exit status is kept until the process is reaped.
+	 */
+	private void releaseResources()
+	{
+		// asynchronous operations may still be writing into our memory
+		if (asyncIO != null)
+			asyncIO.drain();
+		asyncIO = null;
+
+		filedescriptors.closeAll();
+
+		unloadSections();
+
+		if (coff != null)
+		{
+			coff.close();
+			coff = null;
+		}
+	}
+
 	// -1 if we attempt to join something that isn't a child
 	// 1 if we exit okay
 	// 0 if we exit due to an unhandled exception
@@ -703,28 +942,21 @@ public class UserProcess {
 			return -1;
 		}
 
-		// If the children map is empty or we don't contain the pid,
-		// we return -1
-		if (children.isEmpty() || !children.containsKey(pid))
+		// If we don't have a child with this pid, we return -1
+		UserProcess child = children.get(pid);
+		if (child == null)
 		{
 			return -1;
 		}
 
-		// Guaranteed to not be null because of the above if statement
-		//ChildProcess child = children.get(pid);
-		ChildProcess child;
+		// Wait for the child to exit
+		child.joined.P();
 
-		if(children.get(pid) == null) // check if the pid supplied actually has a process assigned to it
-			return -1;
-		else
-			child = children.get(pid); // if it does has it make a "pointer" to it so we can do stuff
-
-		// If the UserProcess of the child is null then we return 0
-		if (child.process == null) return 0;
-        child.process.thread.join();
+		// Reap the child, so that its PID can be reused
 		children.remove(pid);
+		UserKernel.processTable.remove(pid);
 
-		if (writeVirtualMemory(status, Lib.bytesFromInt(Processes.get(pid).currentStatus)) == 4 && Processes.get(pid).NormExit)
+		if (new MemoryCursor(this, status).writeInt(child.currentStatus) && child.NormExit)
 		{
 			return 1;
 		}
@@ -736,31 +968,31 @@ public class UserProcess {
 	public int handleCreate(String name) {
 		// sanitize name
 
-		int fd = getAvailableFileDescriptor();
-		if(fd == -1)
+		if(name == null)
 			return -1;
 
+		// the file may be an executable whose text pages are cached
+		UserKernel.textCache.invalidate(name);
+		UserKernel.coffCache.invalidate(name);
+
 		OpenFile openfile = ThreadedKernel.fileSystem.open(name, true);
 		if(openfile == null)
 			return -1;
 
-		filedescriptors[fd] = openfile;
-		return 0;
+		return addFileDescriptor(openfile);
 	}
 
 	public int handleOpen(String name) {
 		// sanitize name
 
-		int fd = getAvailableFileDescriptor();
-		if(fd == -1)
+		if(name == null)
 			return -1;
 
 		OpenFile openfile = ThreadedKernel.fileSystem.open(name, false);
 		if(openfile == null)
 			return -1;
 
-		filedescriptors[fd] = openfile;
-		return 0;
+		return addFileDescriptor(openfile);
 	}
 
 	public int handleRead(int fd, int buffer, int size) {
@@ -769,36 +1001,224 @@ public class UserProcess {
 			return -1;
 		}
 
-		OpenFile openfile = filedescriptors[fd];
-		byte[] temp = new byte[size];
+		return transferFile(filedescriptors.get(fd), -1, buffer, size, true);
+	}
 
-		if( openfile.read(temp, 0, size) != size )
+	public int handleWrite(int fd, int buffer, int size) {
+        	if(isInvalidDescriptor(fd) || !withinBounds(buffer) || size < 0) {
+			UThread.currentThread().finish();
 			return -1;
+		}
 
-        	int actualSize = writeVirtualMemory(buffer, temp);
-		if( actualSize != size )
+		return transferFile(filedescriptors.get(fd), -1, buffer, size, false);
+	}
+
+	/**
+	 * Handle the readv() and writev() system calls. The iovec array is
+	 * marshalled in place, and each buffer is transferred straight between
+	 * the file and user memory, so the whole batch costs one trap.
+	 *
+	 * @param	fd	the file descriptor.
+	 * @param	iov	the virtual address of the iovec array.
+	 * @param	iovcnt	the number of iovecs in the array.
+	 * @param	toMemory	<tt>true</tt> for readv(), <tt>false</tt> for
+	 *				writev().
+	 * @return	the total number of bytes transferred, or -1 on error.
+	 */
+	private int handleVectored(int fd, int iov, int iovcnt, boolean toMemory)
+	{
+		if (isInvalidDescriptor(fd) || iovcnt < 0 || iovcnt > maxIovecs)
+			return -1;
+
+		// read and check the whole array before transferring anything
+		int[] iovecs = new int[iovcnt*2];
+		if (new MemoryCursor(this, iov).readInts(iovecs, 0, iovecs.length) != iovecs.length)
 			return -1;
 
-		return actualSize;
+		for (int i = 0; i < iovcnt; i++)
+		{
+			if (iovecs[i*2+1] < 0)
+				return -1;
+		}
+
+		int total = 0;
+		for (int i = 0; i < iovcnt; i++)
+		{
+			int base = iovecs[i*2], length = iovecs[i*2+1];
+
+			int count = transferFile(filedescriptors.get(fd), -1, base, length, toMemory);
+			if (count == -1)
+				return (total == 0) ? -1 : total;
+
+			total += count;
+
+			// a short transfer ends the batch, just as it would end a read()
+			if (count < length)
+				break;
+		}
+
+		return total;
 	}
 
-	public int handleWrite(int fd, int buffer, int size) {
-        	if(isInvalidDescriptor(fd) || !withinBounds(buffer) || size < 0) {
-			UThread.currentThread().finish();
+	/**
+	 * Handle the pread() and pwrite() system calls, which use the positional
+	 * <tt>OpenFile</tt> methods and leave the file position alone.
+	 *
+	 * @param	fd	the file descriptor.
+	 * @param	buffer	the virtual address of the buffer.
+	 * @param	size	the number of bytes to transfer.
+	 * @param	offset	the byte offset in the file.
+	 * @param	toMemory	<tt>true</tt> for pread(), <tt>false</tt> for
+	 *				pwrite().
+	 * @return	the number of bytes transferred, or -1 on error.
+	 */
+	private int handlePositional(int fd, int buffer, int size, int offset, boolean toMemory)
+	{
+		if (isInvalidDescriptor(fd) || size < 0 || offset < 0)
 			return -1;
-		}
 
-		OpenFile openfile = filedescriptors[fd];
-		byte[] temp = new byte[size];
+		return transferFile(filedescriptors.get(fd), offset, buffer, size, toMemory);
+	}
+
+	/**
+	 * Handle the mmap() system call, which maps an open file into the
+	 * address space. This process keeps every page resident, so it cannot
+	 * fault the pages of a file in on demand, and mmap() always fails; see
+	 * <tt>VMProcess</tt>.
+	 *
+	 * @param	fd	the file descriptor.
+	 * @param	address	the virtual address to map the file at.
+	 * @return	the length of the file, or -1 on error.
+	 */
+	protected int handleMmap(int fd, int address)
+	{
+		return -1;
+	}
+
+	/**
+	 * Handle the sbrk() system call, which moves the program break, the end
+	 * of the heap, by <i>increment</i> bytes. This process keeps every page
+	 * resident, so it has no heap to grow, and sbrk() always fails; see
+	 * <tt>VMProcess</tt>.
+	 *
+	 * @param	increment	the number of bytes to grow the heap by, or
+	 *				to shrink it by if negative.
+	 * @return	the old program break, or -1 on error.
+	 */
+	protected int handleSbrk(int increment)
+	{
+		return -1;
+	}
 
-		if( readVirtualMemory(buffer, temp) != size )
+	/**
+	 * Handle the io_setup() system call, which registers the rings used for
+	 * asynchronous I/O. A process can only set up one pair of rings.
+	 */
+	private int handleIoSetup(int ring)
+	{
+		if (asyncIO != null)
 			return -1;
 
-		int actualSize = openfile.write(temp, 0, size);
-		if(actualSize != size)
+		asyncIO = AsyncIO.setup(this, ring);
+
+		return (asyncIO == null) ? -1 : 0;
+	}
+
+	/**
+	 * Handle the io_enter() system call, which submits a batch of
+	 * asynchronous operations and waits for some of them to complete.
+	 */
+	private int handleIoEnter(int toSubmit, int minComplete)
+	{
+		if (asyncIO == null)
 			return -1;
 
-		return actualSize;
+		return asyncIO.enter(toSubmit, minComplete);
+	}
+
+	/**
+	 * Return the file open on the specified descriptor.
+	 *
+	 * @param	fd	the file descriptor.
+	 * @return	the open file, or <tt>null</tt> if the descriptor is invalid.
+	 */
+	OpenFile getOpenFile(int fd)
+	{
+		if (isInvalidDescriptor(fd))
+			return null;
+
+		return filedescriptors.get(fd);
+	}
+
+	/**
+	 * Transfer data between an open file and this process's virtual memory,
+	 * walking the page table one page at a time. The file reads into, or
+	 * writes from, physical memory directly, so no intermediate buffer is
+	 * needed. The transfer stops early at the first page that is not mapped
+	 * (or is read-only, when reading into memory), or when the file transfers
+	 * fewer bytes than asked.
+	 *
+	 * @param	openfile	the file to read from or write to.
+	 * @param	pos	the offset in the file to start at, or -1 to use (and
+	 *			advance) the file's own position.
+	 * @param	vaddr	the first byte of virtual memory to transfer.
+	 * @param	length	the number of bytes to transfer.
+	 * @param	toMemory	<tt>true</tt> to read from the file into memory,
+	 *				<tt>false</tt> to write memory to the file.
+	 * @return	the number of bytes transferred, or -1 if the file failed
+	 *		before any bytes were transferred.
+	 */
+	protected int transferFile(OpenFile openfile, int pos, int vaddr, int length, boolean toMemory)
+	{
+		byte[] physicalMemory = Machine.processor().getMemory();
+		int transferred = 0;
+
+		// the file may be an executable that has been parsed and cached
+		if (!toMemory)
+		{
+			UserKernel.textCache.invalidate(openfile.getName());
+			UserKernel.coffCache.invalidate(openfile.getName());
+		}
+
+		while (transferred < length)
+		{
+			int vpn = Processor.pageFromAddress(vaddr + transferred);
+			int offset = Processor.offsetFromAddress(vaddr + transferred);
+
+			TranslationEntry tableEntry = pinPage(vpn, toMemory);
+			if (tableEntry == null)
+				break;
+
+			int amount = Math.min(length - transferred, pageSize - offset);
+			int paddr = Processor.makeAddress(tableEntry.ppn, offset);
+
+			int count;
+			if (pos < 0 && toMemory)
+				count = openfile.read(physicalMemory, paddr, amount);
+			else if (pos < 0)
+				count = openfile.write(physicalMemory, paddr, amount);
+			else if (toMemory)
+				count = openfile.read(pos + transferred, physicalMemory, paddr, amount);
+			else
+				count = openfile.write(pos + transferred, physicalMemory, paddr, amount);
+
+			unpinPage(vpn);
+
+			if (count < 0)
+				return (transferred == 0) ? -1 : transferred;
+
+			tableEntry.used = true;
+			if (toMemory && count > 0)
+				tableEntry.dirty = true;
+
+			transferred += count;
+
+			// a short count means end of file or no more input for now
+			if (count < amount)
+				break;
+		}
+
+		return transferred;
 	}
 
 	public int handleClose(int fd) {
@@ -807,13 +1227,18 @@ public class UserProcess {
 			return -1;
 		}
 
-		filedescriptors[fd].close();
-		filedescriptors[fd] = null;
+		filedescriptors.close(fd);
 
 		return 0;
 	}
 
 	public int handleUnlink(String name) {
+		if(name == null)
+			return -1;
+
+		UserKernel.textCache.invalidate(name);
+		UserKernel.coffCache.invalidate(name);
+
 		if( ThreadedKernel.fileSystem.remove(name) == true )
 			return 0;
 		return -1;
@@ -842,70 +1267,91 @@ public class UserProcess {
 			processor.advancePC();
 			break;
 
-		default:
+		case Processor.exceptionReadOnly:
+			int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+
+			// a write to a copy-on-write page; retry it once we have our own copy
+			if (vpn < copyOnWrite.length && copyOnWrite[vpn])
+			{
+				if (!breakCopyOnWrite(vpn))
+				{
+					Lib.debug(dbgProcess, "\tout of memory copying page " + vpn);
+					handleExit(-1);
+				}
+				break;
+			}
+
 			Lib.debug(dbgProcess, "Unexpected exception: " +
 				  Processor.exceptionNames[cause]);
 			Lib.assertNotReached("Unexpected exception");
-		}
-    }
-
-	private static class ChildProcess
-	{
-		public UserProcess process;
-		public Integer returnValue;
+			break;
 
-		public ChildProcess(UserProcess process)
-		{
-			this.process = process;
-			this.returnValue = null;
+		default:
+			Lib.debug(dbgProcess, "Unexpected exception: " +
+				  Processor.exceptionNames[cause]);
+			Lib.assertNotReached("Unexpected exception");
 		}
-	}
-
-    protected int getAvailableFileDescriptor() {
-	for(int i = 0; i < 16; i++) {
-		if(filedescriptors[i] == null)
-			return i;
-	}
-	return -1;
     }
 
+    /**
+     * Give an open file the lowest free file descriptor. If there is none,
+     * the file is closed.
+     *
+     * @param	openfile	the open file.
+     * @return	the new file descriptor, or -1 if too many files are open.
+     */
     protected int addFileDescriptor(OpenFile openfile) {
-	int i = getAvailableFileDescriptor();
-	filedescriptors[i] = openfile;
-	return i;
+	int fd = filedescriptors.add(openfile);
+	if (fd == -1)
+		openfile.close();
+	return fd;
     }
 
-    public int ProcessID ;//id of the current process
-	private static int GenerateID = 0;//generate unique id
 	private Semaphore joined;
 	/** The program being run by this process. */
     protected Coff coff;
+    /** The file name <tt>coff</tt> was loaded from. */
+    protected String coffName;
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
+    /** Which pages are read-only only until they are next written. */
+    protected boolean[] copyOnWrite = new boolean[0];
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
+    /** The number of frames of physical memory held by this process. */
+    protected int numFrames = 0;
 
-    /** The number of pages in the program's stack. */
-    protected final int stackPages = 8;
+    /** The number of pages reserved for the program's stack. */
+    protected int stackPages = 8;
+    /** The number of pages holding the program's arguments, above the
+     *  stack. */
+    protected int argPages = 1;
+    /** The most pages the arguments may take. */
+    protected static final int maxArgPages = 16;
 
     private int initialPC, initialSP;
     private int argc, argv;
+    /** The registers a forked child starts with, or <tt>null</tt>. */
+    private int[] forkRegisters = null;
 
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
 
-    protected OpenFile[] filedescriptors;
+    protected FileTable filedescriptors;
+    /** The asynchronous I/O rings of this process, or <tt>null</tt>. */
+    private AsyncIO asyncIO = null;
 
     private int currentStatus = 0;
 	private static final int MAX_STRING_LENGTH = 256;
-	// May need to be static to comply with Patrick's code -- idk
+	/** The most buffers a single readv() or writev() may name. */
+	private static final int maxIovecs = 64;
+	/** This process's ID, allocated from <tt>UserKernel.processTable</tt>. */
 	private int PID;
 	private UserProcess parent;
     protected UThread thread;
-	private HashMap<Integer, ChildProcess> children = new HashMap<Integer, ChildProcess>();
-	// A Map of Child ids, this has the mapping of child ID -> Parent process
-	private static ArrayList<UserProcess> Processes = new ArrayList<UserProcess>();
-	// an arraylist to hold all processes, needed because some will not be a child
+	private HashMap<Integer, UserProcess> children = new HashMap<Integer, UserProcess>();
+	// A Map of Child ids, this has the mapping of child ID -> child process
 	private boolean NormExit;
+	private boolean exited = false;
 }
@@ -0,0 +1,331 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A pool of evicted pages kept compressed in kernel memory, in front of the
+ * swap file.
+ *
+ * <p>
+ * Every page saved here is named by a <i>handle</i>, which its process keeps
+ * for as long as it needs the saved copy. A page is compressed when it is
+ * written, and stays in the pool until the pool runs out of room; the pages
+ * that have been in the pool longest are then spilled to the swap file, and
+ * their handles refer to swap slots from then on. Spilled pages go through
+ * the swap file's write-behind buffer like any other, so they are still
+ * written in clusters.
+ *
+ * <p>
+ * A page that is all zeros is recognized before it is compressed, and takes
+ * no room at all. A page that does not compress to less than
+ * <tt>maxCompressedSize</tt> bytes is not worth keeping, and goes straight
+ * to swap. Reading a page back from the pool costs no file system delay.
+ *
+ * <p>
+ * Handles have reference counts, like swap slots, so a forked process can
+ * share its parent's saved pages.
+ */
+public class CompressedPool {
+    /**
+     * Allocate a new, empty pool.
+     *
+     * @param	swap	the swap file to spill pages to.
+     * @param	capacity	the most bytes of compressed data the pool may
+     *				hold.
+     */
+    public CompressedPool(SwapFile swap, int capacity) {
+	this.swap = swap;
+	this.capacity = capacity;
+
+	allocateHandles(64);
+    }
+
+    /**
+     * Save a page, copying it from physical memory.
+     *
+     * @param	frame	the frame holding the page.
+     * @return	the handle of the saved page, or -1 if it fits neither in the
+     *		pool nor in the swap file.
+     */
+    public int write(int frame) {
+	byte[] memory = Machine.processor().getMemory();
+	int offset = frame*pageSize;
+
+	int handle = allocateHandle();
+	numWrites++;
+
+	if (isZero(memory, offset)) {
+	    data[handle] = zeroPage;
+	    numZeroPages++;
+	    return handle;
+	}
+
+	deflater.reset();
+	deflater.setInput(memory, offset, pageSize);
+	deflater.finish();
+	int size = deflater.deflate(compressed);
+
+	if (deflater.finished() && makeRoom(size)) {
+	    data[handle] = Arrays.copyOf(compressed, size);
+	    pooled.add(handle);
+	    poolBytes += size;
+
+	    numCompressed++;
+	    compressedBytes += size;
+	    return handle;
+	}
+
+	slot[handle] = swap.write(frame);
+	if (slot[handle] == -1) {
+	    freeHandle(handle);
+	    return -1;
+	}
+
+	return handle;
+    }
+
+    /**
+     * Read a saved page back into physical memory.
+     *
+     * @param	handle	the handle of the page.
+     * @param	frame	the frame to read it into.
+     * @return	<tt>true</tt> if the page was read.
+     */
+    public boolean read(int handle, int frame) {
+	Lib.assertTrue(refCount[handle] > 0);
+	numReads++;
+
+	if (slot[handle] != -1)
+	    return swap.read(slot[handle], frame);
+
+	numHits++;
+	return decompress(handle, Machine.processor().getMemory(),
+			  frame*pageSize);
+    }
+
+    /**
+     * Read several saved pages back into physical memory at once. The pages
+     * that have been spilled are read from the swap file together.
+     *
+     * @param	handles	the handles of the pages.
+     * @param	frames	the frames to read them into, in the same order.
+     * @param	count	the number of pages to read.
+     * @return	<tt>true</tt> if every page was read.
+     */
+    public boolean read(int[] handles, int[] frames, int count) {
+	int[] slots = new int[count];
+	int[] slotFrames = new int[count];
+	int numSpilled = 0;
+
+	for (int i=0; i<count; i++) {
+	    int handle = handles[i];
+
+	    if (slot[handle] == -1) {
+		if (!read(handle, frames[i]))
+		    return false;
+	    }
+	    else {
+		Lib.assertTrue(refCount[handle] > 0);
+		slots[numSpilled] = slot[handle];
+		slotFrames[numSpilled] = frames[i];
+		numSpilled++;
+	    }
+	}
+
+	numReads += numSpilled;
+
+	return numSpilled == 0 || swap.read(slots, slotFrames, numSpilled);
+    }
+
+    /**
+     * Add a reference to a saved page, for a process that now shares it.
+     *
+     * @param	handle	the handle of the page.
+     */
+    public void share(int handle) {
+	Lib.assertTrue(refCount[handle] > 0);
+	refCount[handle]++;
+    }
+
+    /**
+     * Drop a reference to a saved page, discarding it once nobody refers to
+     * it.
+     *
+     * @param	handle	the handle of the page.
+     */
+    public void free(int handle) {
+	Lib.assertTrue(refCount[handle] > 0);
+
+	if (--refCount[handle] > 0)
+	    return;
+
+	if (slot[handle] != -1) {
+	    swap.free(slot[handle]);
+	}
+	else if (data[handle] != zeroPage) {
+	    pooled.remove(handle);
+	    poolBytes -= data[handle].length;
+	}
+
+	freeHandle(handle);
+    }
+
+    /**
+     * Print the compression ratio and hit rate of this pool, for debugging.
+     */
+    public void printStats() {
+	int ratio = (compressedBytes == 0) ? 0 :
+	    (int) ((long) numCompressed*pageSize*10 / compressedBytes);
+	int hitRate = (numReads == 0) ? 0 : numHits*100 / numReads;
+
+	Lib.debug(dbgVM, "compressed pool: " + numWrites + " pages saved ("
+		  + numZeroPages + " zero, " + numCompressed
+		  + " compressed " + ratio/10 + "." + ratio%10 + ":1), "
+		  + numSpills + " spilled; " + numHits + " of " + numReads
+		  + " pages read from the pool (" + hitRate + "%)");
+    }
+
+    /**
+     * Spill the oldest pages in the pool until <i>size</i> more bytes fit.
+     * Returns <tt>false</tt> if they cannot be made to fit.
+     */
+    private boolean makeRoom(int size) {
+	if (size > capacity)
+	    return false;
+
+	while (poolBytes + size > capacity) {
+	    Iterator<Integer> oldest = pooled.iterator();
+	    if (!spill(oldest.next()))
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Move a page from the pool to the swap file.
+     */
+    private boolean spill(int handle) {
+	if (!decompress(handle, page, 0))
+	    return false;
+
+	int s = swap.write(page, 0);
+	if (s == -1)
+	    return false;
+
+	pooled.remove(handle);
+	poolBytes -= data[handle].length;
+	data[handle] = null;
+	slot[handle] = s;
+
+	numSpills++;
+	return true;
+    }
+
+    /**
+     * Decompress a page in the pool into the specified array.
+     */
+    private boolean decompress(int handle, byte[] dest, int offset) {
+	if (data[handle] == zeroPage) {
+	    Arrays.fill(dest, offset, offset+pageSize, (byte) 0);
+	    return true;
+	}
+
+	inflater.reset();
+	inflater.setInput(data[handle]);
+
+	try {
+	    return inflater.inflate(dest, offset, pageSize) == pageSize;
+	}
+	catch (DataFormatException e) {
+	    return false;
+	}
+    }
+
+    private static boolean isZero(byte[] memory, int offset) {
+	for (int i=offset; i<offset+pageSize; i++) {
+	    if (memory[i] != 0)
+		return false;
+	}
+
+	return true;
+    }
+
+    private int allocateHandle() {
+	if (freeHead == -1)
+	    allocateHandles(refCount.length);
+
+	int handle = freeHead;
+	freeHead = slot[handle];
+
+	slot[handle] = -1;
+	refCount[handle] = 1;
+	return handle;
+    }
+
+    private void freeHandle(int handle) {
+	data[handle] = null;
+	refCount[handle] = 0;
+	slot[handle] = freeHead;
+	freeHead = handle;
+    }
+
+    /**
+     * Grow the handle arrays by <i>count</i> handles, and add the new ones to
+     * the free list, which is chained through <tt>slot</tt>.
+     */
+    private void allocateHandles(int count) {
+	int oldSize = (refCount == null) ? 0 : refCount.length;
+	int newSize = oldSize + count;
+
+	data = (oldSize == 0) ? new byte[newSize][] :
+	    Arrays.copyOf(data, newSize);
+	slot = (oldSize == 0) ? new int[newSize] : Arrays.copyOf(slot, newSize);
+	refCount = (oldSize == 0) ? new int[newSize] :
+	    Arrays.copyOf(refCount, newSize);
+
+	for (int handle=newSize-1; handle>=oldSize; handle--) {
+	    slot[handle] = freeHead;
+	    freeHead = handle;
+	}
+    }
+
+    private SwapFile swap;
+    private int capacity;
+
+    /** The compressed contents of each page in the pool, <tt>zeroPage</tt>
+     *  for a page of zeros, or <tt>null</tt>. */
+    private byte[][] data;
+    /** The swap slot of each spilled page, -1 for a page in the pool, or
+     *  the next free handle. */
+    private int[] slot;
+    private int[] refCount;
+    private int freeHead = -1;
+
+    /** The handles of the pages taking room in the pool, oldest first. */
+    private LinkedHashSet<Integer> pooled = new LinkedHashSet<Integer>();
+    private int poolBytes = 0;
+
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private Inflater inflater = new Inflater();
+    private byte[] compressed = new byte[maxCompressedSize];
+    /** Where a page is decompressed to on its way to the swap file. */
+    private byte[] page = new byte[pageSize];
+
+    private int numWrites = 0, numZeroPages = 0, numCompressed = 0,
+	numSpills = 0, numReads = 0, numHits = 0;
+    private long compressedBytes = 0;
+
+    private static final int pageSize = Processor.pageSize;
+    /** Pages that compress to more than this go straight to swap. */
+    private static final int maxCompressedSize = pageSize*3/4;
+    private static final byte[] zeroPage = new byte[0];
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,456 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * A kernel-wide cache of the pages of disk files, shared by the
+ * <tt>read()</tt> and <tt>write()</tt> system calls and by every process
+ * that maps a file with <tt>mmap()</tt>.
+ *
+ * <p>
+ * A cached page is named by its file and its page number within the file,
+ * and is held in a frame of physical memory. Like the text page cache, the
+ * cache holds one reference to each frame (see
+ * <tt>FrameAllocator.share()</tt>); every process mapping the page holds
+ * another, and a system call copying to or from the page holds one for as
+ * long as the copy takes. Reading or writing a cached page is a copy between
+ * two frames, with no file system delay.
+ *
+ * <p>
+ * Writing a page only marks it dirty. Dirty pages are written back lazily:
+ * when the page is evicted or trimmed, when a mapping of its file is removed,
+ * when its file is about to be run, and when the kernel terminates. Each file
+ * is read and written through an open file of the cache's own, so its pages
+ * can still be written back after every process has closed it. That file is
+ * opened when the cache first needs it, and closed once nobody is using the
+ * file and none of its pages are cached.
+ *
+ * <p>
+ * The stub file system only allows a few files to be open at once, so at
+ * most <tt>VMKernel.fileCacheIdleFiles</tt> files nobody is using keep
+ * cached pages. Past that, the least recently used file has its pages
+ * written back and dropped, and its open file closed. If the cache cannot
+ * open a file, it does the same to every such file and tries again.
+ *
+ * <p>
+ * Files are identified by name. Creating or removing a file drops its
+ * cached pages without writing them back; processes that still map them keep
+ * their frames, but nothing more is written to the file on their behalf.
+ *
+ * <p>
+ * Every method must be called with <tt>VMKernel.pagingLock</tt> held.
+ */
+public class FilePageCache {
+    /**
+     * Allocate a new, empty file page cache.
+     *
+     * @param	maxIdleFiles	the most files nobody is using to keep cached
+     *				pages of.
+     */
+    public FilePageCache(int maxIdleFiles) {
+	this.maxIdleFiles = maxIdleFiles;
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	frameFile = new CachedFile[numPhysPages];
+	framePage = new int[numPhysPages];
+	dirty = new boolean[numPhysPages];
+    }
+
+    /**
+     * Start using the pages of a file, opening it for the cache if it is not
+     * in use already. Every successful call must be matched by a call to
+     * <tt>close()</tt>.
+     *
+     * @param	name	the name of the file.
+     * @return	the cached file, or <tt>null</tt> if it cannot be opened.
+     */
+    public CachedFile open(String name) {
+	Lib.assertTrue(VMKernel.pagingLock.isHeldByCurrentThread());
+
+	CachedFile file = files.get(name);
+	if (file == null) {
+	    OpenFile openFile = ThreadedKernel.fileSystem.open(name, false);
+	    if (openFile == null && !idle.isEmpty()) {
+		// the file system may be out of open files
+		while (!idle.isEmpty())
+		    release(idle.iterator().next());
+		openFile = ThreadedKernel.fileSystem.open(name, false);
+	    }
+	    if (openFile == null)
+		return null;
+
+	    file = new CachedFile(name, openFile);
+	    files.put(name, file);
+	}
+
+	idle.remove(file);
+	file.numUsers++;
+	return file;
+    }
+
+    /**
+     * Add a user to a file that is already in use, for a forked process
+     * that inherits a mapping of it.
+     *
+     * @param	file	the cached file.
+     */
+    public void share(CachedFile file) {
+	Lib.assertTrue(file.numUsers > 0);
+	file.numUsers++;
+    }
+
+    /**
+     * Stop using the pages of a file. Its cached pages stay in the cache.
+     *
+     * @param	file	the cached file.
+     */
+    public void close(CachedFile file) {
+	Lib.assertTrue(file.numUsers > 0);
+	file.numUsers--;
+	closeIfUnused(file);
+
+	if (file.numUsers == 0 && !file.pages.isEmpty() && !file.stale) {
+	    idle.add(file);
+	    while (idle.size() > maxIdleFiles)
+		release(idle.iterator().next());
+	}
+    }
+
+    /**
+     * Return the length of a file, including anything written to its
+     * cached pages that has not been written back yet.
+     *
+     * @param	file	the cached file.
+     * @return	the length of the file, in bytes.
+     */
+    public int length(CachedFile file) {
+	return file.length;
+    }
+
+    /**
+     * Look up a cached page, adding a reference to its frame for the caller.
+     *
+     * @param	file	the cached file.
+     * @param	page	the page number within the file.
+     * @return	the frame holding the page, or -1 if it is not cached.
+     */
+    public int lookup(CachedFile file, int page) {
+	Lib.assertTrue(VMKernel.pagingLock.isHeldByCurrentThread());
+
+	Integer frame = file.pages.get(page);
+	if (frame == null) {
+	    misses++;
+	    return -1;
+	}
+
+	hits++;
+	recent.remove(frame);
+	recent.add(frame);
+
+	UserKernel.frameAllocator.share(frame);
+	return frame;
+    }
+
+    /**
+     * Read a page of a file into a frame, and add it to the cache. The bytes
+     * of the page past the end of the file are zeroed. The cache takes its
+     * own reference to the frame; the caller keeps its reference.
+     *
+     * @param	file	the cached file.
+     * @param	page	the page number within the file, which must not be
+     *			cached.
+     * @param	frame	the frame to read the page into.
+     * @return	<tt>true</tt> if the page was read.
+     */
+    public boolean load(CachedFile file, int page, int frame) {
+	Lib.assertTrue(VMKernel.pagingLock.isHeldByCurrentThread());
+	Lib.assertTrue(!file.pages.containsKey(page) && frameFile[frame] == null);
+
+	byte[] memory = Machine.processor().getMemory();
+	int count = bytesInPage(file, page);
+
+	if (count > 0 &&
+	    file.openFile.read(page*pageSize, memory, frame*pageSize, count)
+	    != count)
+	    return false;
+
+	Arrays.fill(memory, frame*pageSize + count, (frame+1)*pageSize,
+		    (byte) 0);
+
+	UserKernel.frameAllocator.share(frame);
+	file.pages.put(page, frame);
+	frameFile[frame] = file;
+	framePage[frame] = page;
+	dirty[frame] = false;
+	recent.add(frame);
+
+	return true;
+    }
+
+    /**
+     * Record that a cached page was written by <tt>write()</tt>, up to the
+     * specified offset in the file, which may extend the file.
+     *
+     * @param	frame	the frame holding the page.
+     * @param	end	the offset in the file just past the last byte written.
+     */
+    public void written(int frame, int end) {
+	CachedFile file = frameFile[frame];
+	Lib.assertTrue(file != null);
+
+	dirty[frame] = true;
+	file.length = Math.max(file.length, end);
+    }
+
+    /**
+     * Mark a cached page dirty, because a process wrote to it through a
+     * mapping.
+     *
+     * @param	frame	the frame holding the page.
+     */
+    public void setDirty(int frame) {
+	Lib.assertTrue(frameFile[frame] != null);
+	dirty[frame] = true;
+    }
+
+    /**
+     * Return whether a frame holds a cached page.
+     *
+     * @param	frame	the frame.
+     * @return	<tt>true</tt> if the frame belongs to this cache.
+     */
+    public boolean contains(int frame) {
+	return frameFile[frame] != null;
+    }
+
+    /**
+     * Drop the cache's reference to a frame, because the page it holds is
+     * being evicted, writing the page back first if it is dirty.
+     *
+     * @param	frame	the frame.
+     */
+    public void drop(int frame) {
+	Lib.assertTrue(VMKernel.pagingLock.isHeldByCurrentThread());
+
+	CachedFile file = frameFile[frame];
+	writeBack(frame);
+	forget(frame);
+	UserKernel.frameAllocator.free(frame);
+	closeIfUnused(file);
+    }
+
+    /**
+     * Free cached frames that nobody is using, least recently used first,
+     * writing dirty ones back.
+     *
+     * @param	count	the most frames to free.
+     * @return	the number of frames freed.
+     */
+    public int trim(int count) {
+	Lib.assertTrue(VMKernel.pagingLock.isHeldByCurrentThread());
+
+	ArrayList<Integer> unused = new ArrayList<Integer>();
+	for (int frame : recent) {
+	    if (unused.size() == count)
+		break;
+	    if (UserKernel.frameAllocator.getRefCount(frame) == 1 &&
+		!VMKernel.isPinned(frame))
+		unused.add(frame);
+	}
+
+	for (int frame : unused)
+	    drop(frame);
+
+	return unused.size();
+    }
+
+    /**
+     * Write back every dirty page of a file.
+     *
+     * @param	file	the cached file.
+     */
+    public void flush(CachedFile file) {
+	Lib.assertTrue(VMKernel.pagingLock.isHeldByCurrentThread());
+
+	for (int frame : new ArrayList<Integer>(file.pages.values()))
+	    writeBack(frame);
+    }
+
+    /**
+     * Write back every dirty page of a file, if it is cached, so that the
+     * file itself is up to date.
+     *
+     * @param	name	the name of the file.
+     */
+    public void flush(String name) {
+	CachedFile file = files.get(name);
+	if (file != null)
+	    flush(file);
+    }
+
+    /**
+     * Write back every dirty page in the cache.
+     */
+    public void flushAll() {
+	for (CachedFile file : new ArrayList<CachedFile>(files.values()))
+	    flush(file);
+    }
+
+    /**
+     * Drop every cached page of a file without writing it back, because the
+     * file is about to be truncated or removed. Pages that are still in use
+     * are no longer written back either.
+     *
+     * @param	name	the name of the file.
+     */
+    public void invalidate(String name) {
+	Lib.assertTrue(VMKernel.pagingLock.isHeldByCurrentThread());
+
+	CachedFile file = files.remove(name);
+	if (file == null)
+	    return;
+
+	file.stale = true;
+
+	for (int frame : new ArrayList<Integer>(file.pages.values())) {
+	    if (UserKernel.frameAllocator.getRefCount(frame) == 1) {
+		forget(frame);
+		UserKernel.frameAllocator.free(frame);
+	    }
+	}
+
+	closeIfUnused(file);
+    }
+
+    /**
+     * Print the hit rate of this cache, for debugging.
+     */
+    public void printStats() {
+	Lib.debug(dbgVM, "file page cache: " + hits + " hits, " + misses
+		  + " misses, " + numWritebacks + " pages written back");
+    }
+
+    /**
+     * Write a cached page back to its file if it is dirty.
+     */
+    private void writeBack(int frame) {
+	CachedFile file = frameFile[frame];
+	if (!dirty[frame])
+	    return;
+
+	// clear the bit first, so a write while we block dirties it again
+	dirty[frame] = false;
+	if (file.stale)
+	    return;
+
+	UserKernel.textCache.invalidate(file.name);
+	UserKernel.coffCache.invalidate(file.name);
+
+	int page = framePage[frame];
+	int count = bytesInPage(file, page);
+	if (count > 0 &&
+	    file.openFile.write(page*pageSize, Machine.processor().getMemory(),
+				frame*pageSize, count) != count)
+	    Lib.debug(dbgVM, "cannot write back page " + page + " of "
+		      + file.name);
+
+	numWritebacks++;
+    }
+
+    /**
+     * Remove a frame from the cache, without touching its reference.
+     */
+    private void forget(int frame) {
+	CachedFile file = frameFile[frame];
+
+	file.pages.remove(framePage[frame]);
+	frameFile[frame] = null;
+	dirty[frame] = false;
+	recent.remove(frame);
+    }
+
+    /**
+     * Write back and drop every cached page of a file nobody is using, which
+     * closes the cache's open file.
+     */
+    private void release(CachedFile file) {
+	Lib.assertTrue(file.numUsers == 0);
+
+	idle.remove(file);
+	for (int frame : new ArrayList<Integer>(file.pages.values()))
+	    drop(frame);
+    }
+
+    /**
+     * Close the cache's own open file once nobody is using the file and
+     * none of its pages are cached.
+     */
+    private void closeIfUnused(CachedFile file) {
+	if (file.numUsers > 0 || !file.pages.isEmpty())
+	    return;
+
+	idle.remove(file);
+	if (files.get(file.name) == file)
+	    files.remove(file.name);
+	file.openFile.close();
+    }
+
+    /**
+     * Return the number of bytes of a page that lie within its file.
+     */
+    private static int bytesInPage(CachedFile file, int page) {
+	return Math.max(0, Math.min(pageSize, file.length - page*pageSize));
+    }
+
+    /**
+     * A file with pages in the cache, or in use by a process.
+     */
+    public static class CachedFile {
+	private CachedFile(String name, OpenFile openFile) {
+	    this.name = name;
+	    this.openFile = openFile;
+	    this.length = openFile.length();
+	}
+
+	private String name;
+	/** The cache's own open file. */
+	private OpenFile openFile;
+	private int length;
+	/** The frame of each cached page. */
+	private HashMap<Integer, Integer> pages = new HashMap<Integer, Integer>();
+	/** The mappings and transfers using this file. */
+	private int numUsers = 0;
+	/** Whether the file has been truncated or removed since it was
+	 *  opened, so its pages must not be written back. */
+	private boolean stale = false;
+    }
+
+    /** The files in use or with cached pages, by name. */
+    private HashMap<String, CachedFile> files =
+	new HashMap<String, CachedFile>();
+
+    /** The file and page number each frame holds, or <tt>null</tt>. */
+    private CachedFile[] frameFile;
+    private int[] framePage;
+    /** Whether each cached page has been written since it was loaded or
+     *  written back. */
+    private boolean[] dirty;
+    /** The files nobody is using that still have cached pages, least
+     *  recently closed first. */
+    private LinkedHashSet<CachedFile> idle = new LinkedHashSet<CachedFile>();
+    private int maxIdleFiles;
+    /** The cached frames, least recently looked up first. */
+    private LinkedHashSet<Integer> recent = new LinkedHashSet<Integer>();
+
+    private int hits = 0, misses = 0, numWritebacks = 0;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
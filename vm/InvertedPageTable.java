@@ -0,0 +1,268 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The kernel-wide table of resident pages, mapping each frame of physical
+ * memory to the pages that are mapped onto it, and each (process, virtual
+ * page) pair back to its frame.
+ *
+ * <p>
+ * Every resident page has one <i>mapping</i> in the table. A frame usually
+ * has a single mapping, but read-only executable pages and pages shared
+ * copy-on-write after a fork have one per process. Mappings are kept in
+ * preallocated arrays and chained two ways: through a hash table keyed by
+ * PID and virtual page number, so the TLB miss handler can find a frame in
+ * constant time, and through a list per frame, so the replacement policy
+ * can find a frame's owners in constant time. Free mappings are chained
+ * through the same arrays, so inserting and removing a mapping allocate
+ * nothing.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new, empty table.
+     *
+     * @param	numFrames	the number of frames of physical memory.
+     */
+    public InvertedPageTable(int numFrames) {
+	frameHead = new int[numFrames];
+	for (int i=0; i<numFrames; i++)
+	    frameHead[i] = -1;
+
+	int numBuckets = 1;
+	while (numBuckets < numFrames*2)
+	    numBuckets *= 2;
+
+	buckets = new int[numBuckets];
+	for (int i=0; i<numBuckets; i++)
+	    buckets[i] = -1;
+
+	allocateMappings(numFrames*2);
+    }
+
+    /**
+     * Record that a page of a process is resident in the specified frame.
+     *
+     * @param	process	the process.
+     * @param	vpn	the virtual page number.
+     * @param	frame	the frame holding the page.
+     */
+    public void insert(VMProcess process, int vpn, int frame) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(find(process, vpn) == -1);
+
+	if (freeHead == -1)
+	    allocateMappings(owner.length);
+
+	int m = freeHead;
+	freeHead = nextInBucket[m];
+
+	owner[m] = process;
+	page[m] = vpn;
+	frameOf[m] = frame;
+
+	int bucket = hash(process.getPID(), vpn);
+	nextInBucket[m] = buckets[bucket];
+	buckets[bucket] = m;
+
+	nextInFrame[m] = frameHead[frame];
+	frameHead[frame] = m;
+	numMappings[frame]++;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Remove the mapping of a page, if it is resident.
+     *
+     * @param	process	the process.
+     * @param	vpn	the virtual page number.
+     * @return	the frame the page was resident in, or -1 if it was not.
+     */
+    public int remove(VMProcess process, int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int m = find(process, vpn);
+	if (m == -1) {
+	    Machine.interrupt().restore(intStatus);
+	    return -1;
+	}
+
+	int frame = frameOf[m];
+
+	int bucket = hash(process.getPID(), vpn);
+	if (buckets[bucket] == m) {
+	    buckets[bucket] = nextInBucket[m];
+	}
+	else {
+	    int prev = buckets[bucket];
+	    while (nextInBucket[prev] != m)
+		prev = nextInBucket[prev];
+	    nextInBucket[prev] = nextInBucket[m];
+	}
+
+	if (frameHead[frame] == m) {
+	    frameHead[frame] = nextInFrame[m];
+	}
+	else {
+	    int prev = frameHead[frame];
+	    while (nextInFrame[prev] != m)
+		prev = nextInFrame[prev];
+	    nextInFrame[prev] = nextInFrame[m];
+	}
+	numMappings[frame]--;
+
+	owner[m] = null;
+	nextInBucket[m] = freeHead;
+	freeHead = m;
+
+	Machine.interrupt().restore(intStatus);
+
+	return frame;
+    }
+
+    /**
+     * Find the frame a page is resident in.
+     *
+     * @param	process	the process.
+     * @param	vpn	the virtual page number.
+     * @return	the frame, or -1 if the page is not resident.
+     */
+    public int lookup(VMProcess process, int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int m = find(process, vpn);
+	int frame = (m == -1) ? -1 : frameOf[m];
+
+	Machine.interrupt().restore(intStatus);
+
+	return frame;
+    }
+
+    /**
+     * Return the number of pages mapped onto a frame.
+     *
+     * @param	frame	the frame.
+     * @return	the number of mappings of the frame.
+     */
+    public int getNumMappings(int frame) {
+	return numMappings[frame];
+    }
+
+    /**
+     * Return the process owning the most recent mapping of a frame.
+     *
+     * @param	frame	the frame.
+     * @return	the process, or <tt>null</tt> if nothing is mapped onto the
+     *		frame.
+     */
+    public VMProcess getOwner(int frame) {
+	int m = frameHead[frame];
+	return (m == -1) ? null : owner[m];
+    }
+
+    /**
+     * Return the virtual page of the most recent mapping of a frame.
+     *
+     * @param	frame	the frame.
+     * @return	the virtual page number, or -1 if nothing is mapped onto the
+     *		frame.
+     */
+    public int getVPN(int frame) {
+	int m = frameHead[frame];
+	return (m == -1) ? -1 : page[m];
+    }
+
+    /**
+     * Return every page mapped onto a frame.
+     *
+     * @param	frame	the frame.
+     * @param	owners	an array to receive the process of each mapping, with
+     *			room for <tt>getNumMappings(frame)</tt> mappings.
+     * @param	vpns	an array to receive the virtual page of each mapping.
+     * @return	the number of mappings of the frame.
+     */
+    public int getMappings(int frame, VMProcess[] owners, int[] vpns) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int count = 0;
+	for (int m=frameHead[frame]; m!=-1; m=nextInFrame[m]) {
+	    owners[count] = owner[m];
+	    vpns[count] = page[m];
+	    count++;
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return count;
+    }
+
+    private int find(VMProcess process, int vpn) {
+	int m = buckets[hash(process.getPID(), vpn)];
+	while (m != -1 && (owner[m] != process || page[m] != vpn))
+	    m = nextInBucket[m];
+
+	return m;
+    }
+
+    private int hash(int pid, int vpn) {
+	int h = pid*0x9E3779B1 + vpn;
+	h ^= h >>> 16;
+	return h & (buckets.length-1);
+    }
+
+    /**
+     * Grow the mapping arrays by <i>count</i> mappings, and add the new ones
+     * to the free list.
+     */
+    private void allocateMappings(int count) {
+	int oldSize = (owner == null) ? 0 : owner.length;
+	int newSize = oldSize + count;
+
+	VMProcess[] newOwner = new VMProcess[newSize];
+	int[] newPage = new int[newSize];
+	int[] newFrameOf = new int[newSize];
+	int[] newNextInBucket = new int[newSize];
+	int[] newNextInFrame = new int[newSize];
+
+	if (oldSize > 0) {
+	    System.arraycopy(owner, 0, newOwner, 0, oldSize);
+	    System.arraycopy(page, 0, newPage, 0, oldSize);
+	    System.arraycopy(frameOf, 0, newFrameOf, 0, oldSize);
+	    System.arraycopy(nextInBucket, 0, newNextInBucket, 0, oldSize);
+	    System.arraycopy(nextInFrame, 0, newNextInFrame, 0, oldSize);
+	}
+	else {
+	    numMappings = new int[frameHead.length];
+	}
+
+	owner = newOwner;
+	page = newPage;
+	frameOf = newFrameOf;
+	nextInBucket = newNextInBucket;
+	nextInFrame = newNextInFrame;
+
+	for (int m=newSize-1; m>=oldSize; m--) {
+	    nextInBucket[m] = freeHead;
+	    freeHead = m;
+	}
+    }
+
+    /** The process and virtual page of each mapping. */
+    private VMProcess[] owner;
+    private int[] page;
+    /** The frame of each mapping. */
+    private int[] frameOf;
+    /** The next mapping in the same hash bucket, or on the free list. */
+    private int[] nextInBucket;
+    /** The next mapping of the same frame. */
+    private int[] nextInFrame;
+    private int freeHead = -1;
+
+    /** The first mapping in each hash bucket, or -1. */
+    private int[] buckets;
+    /** The first mapping of each frame, or -1. */
+    private int[] frameHead;
+    private int[] numMappings;
+}
@@ -0,0 +1,267 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.LinkedList;
+
+/**
+ * Tracks the working set of every process with pages in memory, decides how
+ * many frames each one should get, and suspends processes when their
+ * working sets cannot all fit in physical memory.
+ *
+ * <p>
+ * Every <tt>samplePeriod</tt> ticks, the timer interrupt takes a sample:
+ * every resident page whose used bit is set is stamped with the sample
+ * number and has the bit cleared. A page belongs to its process's working
+ * set if it has been used in the last <tt>workingSetWindow</tt> samples.
+ * Ages are counted in samples of kernel time rather than in each process's
+ * own virtual time, so that a process that waits for a long time (a shell
+ * in <tt>join()</tt>, say) lets its working set go.
+ *
+ * <p>
+ * Each process also has a frame <i>allocation</i>, adjusted by its page
+ * fault frequency: every <tt>pffPeriod</tt> samples that find it running, a
+ * process that took more than <tt>pffHigh</tt> faults has its allocation
+ * raised, and one that took fewer than <tt>pffLow</tt> has it lowered
+ * towards the size of its working set. A process that is not running has
+ * its allocation cut to its working set as that shrinks. The replacement
+ * policy takes pages from processes that are suspended or hold more frames
+ * than their allocation before it takes pages from working sets.
+ *
+ * <p>
+ * When the allocations of the active processes add up to more than physical
+ * memory, the most recently activated process is suspended: at its next
+ * trap it blocks until its allocation fits again, and meanwhile its pages
+ * are the first to go. Processes are resumed in the order they were
+ * suspended, and the last active process is never suspended. If every
+ * active process goes idle, with its working set aged away, the first
+ * suspended process is resumed with whatever frames are left, even if that
+ * is less than its allocation.
+ */
+public class LoadControl {
+    /**
+     * Allocate a new load controller, and start sampling.
+     */
+    public LoadControl() {
+	numFrames = Machine.processor().getNumPhysPages();
+
+	ThreadedKernel.alarm.schedule(samplePeriod, sampler);
+    }
+
+    /**
+     * Start tracking a process that is about to get pages in memory.
+     *
+     * @param	process	the process.
+     */
+    public void register(VMProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	process.allocation = Math.min(initialAllocation, numFrames);
+	active.add(process);
+	balance();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Stop tracking a process that is releasing its memory. Other processes
+     * may be resumed in its place.
+     *
+     * @param	process	the process.
+     */
+    public void unregister(VMProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (!active.remove(process))
+	    suspended.remove(process);
+	resume(process);
+	balance();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Block the current process while it is suspended. Called whenever the
+     * process traps into the kernel.
+     *
+     * @param	process	the current process.
+     */
+    public void checkSuspended(VMProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (process.suspended) {
+	    Lib.debug(dbgVM, "suspending pid " + process.getPID());
+	    process.blocked = true;
+	    process.resumed.P();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the number of the current sample, which pages are stamped with
+     * when they are found to have been used.
+     *
+     * @return	the number of samples taken so far.
+     */
+    public int now() {
+	return now;
+    }
+
+    /**
+     * Decide whether a page that has not been used since it was last
+     * stamped should be evicted now, rather than only if nothing else can
+     * be.
+     *
+     * @param	process	the process owning the page.
+     * @param	lastUsed	the sample the page was last stamped with.
+     * @return	<tt>true</tt> if the page is outside its process's working
+     *		set, or the process is suspended or over its allocation.
+     */
+    public boolean isPreferredVictim(VMProcess process, int lastUsed) {
+	return now - lastUsed >= workingSetWindow || process.suspended ||
+	    process.getNumFrames() > process.allocation;
+    }
+
+    /**
+     * Print the number of suspensions, for debugging.
+     */
+    public void printStats() {
+	Lib.debug(dbgVM, "load control: " + numSuspensions + " suspensions");
+    }
+
+    /**
+     * Take a sample, adjust allocations, and reschedule the sampler.
+     */
+    private void sample() {
+	now++;
+
+	UserProcess current = UserKernel.currentProcess();
+
+	for (VMProcess process : active) {
+	    int workingSetSize = process.sampleUsedPages(now - workingSetWindow);
+
+	    if (process != current) {
+		process.allocation =
+		    Math.max(minAllocation,
+			     Math.min(process.allocation, workingSetSize));
+		continue;
+	    }
+
+	    if (++process.pffSamples < pffPeriod)
+		continue;
+
+	    int faults = process.pffFaults;
+	    if (faults > pffHigh)
+		process.allocation += (faults+pffHigh-1) / pffHigh;
+	    else if (faults < pffLow)
+		process.allocation =
+		    Math.max(workingSetSize, process.allocation-1);
+
+	    process.allocation =
+		Math.max(minAllocation, Math.min(numFrames, process.allocation));
+
+	    process.pffSamples = 0;
+	    process.pffFaults = 0;
+	}
+
+	for (VMProcess process : suspended)
+	    process.sampleUsedPages(now - workingSetWindow);
+
+	balance();
+
+	ThreadedKernel.alarm.schedule(samplePeriod, sampler);
+    }
+
+    /**
+     * Suspend or resume processes until the allocations of the active ones
+     * fit in physical memory, or only one is active.
+     */
+    private void balance() {
+	int demand = 0;
+	for (VMProcess process : active)
+	    demand += process.allocation;
+
+	while (demand > numFrames && active.size() > 1) {
+	    VMProcess process = active.removeLast();
+	    demand -= process.allocation;
+
+	    process.suspended = true;
+	    suspended.add(process);
+	    numSuspensions++;
+	}
+
+	while (!suspended.isEmpty()) {
+	    VMProcess process = suspended.getFirst();
+
+	    if (!active.isEmpty() && demand + process.allocation > numFrames) {
+		// if the active processes have all gone idle, give it what
+		// they leave, rather than let memory sit unused
+		if (!allIdle() || demand + minAllocation > numFrames)
+		    break;
+
+		process.allocation = numFrames - demand;
+	    }
+
+	    suspended.removeFirst();
+	    demand += process.allocation;
+
+	    active.add(process);
+	    resume(process);
+	}
+    }
+
+    /**
+     * Return whether every active process has been cut to the minimum
+     * allocation, which only happens once its working set has aged away.
+     */
+    private boolean allIdle() {
+	for (VMProcess process : active) {
+	    if (process.allocation > minAllocation)
+		return false;
+	}
+
+	return true;
+    }
+
+    private void resume(VMProcess process) {
+	process.suspended = false;
+
+	if (process.blocked) {
+	    Lib.debug(dbgVM, "resuming pid " + process.getPID());
+	    process.blocked = false;
+	    process.resumed.V();
+	}
+    }
+
+    private Runnable sampler = new Runnable() {
+	    public void run() { sample(); }
+	};
+
+    private int numFrames;
+    private int now = 0;
+
+    /** The processes allowed to run, oldest first. */
+    private LinkedList<VMProcess> active = new LinkedList<VMProcess>();
+    /** The suspended processes, in the order they were suspended. */
+    private LinkedList<VMProcess> suspended = new LinkedList<VMProcess>();
+    private int numSuspensions = 0;
+
+    /** The ticks between samples. */
+    private static final int samplePeriod = 1000;
+    /** The samples a page may go unused and stay in the working set. */
+    private static final int workingSetWindow = 8;
+
+    /** The samples of a running process between adjustments of its
+     *  allocation. */
+    private static final int pffPeriod = 4;
+    /** The faults per adjustment above which the allocation grows, and
+     *  below which it shrinks. */
+    private static final int pffHigh = 4, pffLow = 1;
+
+    private static final int initialAllocation = 4, minAllocation = 2;
+
+    private static final char dbgVM = 'v';
+}
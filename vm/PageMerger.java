@@ -0,0 +1,182 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+
+/**
+ * A kernel thread that looks for frames holding identical pages and merges
+ * them, so that processes running the same program, or with pages of
+ * zeros, share one frame instead of holding a copy each.
+ *
+ * <p>
+ * Every <tt>interval</tt> ticks, the merger takes the paging lock and hashes
+ * the contents of every frame mapped by a single writable (or already
+ * copy-on-write) page. When two frames hash alike, and their contents really
+ * are the same, the second page is moved onto the first frame, both pages
+ * are made copy-on-write, and the second frame is freed. A later write to
+ * either page takes the usual copy-on-write fault and gets a private copy
+ * again.
+ *
+ * <p>
+ * A merged frame is only evicted once none of the pages sharing it has
+ * been used, and each of them is then saved on its own. Each comparison
+ * and merge happens with interrupts disabled, so that no process can write
+ * a page between the comparison and the moment it becomes read-only.
+ */
+public class PageMerger {
+    /**
+     * Start a merger thread.
+     *
+     * @param	interval	the ticks between scans of physical memory.
+     */
+    public PageMerger(int interval) {
+	Lib.assertTrue(interval > 0);
+	this.interval = interval;
+
+	new KThread(new Runnable() {
+		public void run() { mergeLoop(); }
+	    }).setName("page merger").fork();
+    }
+
+    /**
+     * Print the number of pages merged, for debugging.
+     */
+    public void printStats() {
+	Lib.debug(dbgVM, "page merger: " + numScans + " scans, " + numMerged
+		  + " pages merged (" + numZeroMerged + " of zeros)");
+    }
+
+    private void mergeLoop() {
+	while (true) {
+	    ThreadedKernel.alarm.waitUntil(interval);
+
+	    VMKernel.pagingLock.acquire();
+	    scan();
+	    VMKernel.pagingLock.release();
+	}
+    }
+
+    /**
+     * Make one pass over physical memory, merging each candidate frame into
+     * the first earlier frame with the same contents.
+     */
+    private void scan() {
+	HashMap<Integer, Integer> frameByHash = new HashMap<Integer, Integer>();
+	int merged = 0;
+
+	for (int frame=0; frame<numFrames; frame++) {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    if (isCandidate(frame)) {
+		int hash = hash(frame);
+		Integer match = frameByHash.get(hash);
+
+		if (match == null)
+		    frameByHash.put(hash, frame);
+		else if (isMergeTarget(match) && isSamePage(match, frame)) {
+		    merge(match, frame);
+		    merged++;
+		}
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	numScans++;
+	if (merged > 0)
+	    Lib.debug(dbgVM, "merged " + merged + " pages");
+    }
+
+    /**
+     * Return whether a frame may be merged into another: it must be mapped
+     * by a single page, have no other references, not be pinned, and hold a
+     * page that may be made copy-on-write.
+     */
+    private boolean isCandidate(int frame) {
+	if (VMKernel.isPinned(frame) ||
+	    VMKernel.invertedPageTable.getNumMappings(frame) != 1 ||
+	    UserKernel.frameAllocator.getRefCount(frame) != 1)
+	    return false;
+
+	VMProcess owner = VMKernel.invertedPageTable.getOwner(frame);
+	return owner.isMergeable(VMKernel.invertedPageTable.getVPN(frame));
+    }
+
+    /**
+     * Return whether another frame may still be merged into a frame chosen
+     * earlier in the scan: every reference to it must still be one of its
+     * mappings, all of them copy-on-write unless there is only one.
+     */
+    private boolean isMergeTarget(int frame) {
+	int numMappings = VMKernel.invertedPageTable.getNumMappings(frame);
+
+	return numMappings > 0 && !VMKernel.isPinned(frame) &&
+	    UserKernel.frameAllocator.getRefCount(frame) == numMappings &&
+	    (numMappings > 1 || isCandidate(frame));
+    }
+
+    /**
+     * Move the page in <i>frame</i> onto <i>target</i>, which holds the same
+     * data, and free <i>frame</i>.
+     */
+    private void merge(int target, int frame) {
+	VMProcess owner = VMKernel.invertedPageTable.getOwner(frame);
+	int vpn = VMKernel.invertedPageTable.getVPN(frame);
+
+	// the first merge into a frame has to protect the page already there
+	if (VMKernel.invertedPageTable.getNumMappings(target) == 1) {
+	    VMKernel.invertedPageTable.getOwner(target)
+		.makeCopyOnWrite(VMKernel.invertedPageTable.getVPN(target));
+	}
+
+	owner.remapPage(vpn, target);
+
+	numMerged++;
+	if (isZero(target))
+	    numZeroMerged++;
+    }
+
+    private static int hash(int frame) {
+	byte[] memory = Machine.processor().getMemory();
+
+	int hash = 0;
+	for (int i=frame*pageSize; i<(frame+1)*pageSize; i++)
+	    hash = hash*31 + memory[i];
+
+	return hash;
+    }
+
+    private static boolean isSamePage(int frame1, int frame2) {
+	byte[] memory = Machine.processor().getMemory();
+
+	int offset1 = frame1*pageSize, offset2 = frame2*pageSize;
+	for (int i=0; i<pageSize; i++) {
+	    if (memory[offset1+i] != memory[offset2+i])
+		return false;
+	}
+
+	return true;
+    }
+
+    private static boolean isZero(int frame) {
+	byte[] memory = Machine.processor().getMemory();
+
+	for (int i=frame*pageSize; i<(frame+1)*pageSize; i++) {
+	    if (memory[i] != 0)
+		return false;
+	}
+
+	return true;
+    }
+
+    private int interval;
+    private int numFrames = Machine.processor().getNumPhysPages();
+
+    private int numScans = 0, numMerged = 0, numZeroMerged = 0;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,134 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A recorder of page reference traces, for replaying against replacement
+ * policies offline with <tt>TraceReplay</tt>.
+ *
+ * <p>
+ * The processor's own translation cannot be watched, so
+ * <tt>VMProcess</tt> records references from the kernel side while tracing:
+ * it keeps only two TLB entries valid, so that every reference to any page
+ * but the last two distinct ones misses, and enters writable pages
+ * read-only, so that the first write to each one traps as well. The trace
+ * is thus the reference string of every process, interleaved as they ran,
+ * with immediate re-references to the last two pages dropped. Those
+ * re-references never fault under any policy with at least two frames, and
+ * only refresh pages that are already the most recently used.
+ *
+ * <p>
+ * Each reference is stored as a variable-length integer of 7 bits per byte,
+ * low bits first, holding
+ * <blockquote>
+ * <tt>zigzag(vpn - previous vpn) &lt;&lt; 2 | write &lt;&lt; 1 | newPID</tt>
+ * </blockquote>
+ * where <tt>zigzag(d)</tt> is <tt>(d &lt;&lt; 1) ^ (d &gt;&gt; 31)</tt>. If
+ * <tt>newPID</tt> is set, the reference belongs to a different process than
+ * the one before it, and is followed by that process's PID, in the same
+ * encoding without the zigzag. Most references take a single byte.
+ */
+public class PageTrace {
+    /**
+     * Create a trace file.
+     *
+     * @param	name	the name of the file.
+     */
+    public PageTrace(String name) {
+	file = ThreadedKernel.fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "cannot create trace file " + name);
+    }
+
+    /**
+     * Record a reference to a page.
+     *
+     * @param	pid	the process making the reference.
+     * @param	vpn	the page referenced.
+     * @param	write	<tt>true</tt> if the reference is a write.
+     */
+    public void record(int pid, int vpn, boolean write) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int delta = vpn - lastVPN;
+	int zigzag = (delta << 1) ^ (delta >> 31);
+	boolean newPID = (pid != lastPID);
+
+	putVarint(((zigzag & 0xFFFFFFFFL) << 2) | (write ? 2 : 0) |
+		  (newPID ? 1 : 0));
+	if (newPID)
+	    putVarint(pid);
+
+	lastVPN = vpn;
+	lastPID = pid;
+	numReferences++;
+
+	boolean full = (count > buffer.length - maxRecordSize);
+
+	Machine.interrupt().restore(intStatus);
+
+	// a record goes in whole before anything can block, so records from
+	// different processes never interleave
+	if (full)
+	    flush();
+    }
+
+    /**
+     * Write out the rest of the trace and close the file.
+     */
+    public void close() {
+	flush();
+	file.close();
+
+	Lib.debug(dbgVM, "trace: " + numReferences + " references in "
+		  + position + " bytes");
+    }
+
+    private void putVarint(long value) {
+	while (value >= 0x80) {
+	    put((byte) (value | 0x80));
+	    value >>>= 7;
+	}
+	put((byte) value);
+    }
+
+    private void put(byte b) {
+	buffer[count++] = b;
+    }
+
+    /**
+     * Write the buffer at the end of the file. A new buffer takes its place
+     * first, since the write blocks and other processes keep recording.
+     */
+    private void flush() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	byte[] old = buffer;
+	int length = count;
+	int offset = position;
+
+	buffer = new byte[bufferSize];
+	count = 0;
+	position += length;
+
+	Machine.interrupt().restore(intStatus);
+
+	if (length > 0)
+	    file.write(offset, old, 0, length);
+    }
+
+    private OpenFile file;
+
+    private byte[] buffer = new byte[bufferSize];
+    private int count = 0;
+    /** Where the next buffer goes in the file. */
+    private int position = 0;
+
+    private int lastPID = -1, lastVPN = 0;
+    private int numReferences = 0;
+
+    private static final int bufferSize = 0x10000;
+    /** The most bytes one reference can take: two 64-bit varints. */
+    private static final int maxRecordSize = 20;
+    private static final char dbgVM = 'v';
+}
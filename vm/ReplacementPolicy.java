@@ -0,0 +1,474 @@
+package nachos.vm;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.TreeMap;
+
+/**
+ * A page replacement policy, simulated over a recorded reference string by
+ * <tt>TraceReplay</tt>. A page is named by a <tt>long</tt> key holding the
+ * PID of its process in the high 32 bits and its virtual page number in the
+ * low 32 bits.
+ *
+ * <p>
+ * The policies are nested classes: <tt>FIFO</tt>, <tt>Clock</tt>,
+ * <tt>LRU</tt>, <tt>WSClock</tt>, <tt>ARC</tt>, and <tt>OPT</tt>, Belady's
+ * optimal policy, which looks ahead in the trace and gives the lower bound
+ * the others can be measured against.
+ */
+public abstract class ReplacementPolicy {
+    /**
+     * Allocate a new policy.
+     *
+     * @param	name	the name to report the policy under.
+     */
+    public ReplacementPolicy(String name) {
+	this.name = name;
+    }
+
+    /**
+     * Return the name of this policy.
+     *
+     * @return	the name of this policy.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Start a replay with every frame free.
+     *
+     * @param	pages	the page referenced by each reference of the trace.
+     * @param	writes	whether each reference is a write.
+     * @param	numFrames	the number of frames of physical memory.
+     */
+    public void start(long[] pages, boolean[] writes, int numFrames) {
+	this.pages = pages;
+	this.writes = writes;
+	this.numFrames = numFrames;
+    }
+
+    /**
+     * Make a reference.
+     *
+     * @param	i	the index of the reference in the trace. References are
+     *			made in order.
+     * @return	<tt>hit</tt> if the page is resident, <tt>free</tt> if it
+     *		faulted into a free frame, or else the page evicted for it.
+     */
+    public abstract long reference(int i);
+
+    /**
+     * Return a new instance of every policy.
+     *
+     * @return	one of each policy.
+     */
+    public static ReplacementPolicy[] all() {
+	return new ReplacementPolicy[] {
+	    new FIFO(), new Clock(), new LRU(), new WSClock(), new ARC(),
+	    new OPT()
+	};
+    }
+
+    /** Returned by <tt>reference()</tt> for a page that was resident. */
+    public static final long hit = -1;
+    /** Returned by <tt>reference()</tt> for a fault that took a free
+     *  frame. */
+    public static final long free = -2;
+
+    protected long[] pages;
+    protected boolean[] writes;
+    protected int numFrames;
+
+    private String name;
+
+    /**
+     * Evict pages in the order they were brought in.
+     */
+    public static class FIFO extends ReplacementPolicy {
+	public FIFO() {
+	    super("FIFO");
+	}
+
+	public void start(long[] pages, boolean[] writes, int numFrames) {
+	    super.start(pages, writes, numFrames);
+	    resident = new HashSet<Long>();
+	    order = new ArrayDeque<Long>();
+	}
+
+	public long reference(int i) {
+	    long page = pages[i];
+	    if (resident.contains(page))
+		return hit;
+
+	    long victim = free;
+	    if (resident.size() == numFrames) {
+		victim = order.removeFirst();
+		resident.remove(victim);
+	    }
+
+	    resident.add(page);
+	    order.addLast(page);
+	    return victim;
+	}
+
+	private HashSet<Long> resident;
+	private ArrayDeque<Long> order;
+    }
+
+    /**
+     * Evict the page that was used least recently.
+     */
+    public static class LRU extends ReplacementPolicy {
+	public LRU() {
+	    super("LRU");
+	}
+
+	public void start(long[] pages, boolean[] writes, int numFrames) {
+	    super.start(pages, writes, numFrames);
+	    // in access order, least recently used first
+	    resident = new LinkedHashMap<Long, Boolean>(16, 0.75f, true);
+	}
+
+	public long reference(int i) {
+	    long page = pages[i];
+	    if (resident.get(page) != null)
+		return hit;
+
+	    long victim = free;
+	    if (resident.size() == numFrames) {
+		Iterator<Long> lru = resident.keySet().iterator();
+		victim = lru.next();
+		lru.remove();
+	    }
+
+	    resident.put(page, Boolean.TRUE);
+	    return victim;
+	}
+
+	private LinkedHashMap<Long, Boolean> resident;
+    }
+
+    /**
+     * Sweep the frames with a hand, clearing used bits, and evict the first
+     * page found unused.
+     */
+    public static class Clock extends ReplacementPolicy {
+	public Clock() {
+	    this("clock");
+	}
+
+	protected Clock(String name) {
+	    super(name);
+	}
+
+	public void start(long[] pages, boolean[] writes, int numFrames) {
+	    super.start(pages, writes, numFrames);
+	    framePage = new long[numFrames];
+	    used = new boolean[numFrames];
+	    frameOf = new HashMap<Long, Integer>();
+	    numUsed = 0;
+	    hand = 0;
+	}
+
+	public long reference(int i) {
+	    long page = pages[i];
+
+	    Integer frame = frameOf.get(page);
+	    if (frame != null) {
+		touch(frame, i);
+		return hit;
+	    }
+
+	    if (numUsed < numFrames) {
+		load(numUsed++, i);
+		return free;
+	    }
+
+	    int victim = chooseVictim(i);
+	    long evicted = framePage[victim];
+	    frameOf.remove(evicted);
+
+	    load(victim, i);
+	    return evicted;
+	}
+
+	/**
+	 * Record a reference to a resident page.
+	 */
+	protected void touch(int frame, int i) {
+	    used[frame] = true;
+	}
+
+	/**
+	 * Put the page of the <i>i</i>th reference in a frame.
+	 */
+	protected void load(int frame, int i) {
+	    framePage[frame] = pages[i];
+	    used[frame] = true;
+	    frameOf.put(pages[i], frame);
+	}
+
+	/**
+	 * Choose the frame to evict for the <i>i</i>th reference, and move the
+	 * hand past it.
+	 */
+	protected int chooseVictim(int i) {
+	    while (used[hand]) {
+		used[hand] = false;
+		hand = (hand+1) % numFrames;
+	    }
+
+	    int victim = hand;
+	    hand = (hand+1) % numFrames;
+	    return victim;
+	}
+
+	protected long[] framePage;
+	protected boolean[] used;
+	protected HashMap<Long, Integer> frameOf;
+	protected int numUsed, hand;
+    }
+
+    /**
+     * WSClock: sweep the frames like <tt>Clock</tt>, stamping used pages
+     * with the time, and evict the first unused page that has not been used
+     * within the working set window, preferring clean pages to dirty ones.
+     * Time is counted in references.
+     */
+    public static class WSClock extends Clock {
+	public WSClock() {
+	    this(1000);
+	}
+
+	/**
+	 * Allocate a WSClock policy with the specified working set window.
+	 *
+	 * @param	window	the number of references a page may go unused
+	 *			and stay in the working set.
+	 */
+	public WSClock(int window) {
+	    super("WSClock");
+	    this.window = window;
+	}
+
+	public void start(long[] pages, boolean[] writes, int numFrames) {
+	    super.start(pages, writes, numFrames);
+	    lastUsed = new int[numFrames];
+	    dirty = new boolean[numFrames];
+	}
+
+	protected void touch(int frame, int i) {
+	    super.touch(frame, i);
+	    dirty[frame] |= writes[i];
+	}
+
+	protected void load(int frame, int i) {
+	    super.load(frame, i);
+	    lastUsed[frame] = i;
+	    dirty[frame] = writes[i];
+	}
+
+	protected int chooseVictim(int i) {
+	    int oldDirty = -1, oldest = -1;
+
+	    // two sweeps: the first may only clear used bits
+	    for (int n=0; n<numFrames*2; n++) {
+		int frame = hand;
+		hand = (hand+1) % numFrames;
+
+		if (used[frame]) {
+		    used[frame] = false;
+		    lastUsed[frame] = i;
+		    continue;
+		}
+
+		if (i - lastUsed[frame] > window) {
+		    if (!dirty[frame])
+			return frame;
+		    if (oldDirty == -1)
+			oldDirty = frame;
+		}
+
+		if (oldest == -1 || lastUsed[frame] < lastUsed[oldest])
+		    oldest = frame;
+	    }
+
+	    return (oldDirty != -1) ? oldDirty : oldest;
+	}
+
+	private int window;
+	private int[] lastUsed;
+	private boolean[] dirty;
+    }
+
+    /**
+     * Adaptive replacement cache (Megiddo and Modha): resident pages are
+     * split between those referenced once recently and those referenced
+     * more than once, with ghost lists of pages recently evicted from
+     * each, and the target size of the first list adapts to which ghost
+     * list is being hit.
+     */
+    public static class ARC extends ReplacementPolicy {
+	public ARC() {
+	    super("ARC");
+	}
+
+	public void start(long[] pages, boolean[] writes, int numFrames) {
+	    super.start(pages, writes, numFrames);
+	    t1 = new LinkedHashSet<Long>();
+	    t2 = new LinkedHashSet<Long>();
+	    b1 = new LinkedHashSet<Long>();
+	    b2 = new LinkedHashSet<Long>();
+	    target = 0;
+	}
+
+	public long reference(int i) {
+	    long page = pages[i];
+	    int c = numFrames;
+
+	    if (t1.remove(page) || t2.remove(page)) {
+		t2.add(page);
+		return hit;
+	    }
+
+	    long victim;
+
+	    if (b1.contains(page)) {
+		target = Math.min(c, target + Math.max(b2.size()/b1.size(), 1));
+		victim = replace(page);
+		b1.remove(page);
+		t2.add(page);
+		return victim;
+	    }
+
+	    if (b2.contains(page)) {
+		target = Math.max(0, target - Math.max(b1.size()/b2.size(), 1));
+		victim = replace(page);
+		b2.remove(page);
+		t2.add(page);
+		return victim;
+	    }
+
+	    int total = t1.size() + t2.size() + b1.size() + b2.size();
+
+	    if (t1.size() + b1.size() == c) {
+		if (t1.size() < c) {
+		    removeFirst(b1);
+		    victim = replace(page);
+		}
+		else {
+		    victim = removeFirst(t1);
+		}
+	    }
+	    else if (total >= c) {
+		if (total == 2*c)
+		    removeFirst(b2);
+		victim = replace(page);
+	    }
+	    else {
+		victim = free;
+	    }
+
+	    t1.add(page);
+	    return victim;
+	}
+
+	/**
+	 * Evict the least recently used page of <tt>t1</tt> or <tt>t2</tt>,
+	 * depending on the target size of <tt>t1</tt>, and remember it in the
+	 * matching ghost list.
+	 */
+	private long replace(long page) {
+	    long victim;
+
+	    if (!t1.isEmpty() &&
+		(t1.size() > target ||
+		 (b2.contains(page) && t1.size() == target))) {
+		victim = removeFirst(t1);
+		b1.add(victim);
+	    }
+	    else {
+		victim = removeFirst(t2);
+		b2.add(victim);
+	    }
+
+	    return victim;
+	}
+
+	private static long removeFirst(LinkedHashSet<Long> list) {
+	    Iterator<Long> first = list.iterator();
+	    long page = first.next();
+	    first.remove();
+	    return page;
+	}
+
+	/** Resident pages referenced once, and more than once, recently;
+	 *  least recently used first. */
+	private LinkedHashSet<Long> t1, t2;
+	/** Pages recently evicted from <tt>t1</tt> and <tt>t2</tt>. */
+	private LinkedHashSet<Long> b1, b2;
+	/** The target size of <tt>t1</tt>. */
+	private int target;
+    }
+
+    /**
+     * Belady's optimal policy: evict the page whose next reference is
+     * furthest in the future.
+     */
+    public static class OPT extends ReplacementPolicy {
+	public OPT() {
+	    super("OPT");
+	}
+
+	public void start(long[] pages, boolean[] writes, int numFrames) {
+	    super.start(pages, writes, numFrames);
+
+	    // a page never referenced again is next used "after the end",
+	    // at a distinct time for each reference
+	    nextUse = new int[pages.length];
+	    HashMap<Long, Integer> later = new HashMap<Long, Integer>();
+	    for (int i=pages.length-1; i>=0; i--) {
+		Integer next = later.put(pages[i], i);
+		nextUse[i] = (next != null) ? next : pages.length + i;
+	    }
+
+	    residentUntil = new HashMap<Long, Integer>();
+	    byNextUse = new TreeMap<Integer, Long>();
+	}
+
+	public long reference(int i) {
+	    long page = pages[i];
+
+	    Integer current = residentUntil.get(page);
+	    if (current != null) {
+		byNextUse.remove(current);
+		add(page, i);
+		return hit;
+	    }
+
+	    long victim = free;
+	    if (residentUntil.size() == numFrames) {
+		victim = byNextUse.pollLastEntry().getValue();
+		residentUntil.remove(victim);
+	    }
+
+	    add(page, i);
+	    return victim;
+	}
+
+	private void add(long page, int i) {
+	    residentUntil.put(page, nextUse[i]);
+	    byNextUse.put(nextUse[i], page);
+	}
+
+	/** When the page of each reference is next referenced. */
+	private int[] nextUse;
+	private HashMap<Long, Integer> residentUntil;
+	private TreeMap<Integer, Long> byNextUse;
+    }
+}
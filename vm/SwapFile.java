@@ -0,0 +1,304 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The backing store for pages evicted from physical memory, kept in a file
+ * of page-sized <i>slots</i>.
+ *
+ * <p>
+ * Free slots are tracked in a bitmap, searched a word of 64 slots at a time
+ * starting from a hint, and each slot has a reference count, so that a
+ * forked process can share its parent's swapped-out pages just as it shares
+ * its resident ones.
+ *
+ * <p>
+ * Every read or write of the file costs a fixed delay, however much it
+ * transfers, so pages are not written one at a time. Instead <tt>write()</tt>
+ * copies a page into a write-behind buffer and gives it the next slot of a
+ * contiguous cluster reserved for the buffer; when the buffer fills, the
+ * whole cluster is written with one file write. A page that is read back
+ * before its cluster has been written comes straight from the buffer.
+ */
+public class SwapFile {
+    /**
+     * Create an empty swap file.
+     *
+     * @param	name	the name of the file.
+     * @param	maxSlots	the most pages the file may hold.
+     */
+    public SwapFile(String name, int maxSlots) {
+	this.name = name;
+	file = ThreadedKernel.fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "cannot create swap file " + name);
+
+	this.maxSlots = maxSlots;
+	inUse = new long[(maxSlots + wordBits-1) / wordBits];
+	refCount = new int[maxSlots];
+
+	// slots past the end are never free
+	for (int slot=maxSlots; slot<inUse.length*wordBits; slot++)
+	    inUse[slot/wordBits] |= 1L << (slot%wordBits);
+    }
+
+    /**
+     * Write a page out, copying it from physical memory. The page is only
+     * buffered; it reaches the file when its cluster is full or
+     * <tt>flush()</tt> is called, so the frame may be reused as soon as this
+     * returns.
+     *
+     * @param	frame	the frame holding the page.
+     * @return	the slot the page was given, or -1 if the swap file is full.
+     */
+    public int write(int frame) {
+	return write(Machine.processor().getMemory(), frame*pageSize);
+    }
+
+    /**
+     * Write a page out, copying it from the specified array. The page is
+     * buffered, as by <tt>write(int)</tt>.
+     *
+     * @param	data	the array holding the page.
+     * @param	offset	the offset of the page in the array.
+     * @return	the slot the page was given, or -1 if the swap file is full.
+     */
+    public int write(byte[] data, int offset) {
+	if (clusterSize == 0 && !reserveCluster())
+	    return -1;
+
+	int slot = clusterFirst + batchCount;
+	System.arraycopy(data, offset, buffer, batchCount*pageSize, pageSize);
+	batchCount++;
+	numWrites++;
+
+	if (batchCount == clusterSize)
+	    flush();
+
+	return slot;
+    }
+
+    /**
+     * Read a page back into physical memory.
+     *
+     * @param	slot	the slot holding the page.
+     * @param	frame	the frame to read it into.
+     * @return	<tt>true</tt> if the page was read.
+     */
+    public boolean read(int slot, int frame) {
+	Lib.assertTrue(refCount[slot] > 0);
+
+	byte[] memory = Machine.processor().getMemory();
+	numReads++;
+
+	if (isBuffered(slot)) {
+	    System.arraycopy(buffer, (slot-clusterFirst)*pageSize, memory,
+			     frame*pageSize, pageSize);
+	    numBufferHits++;
+	    return true;
+	}
+
+	return file.read(slot*pageSize, memory, frame*pageSize, pageSize)
+	    == pageSize;
+    }
+
+    /**
+     * Read several pages back into physical memory at once. Pages in
+     * consecutive slots are read together, with one file read per run, so
+     * a batch costs much less than reading its pages one at a time.
+     *
+     * @param	slots	the slots holding the pages.
+     * @param	frames	the frames to read them into, in the same order.
+     * @param	count	the number of pages to read.
+     * @return	<tt>true</tt> if every page was read.
+     */
+    public boolean read(int[] slots, int[] frames, int count) {
+	// visit the pages in slot order, so runs of slots are found
+	int[] order = new int[count];
+	for (int i=0; i<count; i++) {
+	    int j = i;
+	    while (j > 0 && slots[order[j-1]] > slots[i]) {
+		order[j] = order[j-1];
+		j--;
+	    }
+	    order[j] = i;
+	}
+
+	byte[] memory = Machine.processor().getMemory();
+
+	int i = 0;
+	while (i < count) {
+	    int first = slots[order[i]];
+	    int run = 1;
+	    // buffered pages have not reached the file yet
+	    while (i+run < count && run < batchPages &&
+		   slots[order[i+run]] == first+run && !isBuffered(first+run))
+		run++;
+
+	    if (run == 1 || isBuffered(first)) {
+		if (!read(first, frames[order[i]]))
+		    return false;
+		i++;
+		continue;
+	    }
+
+	    for (int j=0; j<run; j++)
+		Lib.assertTrue(refCount[first+j] > 0);
+
+	    if (file.read(first*pageSize, readBuffer, 0, run*pageSize) !=
+		run*pageSize)
+		return false;
+
+	    for (int j=0; j<run; j++)
+		System.arraycopy(readBuffer, j*pageSize, memory,
+				 frames[order[i+j]]*pageSize, pageSize);
+
+	    numReads += run;
+	    numBatchReads++;
+	    i += run;
+	}
+
+	return true;
+    }
+
+    /**
+     * Write the buffered pages to the file, in one write, and release the
+     * slots reserved for the rest of their cluster.
+     */
+    public void flush() {
+	if (batchCount > 0) {
+	    // pages freed while buffered are written anyway; it costs nothing
+	    file.write(clusterFirst*pageSize, buffer, 0, batchCount*pageSize);
+	    numFlushes++;
+	}
+
+	for (int slot=clusterFirst+batchCount; slot<clusterFirst+clusterSize;
+	     slot++)
+	    free(slot);
+
+	batchCount = 0;
+	clusterSize = 0;
+    }
+
+    /**
+     * Add a reference to a slot, for a process that now shares it.
+     *
+     * @param	slot	the slot.
+     */
+    public void share(int slot) {
+	Lib.assertTrue(refCount[slot] > 0);
+	refCount[slot]++;
+    }
+
+    /**
+     * Drop a reference to a slot, freeing it once nobody refers to it.
+     *
+     * @param	slot	the slot.
+     */
+    public void free(int slot) {
+	Lib.assertTrue(refCount[slot] > 0);
+
+	if (--refCount[slot] == 0) {
+	    inUse[slot/wordBits] &= ~(1L << (slot%wordBits));
+	    hint = Math.min(hint, slot/wordBits);
+	}
+    }
+
+    /**
+     * Close and delete the swap file.
+     */
+    public void close() {
+	file.close();
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    /**
+     * Print the traffic through this swap file, for debugging.
+     */
+    public void printStats() {
+	Lib.debug(dbgVM, "swap: " + numWrites + " pages out in " + numFlushes
+		  + " writes, " + numReads + " pages in ("
+		  + numBufferHits + " from the write buffer, "
+		  + numBatchReads + " batched reads)");
+    }
+
+    /**
+     * Reserve the first run of free slots long enough to hold a full buffer,
+     * or else the longest run there is, for the next cluster. Returns
+     * <tt>false</tt> if there is no free slot at all.
+     */
+    private boolean reserveCluster() {
+	int bestFirst = -1, bestLength = 0;
+
+	int slot = hint*wordBits;
+	while (slot < maxSlots && bestLength < batchPages) {
+	    if (inUse[slot/wordBits] == -1L) {
+		slot = (slot/wordBits + 1) * wordBits;
+		continue;
+	    }
+
+	    int length = 0;
+	    while (slot+length < maxSlots && length < batchPages &&
+		   !isInUse(slot+length))
+		length++;
+
+	    if (length > bestLength) {
+		bestFirst = slot;
+		bestLength = length;
+	    }
+
+	    slot += length+1;
+	}
+
+	if (bestFirst == -1)
+	    return false;
+
+	for (slot=bestFirst; slot<bestFirst+bestLength; slot++) {
+	    inUse[slot/wordBits] |= 1L << (slot%wordBits);
+	    refCount[slot] = 1;
+	}
+
+	while (hint < inUse.length && inUse[hint] == -1L)
+	    hint++;
+
+	clusterFirst = bestFirst;
+	clusterSize = bestLength;
+	return true;
+    }
+
+    private boolean isBuffered(int slot) {
+	return batchCount > 0 && slot >= clusterFirst &&
+	    slot < clusterFirst+batchCount;
+    }
+
+    private boolean isInUse(int slot) {
+	return (inUse[slot/wordBits] & (1L << (slot%wordBits))) != 0;
+    }
+
+    private String name;
+    private OpenFile file;
+    private int maxSlots;
+
+    /** One bit per slot, set if the slot is in use. */
+    private long[] inUse;
+    private int[] refCount;
+    /** No word of <tt>inUse</tt> before this one has a free slot. */
+    private int hint = 0;
+
+    /** The pages waiting to be written, to consecutive slots. */
+    private byte[] buffer = new byte[batchPages*pageSize];
+    private int batchCount = 0;
+    /** Where runs of pages are read to, before being copied to their
+     *  frames. */
+    private byte[] readBuffer = new byte[batchPages*pageSize];
+    /** The cluster of slots reserved for the buffer, if any. */
+    private int clusterFirst, clusterSize = 0;
+
+    private int numWrites = 0, numReads = 0, numFlushes = 0,
+	numBufferHits = 0, numBatchReads = 0;
+
+    private static final int batchPages = 8;
+    private static final int wordBits = 64;
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
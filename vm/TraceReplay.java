@@ -0,0 +1,219 @@
+package nachos.vm;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Replays a page reference trace recorded by <tt>PageTrace</tt> against
+ * every <tt>ReplacementPolicy</tt>, at a range of memory sizes, and reports
+ * the page faults, the fault rate, the dirty pages written back, and the
+ * time each policy takes per reference on the host. Runs outside Nachos:
+ *
+ * <pre>
+ * java nachos.vm.TraceReplay <i>trace</i> [<i>policy</i> ...] [<i>frames</i> ...]
+ * </pre>
+ *
+ * <p>
+ * With no policies named every policy is replayed, and with no frame counts
+ * a range from 4 to 64 frames is used. Memory is shared by every process in
+ * the trace, as it is in the kernel.
+ */
+public class TraceReplay {
+    /**
+     * Replay a trace.
+     *
+     * @param	args	the trace file, then any policy names and frame
+     *			counts.
+     */
+    public static void main(String[] args) throws IOException {
+	if (args.length < 1) {
+	    System.err.println("usage: java nachos.vm.TraceReplay <trace> "
+			       + "[policy ...] [frames ...]");
+	    System.exit(1);
+	}
+
+	ArrayList<ReplacementPolicy> policies =
+	    new ArrayList<ReplacementPolicy>();
+	ArrayList<Integer> frameCounts = new ArrayList<Integer>();
+
+	for (int a=1; a<args.length; a++) {
+	    try {
+		frameCounts.add(Integer.parseInt(args[a]));
+		continue;
+	    }
+	    catch (NumberFormatException e) {
+	    }
+
+	    boolean found = false;
+	    for (ReplacementPolicy policy : ReplacementPolicy.all()) {
+		if (policy.getName().equalsIgnoreCase(args[a])) {
+		    policies.add(policy);
+		    found = true;
+		}
+	    }
+	    if (!found) {
+		System.err.println("unknown policy: " + args[a]);
+		System.exit(1);
+	    }
+	}
+
+	if (policies.isEmpty()) {
+	    for (ReplacementPolicy policy : ReplacementPolicy.all())
+		policies.add(policy);
+	}
+	if (frameCounts.isEmpty()) {
+	    for (int frames : defaultFrameCounts)
+		frameCounts.add(frames);
+	}
+
+	TraceReplay replay = new TraceReplay(args[0]);
+	replay.printSummary();
+
+	System.out.println();
+	System.out.println("policy   frames      faults  fault %  writebacks"
+			   + "   ns/ref");
+
+	for (ReplacementPolicy policy : policies) {
+	    for (int frames : frameCounts)
+		replay.run(policy, frames);
+	}
+    }
+
+    /**
+     * Load a trace.
+     *
+     * @param	fileName	the trace file.
+     */
+    public TraceReplay(String fileName) throws IOException {
+	InputStream in =
+	    new BufferedInputStream(new FileInputStream(fileName));
+
+	pages = new long[1024];
+	writes = new boolean[1024];
+
+	try {
+	    int pid = -1, vpn = 0;
+
+	    while (true) {
+		long value;
+		try {
+		    value = readVarint(in);
+		}
+		catch (EOFException e) {
+		    break;
+		}
+
+		if ((value & 1) != 0)
+		    pid = (int) readVarint(in);
+
+		int zigzag = (int) (value >>> 2);
+		vpn += (zigzag >>> 1) ^ -(zigzag & 1);
+
+		add(((long) pid << 32) | (vpn & 0xFFFFFFFFL),
+		    (value & 2) != 0);
+	    }
+	}
+	finally {
+	    in.close();
+	}
+
+	pages = Arrays.copyOf(pages, numReferences);
+	writes = Arrays.copyOf(writes, numReferences);
+    }
+
+    /**
+     * Print the length of the trace and the number of pages it touches.
+     */
+    public void printSummary() {
+	HashSet<Long> distinct = new HashSet<Long>();
+	HashSet<Integer> pids = new HashSet<Integer>();
+	int numWrites = 0;
+
+	for (int i=0; i<numReferences; i++) {
+	    distinct.add(pages[i]);
+	    pids.add((int) (pages[i] >> 32));
+	    if (writes[i])
+		numWrites++;
+	}
+
+	System.out.println(numReferences + " references (" + numWrites
+			   + " writes) to " + distinct.size() + " pages of "
+			   + pids.size() + " processes");
+    }
+
+    /**
+     * Replay the trace against a policy, and print one line of results.
+     *
+     * @param	policy	the replacement policy.
+     * @param	numFrames	the number of frames of physical memory.
+     */
+    public void run(ReplacementPolicy policy, int numFrames) {
+	HashSet<Long> dirty = new HashSet<Long>();
+	int numFaults = 0, numWritebacks = 0;
+
+	long startTime = System.nanoTime();
+	policy.start(pages, writes, numFrames);
+
+	for (int i=0; i<numReferences; i++) {
+	    long result = policy.reference(i);
+
+	    if (result != ReplacementPolicy.hit) {
+		numFaults++;
+		if (result != ReplacementPolicy.free && dirty.remove(result))
+		    numWritebacks++;
+	    }
+
+	    if (writes[i])
+		dirty.add(pages[i]);
+	}
+
+	long elapsed = System.nanoTime() - startTime;
+
+	System.out.println(String.format("%-8s %6d %11d %7.2f%% %11d %8.1f",
+					 policy.getName(), numFrames,
+					 numFaults,
+					 100.0 * numFaults /
+					 Math.max(numReferences, 1),
+					 numWritebacks,
+					 (double) elapsed /
+					 Math.max(numReferences, 1)));
+    }
+
+    private void add(long page, boolean write) {
+	if (numReferences == pages.length) {
+	    pages = Arrays.copyOf(pages, pages.length*2);
+	    writes = Arrays.copyOf(writes, writes.length*2);
+	}
+
+	pages[numReferences] = page;
+	writes[numReferences] = write;
+	numReferences++;
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+	long value = 0;
+
+	for (int shift=0; ; shift+=7) {
+	    int b = in.read();
+	    if (b == -1)
+		throw new EOFException();
+
+	    value |= (long) (b & 0x7F) << shift;
+	    if ((b & 0x80) == 0)
+		return value;
+	}
+    }
+
+    private long[] pages;
+    private boolean[] writes;
+    private int numReferences = 0;
+
+    private static final int[] defaultFrameCounts =
+    { 4, 6, 8, 12, 16, 24, 32, 48, 64 };
+}
@@ -7,6 +7,50 @@ import nachos.vm.*;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * When physical memory is full, a frame is taken from a resident page chosen
+ * by the WSClock algorithm: a hand sweeps the frames in order, stamping and
+ * clearing the used bit of each page it passes, and takes the first unused
+ * page that <tt>loadControl</tt> says is outside its process's working set,
+ * or belongs to a suspended process or one over its frame allocation. If a
+ * whole sweep finds no such page, the unused page that has gone unused the
+ * longest is taken instead. The hand moves at most twice around memory per
+ * eviction.
+ *
+ * <p>
+ * A frame shared by several pages, between processes or merged, is taken
+ * from all of them at once, and only if none of them has been used; it
+ * counts as outside the working sets only if it is outside every one of
+ * them. Frames with references other than their pages and one cache, and
+ * frames pinned while the kernel transfers file data into or out of them,
+ * are passed over. A read-only executable page that is taken is dropped
+ * from the text page cache as well.
+ *
+ * <p>
+ * A clean page that is taken costs nothing, since it can be brought back in
+ * from the executable, as zeros, or from the swap slot it was last read
+ * from. A dirty page is saved first: compressed into
+ * <tt>compressedPool</tt>, which holds up to
+ * <tt>VMKernel.compressedPoolPages</tt> pages' worth of compressed data,
+ * and from there spilled to the swap file, in clusters (see
+ * <tt>SwapFile</tt>), as the pool fills up. The swap file holds at most
+ * <tt>VMKernel.swapPages</tt> pages. Both sizes are set in
+ * <tt>nachos.conf</tt>.
+ *
+ * <p>
+ * Pages of disk files, whether read and written by system calls or mapped
+ * by processes, are kept in <tt>fileCache</tt>. When no frame is free, a
+ * cached file page that nobody is using is given back before any process
+ * loses a page. A mapped file page can be taken like any other page; it is
+ * written back to its file if it is dirty, and dropped from the cache.
+ *
+ * <p>
+ * If <tt>VMKernel.mergeInterval</tt> is set, a <tt>PageMerger</tt> thread
+ * scans memory that often for identical pages, and makes them share a
+ * frame copy-on-write. If <tt>VMKernel.traceFile</tt> is set, the page
+ * references of every process are recorded there, to be replayed against
+ * other replacement policies by <tt>TraceReplay</tt>.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -21,6 +65,34 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	invertedPageTable = new InvertedPageTable(numPhysPages);
+	pinCount = new int[numPhysPages];
+	pagingLock = new Lock();
+
+	swap = new SwapFile(swapFileName,
+			    Config.getInteger("VMKernel.swapPages", 1024));
+	compressedPool =
+	    new CompressedPool(swap,
+			       Config.getInteger("VMKernel.compressedPoolPages",
+						 8) * Processor.pageSize);
+	loadControl = new LoadControl();
+	fileCache =
+	    new FilePageCache(Config.getInteger("VMKernel.fileCacheIdleFiles",
+						4));
+	maxStackPages = Config.getInteger("VMKernel.maxStackPages", 256);
+
+	String traceFile = Config.getString("VMKernel.traceFile", null);
+	if (traceFile != null) {
+	    Lib.assertTrue(Machine.processor().hasTLB(),
+			   "tracing needs Processor.usingTLB");
+	    trace = new PageTrace(traceFile);
+	}
+
+	int mergeInterval = Config.getInteger("VMKernel.mergeInterval", 0);
+	if (mergeInterval > 0)
+	    pageMerger = new PageMerger(mergeInterval);
     }
 
     /**
@@ -41,9 +113,200 @@ public class VMKernel extends UserKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	Lib.debug(dbgVM, numPageFaults + " page faults, " + numPrefetched
+		  + " pages prefetched (" + numPrefetchHits + " used)");
+	loadControl.printStats();
+	if (pageMerger != null)
+	    pageMerger.printStats();
+	compressedPool.printStats();
+	swap.printStats();
+	fileCache.printStats();
+
+	pagingLock.acquire();
+	fileCache.flushAll();
+	pagingLock.release();
+
+	swap.close();
+	if (trace != null)
+	    trace.close();
+
 	super.terminate();
     }
 
+    /**
+     * Take a frame away from a resident page, using the WSClock algorithm.
+     * The paging lock must be held.
+     *
+     * @param	preferredOnly	<tt>true</tt> if only a page that
+     *				<tt>loadControl</tt> prefers to evict may be
+     *				taken, and never one from a working set.
+     * @return	the frame, still allocated and now free for the caller's use,
+     *		or -1 if no frame could be taken.
+     */
+    static int evictFrame(boolean preferredOnly) {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+	int numFrames = pinCount.length;
+	int oldest = -1, oldestLastUsed = 0;
+
+	// two sweeps: the first may only clear used bits
+	for (int i=0; i<numFrames*2; i++) {
+	    int frame = clockHand;
+	    clockHand = (clockHand+1) % numFrames;
+
+	    // the only reference besides the mappings can be the text cache's
+	    // or the file page cache's
+	    int numMappings = invertedPageTable.getNumMappings(frame);
+	    if (pinCount[frame] > 0 || numMappings == 0 ||
+		frameAllocator.getRefCount(frame) > numMappings+1)
+		continue;
+
+	    if (owners.length < numMappings) {
+		owners = new VMProcess[numMappings];
+		vpns = new int[numMappings];
+	    }
+	    invertedPageTable.getMappings(frame, owners, vpns);
+
+	    // clear every page's used bit, even once one has been found used
+	    boolean used = false, preferred = true;
+	    int lastUsed = 0;
+	    for (int j=0; j<numMappings; j++) {
+		used |= owners[j].testAndClearUsed(vpns[j]);
+
+		int pageLastUsed = owners[j].getLastUsed(vpns[j]);
+		lastUsed = Math.max(lastUsed, pageLastUsed);
+		preferred &= loadControl.isPreferredVictim(owners[j],
+							   pageLastUsed);
+	    }
+
+	    if (used)
+		continue;
+
+	    if (!preferred) {
+		if (oldest == -1 || lastUsed < oldestLastUsed) {
+		    oldest = frame;
+		    oldestLastUsed = lastUsed;
+		}
+		continue;
+	    }
+
+	    if (evict(frame))
+		return frame;
+	}
+
+	// every unused page is in a working set
+	if (!preferredOnly && oldest != -1 && evict(oldest))
+	    return oldest;
+
+	return -1;
+    }
+
+    /**
+     * Evict every page mapped onto a frame, and drop the frame from the
+     * cache holding it, if any. Each evicted page leaves its reference to the
+     * frame behind; the caller is left holding just one.
+     */
+    private static boolean evict(int frame) {
+	int numEvicted = 0;
+
+	while (invertedPageTable.getNumMappings(frame) > 0) {
+	    VMProcess owner = invertedPageTable.getOwner(frame);
+	    int vpn = invertedPageTable.getVPN(frame);
+
+	    if (!owner.evictPage(vpn))
+		break;
+
+	    numEvicted++;
+	    Lib.debug(dbgVM, "evicted pid " + owner.getPID() + ", vpn " + vpn
+		      + " from frame " + frame);
+	}
+
+	for (int i=1; i<numEvicted; i++)
+	    frameAllocator.free(frame);
+
+	// the pages still mapped keep the frame
+	if (invertedPageTable.getNumMappings(frame) > 0) {
+	    if (numEvicted > 0)
+		frameAllocator.free(frame);
+	    return false;
+	}
+
+	if (fileCache.contains(frame))
+	    fileCache.drop(frame);
+	else if (frameAllocator.getRefCount(frame) > 1)
+	    textCache.drop(frame);
+
+	return true;
+    }
+
+    /**
+     * Keep a frame from being evicted, until it is unpinned.
+     */
+    static void pin(int frame) {
+	boolean intStatus = Machine.interrupt().disable();
+	pinCount[frame]++;
+	Machine.interrupt().restore(intStatus);
+    }
+
+    static void unpin(int frame) {
+	boolean intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(pinCount[frame] > 0);
+	pinCount[frame]--;
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return whether a frame is pinned.
+     */
+    static boolean isPinned(int frame) {
+	return pinCount[frame] > 0;
+    }
+
+    /** The resident pages of every process. */
+    public static InvertedPageTable invertedPageTable;
+
+    /** The backing store for dirty pages that have been evicted. */
+    public static SwapFile swap;
+
+    /** Where evicted dirty pages are saved first, compressed. */
+    public static CompressedPool compressedPool;
+
+    /** The cached pages of disk files. */
+    public static FilePageCache fileCache;
+
+    /** The working sets and frame allocations of every process. */
+    public static LoadControl loadControl;
+
+    /** Records every process's page references, or <tt>null</tt> if
+     *  tracing is off. */
+    public static PageTrace trace = null;
+
+    /** Merges identical pages, or <tt>null</tt> if merging is off. */
+    public static PageMerger pageMerger = null;
+
+    /** The number of stack pages each process reserves. */
+    public static int maxStackPages;
+
+    /** The number of pages brought into memory on demand. */
+    static int numPageFaults = 0;
+    /** The number of pages prefetched, and how many of those were used. */
+    static int numPrefetched = 0, numPrefetchHits = 0;
+
+    /**
+     * Serializes page faults and evictions, so a page is never brought in
+     * twice or evicted while it is being brought in.
+     */
+    static Lock pagingLock;
+
+    /** The number of kernel transfers using each frame. */
+    private static int[] pinCount;
+    private static int clockHand = 0;
+    /** The pages mapped onto the frame under the clock hand. */
+    private static VMProcess[] owners = new VMProcess[1];
+    private static int[] vpns = new int[1];
+
+    private static final String swapFileName = "nachos.swp";
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
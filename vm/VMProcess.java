@@ -5,8 +5,60 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * Every page of a new process starts out invalid, and is given a frame the
+ * first time it is touched, either by the program (through a page fault or a
+ * TLB miss) or by the kernel on its behalf (through
+ * <tt>translatePage()</tt>). Pages of initialized COFF sections are loaded
+ * from the executable, read-only ones through the kernel's text page cache,
+ * and pages of uninitialized sections, the stack and the argument pages are
+ * simply zero-filled. A process therefore only ever holds frames for the
+ * pages it uses.
+ *
+ * <p>
+ * Every resident page is recorded in <tt>VMKernel.invertedPageTable</tt>,
+ * which the TLB miss handler consults first, and which lets
+ * <tt>VMKernel.evictFrame()</tt> take a page away again when memory runs
+ * out. A page that has been written is saved first, in
+ * <tt>VMKernel.compressedPool</tt> or the swap file behind it, and is read
+ * back from there on its next fault; it keeps its saved copy while it
+ * stays clean, so it can be evicted again without another write. Faults
+ * and evictions hold <tt>VMKernel.pagingLock</tt>.
+ *
+ * <p>
+ * Each process watches its own page faults for a stream: a run of faults
+ * with a constant stride of a few pages, as a loop sweeping an array makes.
+ * Once a fault continues a stream, the pages after it along the stride are
+ * brought in as well, with pages in the swap file read together. The number
+ * of pages fetched ahead grows while prefetched pages are used and shrinks
+ * when they are evicted unused, and prefetching never takes a frame from a
+ * working set.
+ *
+ * <p>
+ * Since stack pages cost nothing until they are touched, every process
+ * reserves <tt>VMKernel.maxStackPages</tt> of them, and its stack grows down
+ * into them as it faults. Above the arguments, a heap grows and shrinks with
+ * <tt>sbrk()</tt>, and is likewise only given frames as it is used.
+ *
+ * <p>
+ * A process can map a disk file into its address space with
+ * <tt>mmap()</tt>, past the end of its program. The pages of a mapping are
+ * faulted in from <tt>VMKernel.fileCache</tt>, sharing the cache's frames
+ * with every other process mapping the same file, and a write to a mapped
+ * page marks the cached page dirty when the page is evicted or unmapped.
+ * <tt>read()</tt> and <tt>write()</tt> on disk files go through the same
+ * cache.
+ *
+ * <p>
+ * While it has pages in memory, a process is tracked by
+ * <tt>VMKernel.loadControl</tt>, which keeps its frame allocation and may
+ * suspend it when memory is overcommitted.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -14,6 +66,25 @@ public class VMProcess extends UserProcess {
      */
     public VMProcess() {
 	super();
+
+	stackPages = VMKernel.maxStackPages;
+    }
+
+    /**
+     * Execute the specified program with the specified arguments. Anything
+     * written to the executable that is still in the file page cache is
+     * written back first, so that the program is loaded as it was written.
+     *
+     * @param	name	the name of the file containing the executable.
+     * @param	args	the arguments to pass to the executable.
+     * @return	<tt>true</tt> if the program was successfully executed.
+     */
+    public boolean execute(String name, String[] args) {
+	VMKernel.pagingLock.acquire();
+	VMKernel.fileCache.flush(name);
+	VMKernel.pagingLock.release();
+
+	return super.execute(name, args);
     }
 
     /**
@@ -29,7 +100,17 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	if (!Machine.processor().hasTLB()) {
+	    super.restoreState();
+	    return;
+	}
+
+	// the TLB still holds the translations of the last process to run
+	if (tlbOwner != this) {
+	    if (tlbOwner != null)
+		tlbOwner.flushTLB(-1);
+	    tlbOwner = this;
+	}
     }
 
     /**
@@ -39,15 +120,860 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	copyOnWrite = new boolean[numPages];
+	swapSlot = new int[numPages];
+	lastUsed = new int[numPages];
+	prefetched = new boolean[numPages];
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						  false, false);
+	    swapSlot[vpn] = -1;
+	}
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    for (int i=0; i<section.getLength(); i++)
+		pageTable[section.getFirstVPN()+i].readOnly =
+		    section.isReadOnly();
+	}
+
+	numProgramPages = numPages;
+	heapStart = programBreak = numPages*pageSize;
+
+	VMKernel.loadControl.register(this);
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	VMKernel.loadControl.unregister(this);
+
+	boolean acquired = lockPaging();
+
+	while (!mappings.isEmpty())
+	    unmap(mappings.get(0));
+
+	flushTLB(-1);
+	if (tlbOwner == this)
+	    tlbOwner = null;
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    if (pageTable[vpn].valid)
+		VMKernel.invertedPageTable.remove(this, vpn);
+	    if (swapSlot[vpn] != -1)
+		VMKernel.compressedPool.free(swapSlot[vpn]);
+	}
+	swapSlot = new int[0];
+
 	super.unloadSections();
-    }    
+
+	unlockPaging(acquired);
+    }
+
+    /**
+     * Return the translation of a virtual page the kernel is about to access,
+     * first bringing the page in if it is not resident.
+     *
+     * @param	vpn	the virtual page to access.
+     * @param	write	<tt>true</tt> if the page is about to be written.
+     * @return	the translation, or <tt>null</tt> if the page is not mapped
+     *		or cannot be brought in.
+     */
+    protected TranslationEntry translatePage(int vpn, boolean write) {
+	boolean acquired = lockPaging();
+
+	TranslationEntry entry = null;
+	if (vpn < 0 || vpn >= pageTable.length || pageTable[vpn].valid ||
+	    handlePageFault(vpn))
+	    entry = super.translatePage(vpn, write);
+
+	unlockPaging(acquired);
+
+	return entry;
+    }
+
+    /**
+     * Return the translation of a page the kernel is about to copy data into
+     * or out of, bringing it in if necessary, and pin its frame until
+     * <tt>unpinPage()</tt> is called.
+     *
+     * @param	vpn	the virtual page to access.
+     * @param	write	<tt>true</tt> if the page is about to be written.
+     * @return	the translation, or <tt>null</tt> if the page is not mapped
+     *		or cannot be brought in.
+     */
+    protected TranslationEntry pinPage(int vpn, boolean write) {
+	boolean acquired = lockPaging();
+
+	TranslationEntry entry = translatePage(vpn, write);
+	if (entry != null)
+	    VMKernel.pin(entry.ppn);
+
+	unlockPaging(acquired);
+
+	return entry;
+    }
+
+    /**
+     * Release a page pinned by <tt>pinPage()</tt>.
+     *
+     * @param	vpn	the pinned page.
+     */
+    protected void unpinPage(int vpn) {
+	VMKernel.unpin(pageTable[vpn].ppn);
+    }
+
+    /**
+     * Give this process its own writable copy of a copy-on-write page, and
+     * record the new frame in the inverted page table. The shared frame is
+     * pinned while a frame for the copy is found, so that it is not the one
+     * taken. If the page was evicted before the paging lock was acquired,
+     * nothing is done, and the retried write will fault it back in.
+     *
+     * @param	vpn	the copy-on-write page.
+     * @return	<tt>true</tt> if the page is now writable, or is no longer
+     *		resident.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+	boolean acquired = lockPaging();
+
+	if (!pageTable[vpn].valid) {
+	    unlockPaging(acquired);
+	    return true;
+	}
+
+	int oldFrame = pageTable[vpn].ppn;
+	VMKernel.pin(oldFrame);
+	boolean writable = super.breakCopyOnWrite(vpn);
+	VMKernel.unpin(oldFrame);
+
+	if (writable && pageTable[vpn].ppn != oldFrame) {
+	    VMKernel.invertedPageTable.remove(this, vpn);
+	    VMKernel.invertedPageTable.insert(this, vpn, pageTable[vpn].ppn);
+	}
+
+	unlockPaging(acquired);
+
+	return writable;
+    }
+
+    /**
+     * Give a forked child a copy-on-write copy of our address space, and
+     * record its resident pages in the inverted page table. The child
+     * shares our saved pages too. Its pages keep our dirty bits, since a dirty
+     * page can no longer be brought back in from where it came from.
+     *
+     * <p>
+     * Mapped files are not copied: the child maps the same files, and both
+     * processes fault their pages in from the file page cache, so each sees
+     * what the other writes. Our resident mapped pages are unmapped first,
+     * so that none of them is made copy-on-write.
+     *
+     * @param	child	the new child process.
+     */
+    protected void copyAddressSpace(UserProcess child) {
+	boolean acquired = lockPaging();
+
+	for (Mapping mapping : mappings)
+	    unmapPages(mapping);
+
+	// collect the dirty bits of our pages in the TLB
+	flushTLB(-1);
+
+	super.copyAddressSpace(child);
+
+	VMProcess vmChild = (VMProcess) child;
+	vmChild.coff = UserKernel.coffCache.share(coff);
+	vmChild.numProgramPages = numProgramPages;
+	vmChild.heapStart = heapStart;
+	vmChild.programBreak = programBreak;
+	for (Mapping mapping : mappings) {
+	    VMKernel.fileCache.share(mapping.file);
+	    vmChild.mappings.add(new Mapping(mapping));
+	}
+
+	vmChild.swapSlot = swapSlot.clone();
+	vmChild.lastUsed = lastUsed.clone();
+	vmChild.prefetched = new boolean[pageTable.length];
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    if (swapSlot[vpn] != -1)
+		VMKernel.compressedPool.share(swapSlot[vpn]);
+
+	    if (pageTable[vpn].valid) {
+		vmChild.pageTable[vpn].dirty = pageTable[vpn].dirty;
+		VMKernel.invertedPageTable.insert(vmChild, vpn,
+						  pageTable[vpn].ppn);
+	    }
+	}
+
+	VMKernel.loadControl.register(vmChild);
+
+	unlockPaging(acquired);
+    }
+
+    /**
+     * Invalidate the processor's TLB entries for a page of this process,
+     * first copying their used and dirty bits back to the page table.
+     *
+     * @param	vpn	the page whose translation changed, or -1 for every
+     *			page.
+     */
+    protected void flushTLB(int vpn) {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB() || tlbOwner != this)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && (vpn == -1 || tlbEntry.vpn == vpn)) {
+		syncTLBEntry(tlbEntry);
+		tlbEntry.valid = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Make a page resident, giving it a frame and filling the frame from its
+     * saved copy, the executable, or with zeros. If the fault continues a
+     * stream of faults with a constant stride, the next pages along the
+     * stream are prefetched as well.
+     *
+     * @param	vpn	the page that was touched.
+     * @return	<tt>true</tt> if the page is now resident, or <tt>false</tt>
+     *		if it is not part of the address space or there is no memory
+     *		to hold it.
+     */
+    protected boolean handlePageFault(int vpn) {
+	Lib.assertTrue(VMKernel.pagingLock.isHeldByCurrentThread());
+
+	if (vpn < 0 || vpn >= pageTable.length)
+	    return false;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (entry.valid)
+	    return true;
+
+	Lib.debug(dbgVM, "page fault: pid " + getPID() + ", vpn " + vpn);
+
+	pffFaults++;
+	VMKernel.numPageFaults++;
+
+	boolean resident;
+	if (swapSlot[vpn] != -1)
+	    resident = swapIn(vpn);
+	else
+	    resident = fillPage(vpn, false, true);
+
+	// the access that faulted is about to be retried; without this, the
+	// page could be taken again before the retry, over and over
+	if (resident)
+	    entry.used = true;
+
+	if (resident && continuesStream(vpn)) {
+	    // keep the page we came for while making room for the others
+	    VMKernel.pin(entry.ppn);
+	    prefetch(vpn);
+	    VMKernel.unpin(entry.ppn);
+	}
+
+	return resident;
+    }
+
+    /**
+     * Bring in a page that has no saved copy, from the text page cache, the
+     * executable, or as zeros.
+     *
+     * @param	vpn	the page.
+     * @param	prefetching	<tt>true</tt> if the page is being prefetched,
+     *				and so may not take a frame from a working
+     *				set.
+     * @param	mayEvict	<tt>false</tt> if the page may only be given a
+     *				free frame.
+     */
+    private boolean fillPage(int vpn, boolean prefetching, boolean mayEvict) {
+	if (vpn >= numProgramPages)
+	    return fillMappedPage(vpn, prefetching, mayEvict);
+
+	// find the section the page belongs to, if any
+	CoffSection section = null;
+	int s, page = vpn;
+	for (s=0; s<coff.getNumSections(); s++) {
+	    section = coff.getSection(s);
+	    if (page < section.getLength())
+		break;
+	    page -= section.getLength();
+	}
+	if (s == coff.getNumSections())
+	    section = null;
+
+	// the text page cache holds the pages of whatever file now has our
+	// executable's name, which may no longer be the one we are running
+	boolean current = UserKernel.coffCache.isCurrent(coff);
+
+	int frame = -1;
+	if (section != null && section.isReadOnly() && current)
+	    frame = UserKernel.textCache.lookup(coffName, s, page);
+
+	if (frame == -1) {
+	    frame = prefetching ? allocatePrefetchFrame(mayEvict) :
+		allocateFrame();
+	    if (frame == -1)
+		return false;
+
+	    if (section == null || !section.isInitialzed()) {
+		FrameAllocator.zero(new int[] { frame }, 0, 1);
+	    }
+	    else {
+		section.loadPage(page, frame);
+
+		// loading the page may have blocked while the file changed
+		if (section.isReadOnly() && UserKernel.coffCache.isCurrent(coff))
+		    UserKernel.textCache.insert(coffName, coff.getNumSections(),
+						s, section.getLength(), page,
+						frame);
+	    }
+	}
+
+	map(vpn, frame);
+	return true;
+    }
+
+    /**
+     * Bring in a page of a mapped file, sharing the frame that holds it in
+     * the file page cache, and loading it into the cache first if it is not
+     * there.
+     */
+    private boolean fillMappedPage(int vpn, boolean prefetching,
+				   boolean mayEvict) {
+	Mapping mapping = findMapping(vpn);
+	if (mapping == null)
+	    return false;
+
+	int page = vpn - mapping.firstVPN;
+
+	int frame = VMKernel.fileCache.lookup(mapping.file, page);
+	if (frame == -1) {
+	    frame = prefetching ? allocatePrefetchFrame(mayEvict) :
+		allocateFrame();
+	    if (frame == -1)
+		return false;
+
+	    if (!VMKernel.fileCache.load(mapping.file, page, frame)) {
+		UserKernel.frameAllocator.free(frame);
+		return false;
+	    }
+	}
+
+	map(vpn, frame);
+	return true;
+    }
+
+    /**
+     * Read a page back from its saved copy. The page keeps the copy, and is
+     * clean until it is next written.
+     */
+    private boolean swapIn(int vpn) {
+	int frame = allocateFrame();
+	if (frame == -1)
+	    return false;
+
+	if (!VMKernel.compressedPool.read(swapSlot[vpn], frame)) {
+	    UserKernel.frameAllocator.free(frame);
+	    return false;
+	}
+
+	map(vpn, frame);
+	return true;
+    }
+
+    /**
+     * Record a page fault in the fault pattern, and return whether it
+     * continues a stream: whether it is one stride on from the last fault,
+     * or lands just past the pages last prefetched. A fault that does not
+     * starts a new candidate stream, with a stride of the distance from the
+     * last fault, if that is short enough.
+     */
+    private boolean continuesStream(int vpn) {
+	boolean streaming = (faultStride != 0 &&
+			     (vpn == lastFaultVPN + faultStride ||
+			      vpn == nextStreamVPN));
+
+	if (!streaming) {
+	    int stride = vpn - lastFaultVPN;
+	    faultStride = (Math.abs(stride) <= maxStride) ? stride : 0;
+	}
+
+	lastFaultVPN = vpn;
+	nextStreamVPN = vpn + faultStride;
+
+	return streaming;
+    }
+
+    /**
+     * Bring in the next <tt>prefetchDepth</tt> pages along the current
+     * stream, stopping at the end of the address space or when there is no
+     * frame to be had. A page may be evicted to make room only while this
+     * process is within its frame allocation, and never one from a working
+     * set. Saved pages are read together, and those that have been spilled
+     * to the swap file with one read per run of consecutive slots. If the TLB has
+     * free entries, the new pages are entered in it as well.
+     *
+     * @param	vpn	the page just faulted in.
+     */
+    private void prefetch(int vpn) {
+	if (suspended)
+	    return;
+
+	int[] fetched = new int[prefetchDepth];
+	int numFetched = 0;
+
+	int[] swapped = new int[prefetchDepth];
+	int[] slots = new int[prefetchDepth];
+	int[] frames = new int[prefetchDepth];
+	int numSwapped = 0;
+
+	int k;
+	for (k=1; k<=prefetchDepth; k++) {
+	    int next = vpn + k*faultStride;
+	    if (next < 0 || next >= pageTable.length)
+		break;
+	    if (pageTable[next].valid)
+		continue;
+
+	    // past our allocation, only take frames that are free
+	    boolean mayEvict = (numFrames + numSwapped < allocation);
+
+	    if (swapSlot[next] != -1) {
+		int frame = allocatePrefetchFrame(mayEvict);
+		if (frame == -1)
+		    break;
+
+		swapped[numSwapped] = next;
+		slots[numSwapped] = swapSlot[next];
+		frames[numSwapped] = frame;
+		numSwapped++;
+	    }
+	    else {
+		if (!fillPage(next, true, mayEvict))
+		    break;
+
+		prefetched[next] = true;
+		fetched[numFetched++] = next;
+	    }
+	}
+
+	// the next fault of the stream should land just past what we fetched
+	nextStreamVPN = vpn + k*faultStride;
+
+	if (numSwapped > 0) {
+	    if (VMKernel.compressedPool.read(slots, frames, numSwapped)) {
+		for (int i=0; i<numSwapped; i++) {
+		    map(swapped[i], frames[i]);
+		    prefetched[swapped[i]] = true;
+		    fetched[numFetched++] = swapped[i];
+		}
+	    }
+	    else {
+		for (int i=0; i<numSwapped; i++)
+		    UserKernel.frameAllocator.free(frames[i]);
+	    }
+	}
+
+	VMKernel.numPrefetched += numFetched;
+
+	Lib.debug(dbgVM, "prefetched " + numFetched + " pages after vpn " + vpn
+		  + ", stride " + faultStride);
+
+	prefillTLB(fetched, numFetched);
+    }
+
+    /**
+     * Enter the translations of prefetched pages in free TLB entries, keeping
+     * one free entry for the page that faulted, whose miss is still being
+     * handled.
+     */
+    private void prefillTLB(int[] vpns, int count) {
+	Processor processor = Machine.processor();
+	// a trace must see every reference miss
+	if (!processor.hasTLB() || tlbOwner != this || VMKernel.trace != null)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int numFree = 0;
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    if (!processor.readTLBEntry(i).valid)
+		numFree++;
+	}
+
+	int next = 0;
+	for (int i=0; i<processor.getTLBSize() && numFree > 1; i++) {
+	    if (processor.readTLBEntry(i).valid)
+		continue;
+
+	    // a page fetched early in the batch may have made way for a later one
+	    while (next < count && !pageTable[vpns[next]].valid)
+		next++;
+	    if (next == count)
+		break;
+
+	    processor.writeTLBEntry(i, pageTable[vpns[next++]]);
+	    numFree--;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Record whether a prefetched page was used before it was next looked
+     * at, and adjust the prefetch depth: it grows by one page for every
+     * prefetched page that is used, and is halved for every one that is
+     * evicted unused.
+     */
+    private void notePrefetchedPage(int vpn, boolean used) {
+	prefetched[vpn] = false;
+
+	if (used) {
+	    VMKernel.numPrefetchHits++;
+	    prefetchDepth = Math.min(maxPrefetchDepth, prefetchDepth+1);
+	}
+	else {
+	    prefetchDepth = Math.max(minPrefetchDepth, prefetchDepth/2);
+	}
+    }
+
+    /**
+     * Make a page resident in the specified frame.
+     */
+    private void map(int vpn, int frame) {
+	TranslationEntry entry = pageTable[vpn];
+	entry.ppn = frame;
+	entry.valid = true;
+	entry.used = false;
+	entry.dirty = false;
+	lastUsed[vpn] = VMKernel.loadControl.now();
+	prefetched[vpn] = false;
+	numFrames++;
+
+	VMKernel.invertedPageTable.insert(this, vpn, frame);
+    }
+
+    /**
+     * Allocate a frame for a page of this process. If memory is full, a
+     * cached file page that nobody is using is given back, or else a
+     * resident page is evicted. The paging lock must be held.
+     *
+     * @return	the frame, or -1 if there is none.
+     */
+    protected int allocateFrame() {
+	int frame = super.allocateFrame();
+	if (frame == -1 && VMKernel.fileCache.trim(1) > 0)
+	    frame = super.allocateFrame();
+	if (frame == -1)
+	    frame = VMKernel.evictFrame(false);
+
+	return frame;
+    }
+
+    /**
+     * Allocate a frame for a page that is being prefetched. Only an unused
+     * file page, or a page outside every working set, may be taken for it,
+     * and only if <i>mayEvict</i> is <tt>true</tt>.
+     */
+    private int allocatePrefetchFrame(boolean mayEvict) {
+	int frame = super.allocateFrame();
+	if (frame == -1 && mayEvict && VMKernel.fileCache.trim(1) > 0)
+	    frame = super.allocateFrame();
+	if (frame == -1 && mayEvict)
+	    frame = VMKernel.evictFrame(true);
+
+	return frame;
+    }
+
+    /**
+     * Return the number of frames this process holds.
+     */
+    int getNumFrames() {
+	return numFrames;
+    }
+
+    /**
+     * Return the sample a resident page was last found to be used in.
+     */
+    int getLastUsed(int vpn) {
+	return lastUsed[vpn];
+    }
+
+    /**
+     * Stamp every resident page that has been used since the last sample,
+     * and count the pages used since the specified sample. Called by
+     * <tt>LoadControl</tt> from the timer interrupt.
+     *
+     * @param	since	the oldest sample in the working set window.
+     * @return	the number of resident pages in the working set.
+     */
+    int sampleUsedPages(int since) {
+	int workingSetSize = 0;
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    if (pageTable[vpn].valid) {
+		testAndClearUsed(vpn);
+		if (lastUsed[vpn] > since)
+		    workingSetSize++;
+	    }
+	}
+
+	return workingSetSize;
+    }
+
+    /**
+     * Return whether a resident page has been used since this was last
+     * called, and clear its used bit. A page that was used is stamped with
+     * the current sample.
+     */
+    boolean testAndClearUsed(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+
+	if (tlbOwner == this) {
+	    Processor processor = Machine.processor();
+
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry tlbEntry = processor.readTLBEntry(i);
+		if (tlbEntry.valid && tlbEntry.vpn == vpn) {
+		    syncTLBEntry(tlbEntry);
+		    tlbEntry.used = false;
+		    processor.writeTLBEntry(i, tlbEntry);
+		}
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	boolean used = entry.used;
+	if (used)
+	    lastUsed[vpn] = VMKernel.loadControl.now();
+	if (used && prefetched[vpn])
+	    notePrefetchedPage(vpn, true);
+
+	entry.used = false;
+	return used;
+    }
+
+    /**
+     * Take a resident page away from this process, leaving its frame
+     * allocated for the caller. A dirty page is saved in the compressed
+     * pool, replacing its old saved copy; a clean page is already saved, is
+     * in the executable, or is all zeros. A page of a mapped file is only
+     * marked dirty in the file page cache, which writes it back. The paging
+     * lock must be held.
+     *
+     * @return	<tt>true</tt> if the page was evicted, or <tt>false</tt> if
+     *		the compressed pool and the swap file are full.
+     */
+    boolean evictPage(int vpn) {
+	Lib.assertTrue(VMKernel.pagingLock.isHeldByCurrentThread());
+
+	TranslationEntry entry = pageTable[vpn];
+
+	// unmap the page before writing it out, since the write may block
+	boolean intStatus = Machine.interrupt().disable();
+	flushTLB(vpn);
+	VMKernel.invertedPageTable.remove(this, vpn);
+	entry.valid = false;
+	Machine.interrupt().restore(intStatus);
+
+	if (prefetched[vpn])
+	    notePrefetchedPage(vpn, entry.used);
+
+	if (entry.dirty && vpn >= numProgramPages) {
+	    VMKernel.fileCache.setDirty(entry.ppn);
+	}
+	else if (entry.dirty) {
+	    int slot = VMKernel.compressedPool.write(entry.ppn);
+	    if (slot == -1) {
+		entry.valid = true;
+		VMKernel.invertedPageTable.insert(this, vpn, entry.ppn);
+		return false;
+	    }
+
+	    if (swapSlot[vpn] != -1)
+		VMKernel.compressedPool.free(swapSlot[vpn]);
+	    swapSlot[vpn] = slot;
+	}
+
+	numFrames--;
+
+	return true;
+    }
+
+    /**
+     * Return whether a resident page may share a frame with an identical
+     * page: whether it is writable, or already copy-on-write.
+     */
+    boolean isMergeable(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	return entry.valid && (!entry.readOnly || copyOnWrite[vpn]);
+    }
+
+    /**
+     * Make a resident page copy-on-write, so that the next write to it
+     * faults. Called by <tt>PageMerger</tt> with interrupts disabled.
+     */
+    void makeCopyOnWrite(int vpn) {
+	// collect the dirty bit, and drop any writable TLB entry
+	flushTLB(vpn);
+
+	pageTable[vpn].readOnly = true;
+	copyOnWrite[vpn] = true;
+    }
+
+    /**
+     * Move a resident page onto another frame holding the same data, shared
+     * copy-on-write, and drop the page's reference to its old frame. Called
+     * by <tt>PageMerger</tt> with interrupts disabled.
+     */
+    void remapPage(int vpn, int frame) {
+	makeCopyOnWrite(vpn);
+
+	TranslationEntry entry = pageTable[vpn];
+	VMKernel.invertedPageTable.remove(this, vpn);
+	UserKernel.frameAllocator.share(frame);
+	UserKernel.frameAllocator.free(entry.ppn);
+
+	entry.ppn = frame;
+	VMKernel.invertedPageTable.insert(this, vpn, frame);
+    }
+
+    /**
+     * Handle a TLB miss by loading the translation of the missing page into
+     * the TLB, bringing the page in first if it is not resident. An invalid
+     * TLB entry is replaced if there is one, otherwise the entries are
+     * replaced in turn.
+     *
+     * <p>
+     * While <tt>VMKernel.trace</tt> is recording, the miss is recorded as a
+     * reference, only the first <tt>tracedTLBSize</tt> entries are used,
+     * and a writable page is entered read-only, so that its first write
+     * traps to <tt>handleTracedWrite()</tt>.
+     */
+    private boolean handleTLBMiss(int vpn) {
+	if (VMKernel.invertedPageTable.lookup(this, vpn) == -1) {
+	    VMKernel.pagingLock.acquire();
+	    boolean resident = handlePageFault(vpn);
+	    VMKernel.pagingLock.release();
+
+	    if (!resident)
+		return false;
+	}
+
+	Processor processor = Machine.processor();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// if the page was evicted again in the meantime, the retried
+	// instruction will simply miss again
+	if (!pageTable[vpn].valid) {
+	    Machine.interrupt().restore(intStatus);
+	    return true;
+	}
+
+	if (prefetched[vpn])
+	    notePrefetchedPage(vpn, true);
+
+	PageTrace trace = VMKernel.trace;
+	int tlbSize = (trace != null) ? tracedTLBSize : processor.getTLBSize();
+
+	int victim = -1;
+	for (int i=0; i<tlbSize; i++) {
+	    if (!processor.readTLBEntry(i).valid) {
+		victim = i;
+		break;
+	    }
+	}
+
+	if (victim == -1) {
+	    victim = nextTLBVictim;
+	    nextTLBVictim = (nextTLBVictim+1) % tlbSize;
+	    syncTLBEntry(processor.readTLBEntry(victim));
+	}
+
+	TranslationEntry entry = pageTable[vpn];
+	if (trace != null && !entry.readOnly) {
+	    entry = new TranslationEntry(entry);
+	    entry.readOnly = true;
+	}
+
+	processor.writeTLBEntry(victim, entry);
+
+	Machine.interrupt().restore(intStatus);
+
+	if (trace != null)
+	    trace.record(getPID(), vpn, false);
+
+	return true;
+    }
+
+    /**
+     * Handle a write to a writable page that was entered in the TLB
+     * read-only while tracing: record the write, and make the TLB entry
+     * writable.
+     *
+     * @return	<tt>false</tt> if the page really is read-only, or
+     *		copy-on-write.
+     */
+    private boolean handleTracedWrite(int vpn) {
+	if (vpn < 0 || vpn >= pageTable.length || !pageTable[vpn].valid ||
+	    pageTable[vpn].readOnly)
+	    return false;
+
+	Processor processor = Machine.processor();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// if the entry has gone, the retried write will simply miss
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.vpn == vpn) {
+		tlbEntry.readOnly = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	VMKernel.trace.record(getPID(), vpn, true);
+
+	return true;
+    }
+
+    /**
+     * Copy the used and dirty bits the processor set in a TLB entry back to
+     * this process's page table.
+     */
+    private void syncTLBEntry(TranslationEntry tlbEntry) {
+	if (!tlbEntry.valid || tlbEntry.vpn >= pageTable.length)
+	    return;
+
+	TranslationEntry entry = pageTable[tlbEntry.vpn];
+	if (entry.valid && entry.ppn == tlbEntry.ppn) {
+	    entry.used |= tlbEntry.used;
+	    entry.dirty |= tlbEntry.dirty;
+	}
+    }
 
     /**
      * Handle a user exception. Called by
@@ -60,13 +986,550 @@ public class VMProcess extends UserProcess {
     public void handleException(int cause) {
 	Processor processor = Machine.processor();
 
+	VMKernel.loadControl.checkSuspended(this);
+
 	switch (cause) {
+	case Processor.exceptionPageFault:
+	case Processor.exceptionTLBMiss:
+	    int vpn =
+		Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+
+	    // retry the faulting instruction once the page is in
+	    boolean handled;
+	    if (cause == Processor.exceptionTLBMiss) {
+		handled = handleTLBMiss(vpn);
+	    }
+	    else {
+		VMKernel.pagingLock.acquire();
+		handled = handlePageFault(vpn);
+		VMKernel.pagingLock.release();
+	    }
+
+	    if (!handled) {
+		Lib.debug(dbgProcess, "\tbad address or out of memory: vpn "
+			  + vpn);
+		handleExit(-1);
+	    }
+	    break;
+
+	case Processor.exceptionReadOnly:
+	    vpn =
+		Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+
+	    if (VMKernel.trace == null || !handleTracedWrite(vpn))
+		super.handleException(cause);
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /**
+     * Handle the mmap() system call: map the whole of an open disk file into
+     * the address space, starting at <i>address</i>, which must be
+     * page-aligned and lie past the end of the heap and of every other
+     * mapping. The page table grows to cover the mapping, and its pages are
+     * faulted in on demand. The file can still be read and written through
+     * the descriptor, through the same cached pages.
+     *
+     * @param	fd	the file descriptor.
+     * @param	address	the virtual address to map the file at.
+     * @return	the length of the file, or -1 on error.
+     */
+    protected int handleMmap(int fd, int address) {
+	OpenFile openFile = filedescriptors.get(fd);
+	if (openFile == null || openFile.length() < 0 ||
+	    findMapping(openFile) != null || address < 0 ||
+	    Processor.offsetFromAddress(address) != 0)
+	    return -1;
+
+	int firstVPN = Processor.pageFromAddress(address);
+	if (firstVPN < numProgramPages)
+	    return -1;
+
+	VMKernel.pagingLock.acquire();
+
+	FilePageCache.CachedFile file =
+	    VMKernel.fileCache.open(openFile.getName());
+	if (file == null) {
+	    VMKernel.pagingLock.release();
+	    return -1;
+	}
+
+	int length = VMKernel.fileCache.length(file);
+	int numMapPages = (length + pageSize-1) / pageSize;
+
+	for (Mapping mapping : mappings) {
+	    if (firstVPN < mapping.firstVPN + mapping.numPages &&
+		mapping.firstVPN < firstVPN + numMapPages) {
+		VMKernel.fileCache.close(file);
+		VMKernel.pagingLock.release();
+		return -1;
+	    }
+	}
+
+	if (firstVPN + numMapPages > maxVirtualPages) {
+	    VMKernel.fileCache.close(file);
+	    VMKernel.pagingLock.release();
+	    return -1;
+	}
+
+	growAddressSpace(firstVPN + numMapPages);
+	mappings.add(new Mapping(openFile, file, firstVPN, numMapPages));
+
+	VMKernel.pagingLock.release();
+
+	Lib.debug(dbgVM, "pid " + getPID() + " mapped " + openFile.getName()
+		  + " at vpn " + firstVPN + ", " + numMapPages + " pages");
+
+	return length;
+    }
+
+    /**
+     * Handle the sbrk() system call: move the program break by
+     * <i>increment</i> bytes. The heap starts just past the argument pages,
+     * and is part of the program, so the page table grows with it; its pages
+     * are zero-filled when they are first touched. The heap cannot grow into
+     * a mapping. When it shrinks, the pages it no longer covers are given up
+     * at once, unless the kernel is transferring data into one of them.
+     *
+     * @param	increment	the number of bytes to move the break by.
+     * @return	the old program break, or -1 on error.
+     */
+    protected int handleSbrk(int increment) {
+	long newBreak = (long) programBreak + increment;
+	if (newBreak < heapStart)
+	    return -1;
+
+	int newEnd = (int) ((newBreak + pageSize-1) / pageSize);
+	if (newEnd > maxVirtualPages)
+	    return -1;
+
+	VMKernel.pagingLock.acquire();
+
+	for (Mapping mapping : mappings) {
+	    if (mapping.firstVPN < newEnd) {
+		VMKernel.pagingLock.release();
+		return -1;
+	    }
+	}
+
+	for (int vpn=newEnd; vpn<numProgramPages; vpn++) {
+	    if (pageTable[vpn].valid && VMKernel.isPinned(pageTable[vpn].ppn)) {
+		VMKernel.pagingLock.release();
+		return -1;
+	    }
+	}
+
+	for (int vpn=newEnd; vpn<numProgramPages; vpn++)
+	    discardPage(vpn);
+
+	growAddressSpace(newEnd);
+	numProgramPages = newEnd;
+
+	VMKernel.pagingLock.release();
+
+	int oldBreak = programBreak;
+	programBreak = (int) newBreak;
+
+	Lib.debug(dbgVM, "pid " + getPID() + " moved its break to "
+		  + programBreak);
+
+	return oldBreak;
+    }
+
+    /**
+     * Handle the close() system call. Closing a mapped file removes the
+     * mapping, and writes back its dirty pages.
+     *
+     * @param	fd	the file descriptor.
+     * @return	0 on success, or -1 on error.
+     */
+    public int handleClose(int fd) {
+	OpenFile openFile = filedescriptors.get(fd);
+	Mapping mapping = (openFile == null) ? null : findMapping(openFile);
+
+	if (mapping != null) {
+	    VMKernel.pagingLock.acquire();
+	    unmap(mapping);
+	    VMKernel.pagingLock.release();
+	}
+
+	return super.handleClose(fd);
+    }
+
+    /**
+     * Handle the creat() system call. The file is truncated, so its cached
+     * pages are dropped first.
+     */
+    public int handleCreate(String name) {
+	if (name != null)
+	    invalidateCachedFile(name);
+
+	return super.handleCreate(name);
+    }
+
+    /**
+     * Handle the unlink() system call, dropping the file's cached pages
+     * first.
+     */
+    public int handleUnlink(String name) {
+	if (name != null)
+	    invalidateCachedFile(name);
+
+	return super.handleUnlink(name);
+    }
+
+    private static void invalidateCachedFile(String name) {
+	VMKernel.pagingLock.acquire();
+	VMKernel.fileCache.invalidate(name);
+	VMKernel.pagingLock.release();
+    }
+
+    /**
+     * Transfer data between an open file and this process's virtual memory.
+     * A disk file is transferred through <tt>VMKernel.fileCache</tt>: each
+     * page is copied between the frame caching it and the process's page,
+     * and written data only reaches the file when the cached page is written
+     * back. The console, and a file the cache cannot open, are transferred
+     * directly. A file that is mapped shares the cached frames with its
+     * mappings, so each sees what the other writes.
+     *
+     * @param	openFile	the file to read from or write to.
+     * @param	pos	the offset in the file to start at, or -1 to use (and
+     *			advance) the file's own position.
+     * @param	vaddr	the first byte of virtual memory to transfer.
+     * @param	length	the number of bytes to transfer.
+     * @param	toMemory	<tt>true</tt> to read from the file into memory,
+     *				<tt>false</tt> to write memory to the file.
+     * @return	the number of bytes transferred, or -1 if the file failed
+     *		before any bytes were transferred.
+     */
+    protected int transferFile(OpenFile openFile, int pos, int vaddr,
+			       int length, boolean toMemory) {
+	if (openFile.length() < 0)
+	    return super.transferFile(openFile, pos, vaddr, length, toMemory);
+
+	boolean acquired = lockPaging();
+	FilePageCache.CachedFile file =
+	    VMKernel.fileCache.open(openFile.getName());
+	unlockPaging(acquired);
+
+	if (file == null)
+	    return super.transferFile(openFile, pos, vaddr, length, toMemory);
+
+	int start = (pos < 0) ? openFile.tell() : pos;
+	int transferred = 0;
+	boolean failed = false;
+
+	while (transferred < length) {
+	    int filePos = start + transferred;
+	    int vpn = Processor.pageFromAddress(vaddr + transferred);
+	    int offset = Processor.offsetFromAddress(vaddr + transferred);
+
+	    int amount = Math.min(length - transferred,
+				  pageSize - Math.max(offset, filePos % pageSize));
+	    if (toMemory) {
+		amount = Math.min(amount,
+				  VMKernel.fileCache.length(file) - filePos);
+		if (amount <= 0)
+		    break;
+	    }
+
+	    acquired = lockPaging();
+	    int count = transferPage(file, filePos, vpn, offset, amount,
+				     toMemory);
+	    unlockPaging(acquired);
+
+	    if (count <= 0) {
+		failed = (count < 0);
+		break;
+	    }
+
+	    transferred += count;
+	}
+
+	if (pos < 0)
+	    openFile.seek(start + transferred);
+
+	acquired = lockPaging();
+	VMKernel.fileCache.close(file);
+	unlockPaging(acquired);
+
+	return (failed && transferred == 0) ? -1 : transferred;
+    }
+
+    /**
+     * Copy bytes within one page of a file between the file page cache and
+     * one page of this process, caching the page of the file first if
+     * necessary. The paging lock must be held.
+     *
+     * @return	the number of bytes copied, 0 if the page of this process is
+     *		not mapped, or -1 if the page of the file cannot be cached.
+     */
+    private int transferPage(FilePageCache.CachedFile file, int filePos,
+			     int vpn, int offset, int amount,
+			     boolean toMemory) {
+	int page = filePos / pageSize;
+
+	int frame = VMKernel.fileCache.lookup(file, page);
+	if (frame == -1) {
+	    frame = allocateFrame();
+	    if (frame == -1)
+		return -1;
+
+	    if (!VMKernel.fileCache.load(file, page, frame)) {
+		UserKernel.frameAllocator.free(frame);
+		return -1;
+	    }
+	}
+
+	// our reference keeps the cached page from being trimmed meanwhile
+	TranslationEntry entry = pinPage(vpn, toMemory);
+	if (entry != null) {
+	    byte[] memory = Machine.processor().getMemory();
+	    int paddr = Processor.makeAddress(entry.ppn, offset);
+	    int caddr = frame*pageSize + filePos % pageSize;
+
+	    if (toMemory) {
+		System.arraycopy(memory, caddr, memory, paddr, amount);
+		entry.dirty = true;
+	    }
+	    else {
+		System.arraycopy(memory, paddr, memory, caddr, amount);
+		VMKernel.fileCache.written(frame, filePos + amount);
+	    }
+	    entry.used = true;
+
+	    unpinPage(vpn);
+	}
+
+	UserKernel.frameAllocator.free(frame);
+
+	return (entry != null) ? amount : 0;
+    }
+
+    /**
+     * Remove a mapping: take its resident pages away, and write back every
+     * dirty page of its file. The paging lock must be held.
+     */
+    private void unmap(Mapping mapping) {
+	unmapPages(mapping);
+	mappings.remove(mapping);
+
+	VMKernel.fileCache.flush(mapping.file);
+	VMKernel.fileCache.close(mapping.file);
+
+	Lib.debug(dbgVM, "pid " + getPID() + " unmapped vpn "
+		  + mapping.firstVPN);
+    }
+
+    /**
+     * Take every resident page of a mapping away from this process, marking
+     * the ones that were written dirty in the file page cache, and drop this
+     * process's references to their frames. The paging lock must be held.
+     */
+    private void unmapPages(Mapping mapping) {
+	for (int i=0; i<mapping.numPages; i++) {
+	    int vpn = mapping.firstVPN + i;
+	    TranslationEntry entry = pageTable[vpn];
+	    if (!entry.valid)
+		continue;
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    flushTLB(vpn);
+	    VMKernel.invertedPageTable.remove(this, vpn);
+	    entry.valid = false;
+	    Machine.interrupt().restore(intStatus);
+
+	    if (entry.dirty)
+		VMKernel.fileCache.setDirty(entry.ppn);
+	    UserKernel.frameAllocator.free(entry.ppn);
+
+	    prefetched[vpn] = false;
+	    numFrames--;
+	}
+    }
+
+    /**
+     * Give up a page the heap has shrunk away from: free its frame and its
+     * saved copy, so that it is zero-filled again if the heap grows back
+     * over it. The paging lock must be held.
+     */
+    private void discardPage(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+
+	if (entry.valid) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    flushTLB(vpn);
+	    VMKernel.invertedPageTable.remove(this, vpn);
+	    entry.valid = false;
+	    Machine.interrupt().restore(intStatus);
+
+	    UserKernel.frameAllocator.free(entry.ppn);
+	    numFrames--;
+	}
+
+	if (swapSlot[vpn] != -1) {
+	    VMKernel.compressedPool.free(swapSlot[vpn]);
+	    swapSlot[vpn] = -1;
+	}
+
+	entry.readOnly = false;
+	entry.used = false;
+	entry.dirty = false;
+	copyOnWrite[vpn] = false;
+	prefetched[vpn] = false;
+    }
+
+    /**
+     * Return the mapping a page belongs to, or <tt>null</tt>.
+     */
+    private Mapping findMapping(int vpn) {
+	for (Mapping mapping : mappings) {
+	    if (vpn >= mapping.firstVPN &&
+		vpn < mapping.firstVPN + mapping.numPages)
+		return mapping;
+	}
+
+	return null;
+    }
+
+    /**
+     * Return the mapping of an open file, or <tt>null</tt> if it is not
+     * mapped.
+     */
+    private Mapping findMapping(OpenFile openFile) {
+	for (Mapping mapping : mappings) {
+	    if (mapping.openFile == openFile)
+		return mapping;
+	}
+
+	return null;
+    }
+
+    /**
+     * Extend the page table, and every other per-page array, to
+     * <i>size</i> pages. The new pages are invalid, and belong to nothing
+     * until a mapping covers them.
+     */
+    private void growAddressSpace(int size) {
+	int oldSize = pageTable.length;
+	if (size <= oldSize)
+	    return;
+
+	TranslationEntry[] newPageTable = Arrays.copyOf(pageTable, size);
+	for (int vpn=oldSize; vpn<size; vpn++)
+	    newPageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						     false, false);
+
+	int[] newSwapSlot = Arrays.copyOf(swapSlot, size);
+	Arrays.fill(newSwapSlot, oldSize, size, -1);
+
+	// the timer interrupt samples the page table
+	boolean intStatus = Machine.interrupt().disable();
+
+	pageTable = newPageTable;
+	copyOnWrite = Arrays.copyOf(copyOnWrite, size);
+	swapSlot = newSwapSlot;
+	lastUsed = Arrays.copyOf(lastUsed, size);
+	prefetched = Arrays.copyOf(prefetched, size);
+	numPages = size;
+
+	if (!Machine.processor().hasTLB())
+	    Machine.processor().setPageTable(pageTable);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A file mapped into the address space by <tt>mmap()</tt>.
+     */
+    private static class Mapping {
+	Mapping(OpenFile openFile, FilePageCache.CachedFile file,
+		int firstVPN, int numPages) {
+	    this.openFile = openFile;
+	    this.file = file;
+	    this.firstVPN = firstVPN;
+	    this.numPages = numPages;
+	}
+
+	Mapping(Mapping mapping) {
+	    this(mapping.openFile, mapping.file, mapping.firstVPN,
+		 mapping.numPages);
+	}
+
+	/** The open file the mapping was made from. */
+	OpenFile openFile;
+	FilePageCache.CachedFile file;
+	int firstVPN, numPages;
+    }
+
+    /**
+     * Acquire the paging lock, unless the current thread already holds it.
+     * Returns whether it was acquired, to pass to <tt>unlockPaging()</tt>.
+     */
+    private static boolean lockPaging() {
+	if (VMKernel.pagingLock.isHeldByCurrentThread())
+	    return false;
+
+	VMKernel.pagingLock.acquire();
+	return true;
+    }
+
+    private static void unlockPaging(boolean acquired) {
+	if (acquired)
+	    VMKernel.pagingLock.release();
+    }
+
+    /** The number of pages of the program itself: its sections, stack,
+     *  arguments and heap. The pages past them belong to mappings, if to
+     *  anything. */
+    private int numProgramPages = 0;
+    /** The address the heap starts at, and the program break. */
+    private int heapStart = 0, programBreak = 0;
+    /** The files mapped into the address space. */
+    private ArrayList<Mapping> mappings = new ArrayList<Mapping>();
+
+    /** The handle of each page's saved copy in
+     *  <tt>VMKernel.compressedPool</tt>, or -1. */
+    private int[] swapSlot = new int[0];
+    /** The sample each page was last found to be used in. */
+    private int[] lastUsed = new int[0];
+
+    /** Whether each page was prefetched and has not been used since. */
+    private boolean[] prefetched = new boolean[0];
+    /** The last page faulted in, and the stride of the current stream. */
+    private int lastFaultVPN = -1, faultStride = 0;
+    /** The page the next fault of the stream is expected on, just past the
+     *  pages last prefetched. */
+    private int nextStreamVPN = -1;
+    /** The number of pages to prefetch after a fault that continues the
+     *  stream. */
+    private int prefetchDepth = minPrefetchDepth;
+
+    /** The state kept by <tt>LoadControl</tt>. */
+    int allocation;
+    boolean suspended = false, blocked = false;
+    Semaphore resumed = new Semaphore(0);
+    int pffSamples = 0, pffFaults = 0;
+
+    /** The process whose translations are in the TLB, or <tt>null</tt>. */
+    private static VMProcess tlbOwner = null;
+    /** The TLB entry to replace next when none is free. */
+    private static int nextTLBVictim = 0;
+    /** The TLB entries used while tracing: enough for an instruction
+     *  fetch and a data access on another page. */
+    private static final int tracedTLBSize = 2;
+
+    /** The longest stride, in pages, a stream may have. */
+    private static final int maxStride = 4;
+    private static final int minPrefetchDepth = 1, maxPrefetchDepth = 8;
+    /** The most pages the page table may grow to, to hold mappings. */
+    private static final int maxVirtualPages = 0x10000;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';